@@ -1,6 +1,8 @@
 package com.mdsol.mauth.akka.http
 
+import java.security.MessageDigest
 import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
 import akka.http.javadsl.model.HttpHeader
 import akka.http.javadsl.server.AuthorizationFailedRejection
 import akka.http.scaladsl.model.{HttpEntity, HttpRequest}
@@ -10,15 +12,20 @@ import akka.http.scaladsl.server.directives.FutureDirectives.onComplete
 import akka.http.scaladsl.server.directives.RouteDirectives.reject
 import akka.http.scaladsl.server._
 import akka.http.scaladsl.server.directives.HeaderMagnet
-import com.mdsol.mauth.MAuthRequest
+import akka.stream.scaladsl.{Flow, Sink, Source}
+import akka.util.ByteString
+import com.mdsol.mauth.{MAuthRequest, MAuthVersion}
+import com.mdsol.mauth.exception.MAuthValidationException
 import com.mdsol.mauth.http.{`X-MWS-Authentication`, `X-MWS-Time`, HttpVerbOps}
 import com.mdsol.mauth.scaladsl.Authenticator
+import com.mdsol.mauth.util.MAuthHeadersHelper
 import com.typesafe.scalalogging.StrictLogging
+import org.apache.commons.codec.binary.Hex
 
-import scala.concurrent.Future
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.concurrent.duration.{Duration, FiniteDuration}
 import scala.util.control.NonFatal
-import scala.util.{Success, Try}
+import scala.util.{Failure, Success, Try}
 
 case class MauthHeaderValues(authenticator: String, time: Long)
 
@@ -36,7 +43,8 @@ trait MAuthDirectives extends StrictLogging {
 
   /** Directive to wrap all routes that require MAuth authentication check.
     * Should only be used once per route branch, as any HttpEntity is forced
-    * to be strict, and serialised into the request.
+    * to be strict, and serialised into the request. Requests known to have an
+    * empty entity, as most GET, HEAD and DELETE requests, skip that.
     *
     * @param authenticator            MAuth Public Key Provider
     * @param timeout                  request timeout duration, defaults to 10 seconds
@@ -45,13 +53,13 @@ trait MAuthDirectives extends StrictLogging {
     */
   def authenticate(implicit authenticator: Authenticator[Future], timeout: FiniteDuration, requestValidationTimeout: Duration): Directive0 = {
     extractLatestAuthenticationHeaders(authenticator.isV2OnlyAuthenticate).flatMap { mauthHeaderValues: MauthHeaderValues =>
-      toStrictEntity(timeout) &
+      toStrictUnlessEmpty(timeout) &
         extractRequest.flatMap { req =>
-          val isAuthed: Directive[Unit] = req.entity match {
-            case entity: HttpEntity.Strict =>
+          val isAuthed: Directive[Unit] = strictBody(req.entity) match {
+            case Some(body) =>
               val mAuthRequest: MAuthRequest = new MAuthRequest(
                 mauthHeaderValues.authenticator,
-                entity.data.toArray[Byte],
+                body,
                 HttpVerbOps.httpVerb(req.method),
                 mauthHeaderValues.time.toString,
                 req.uri.path.toString,
@@ -74,7 +82,7 @@ trait MAuthDirectives extends StrictLogging {
                 case Success(true) => pass
                 case _             => reject(MdsolAuthFailedRejection)
               }
-            case _ =>
+            case None =>
               logger.error(s"MAUTH: Non-Strict Entity in Request")
               reject(MdsolAuthFailedRejection)
           }
@@ -83,6 +91,109 @@ trait MAuthDirectives extends StrictLogging {
     }
   }
 
+  /** Directive to wrap the routes that require MAuth authentication, without forcing the HttpEntity to be strict.
+    *
+    * For Mauth V2 the SHA-512 of the body is computed while the inner route reads the entity, and the request is
+    * authenticated once the entity is read: the end of the entity is held back until then, and the entity fails with a
+    * MAuthValidationException when the request is not authenticated. So the inner route must not act on the body before it
+    * has read all of it, as when it unmarshals the body. Its result is only used once the request is authenticated, within
+    * the timeout, otherwise the request is rejected. An entity the inner route does not read is drained for that, an
+    * entity it does not read before it completes, e.g. streamed back in the response, is not authenticated in time.
+    *
+    * Strict entities and V1 requests are authenticated like [[authenticate]]. So are V2 requests with V1 headers as well
+    * when bufferForV1Fallback is set and V1 is allowed, so that the V1 fallback remains available to them.
+    *
+    * @param bufferForV1Fallback      make the entity strict when the request may need the V1 fallback
+    * @param authenticator            MAuth Public Key Provider
+    * @param timeout                  request timeout duration, also the time the request body has to be read in
+    * @param requestValidationTimeout request validation timeout duration
+    * @return Directive to authenticate the request
+    */
+  def authenticateStreaming(
+    bufferForV1Fallback: Boolean
+  )(implicit authenticator: Authenticator[Future], timeout: FiniteDuration, requestValidationTimeout: Duration): Directive0 =
+    extractLatestAuthenticationHeaders(authenticator.isV2OnlyAuthenticate).flatMap { mauthHeaderValues: MauthHeaderValues =>
+      extractRequest.flatMap { req =>
+        val v1Fallback = bufferForV1Fallback && !authenticator.isV2OnlyAuthenticate &&
+          extractRequestHeader(req, MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME).nonEmpty &&
+          extractRequestHeader(req, MAuthRequest.X_MWS_TIME_HEADER_NAME).nonEmpty
+        val isV2 = MAuthHeadersHelper.getMauthVersion(mauthHeaderValues.authenticator) == MAuthVersion.MWSV2
+        // passed explicitly, the implicit FiniteDuration timeout would be resolved for the Duration as well
+        if (req.entity.isStrict || req.entity.isKnownEmpty || !isV2 || v1Fallback) authenticate(authenticator, timeout, requestValidationTimeout)
+        else authenticateStreamedBody(mauthHeaderValues)(authenticator, timeout, requestValidationTimeout)
+      }
+    }
+
+  private def authenticateStreamedBody(
+    mauthHeaderValues: MauthHeaderValues
+  )(implicit authenticator: Authenticator[Future], timeout: FiniteDuration, requestValidationTimeout: Duration): Directive0 =
+    Directive[Unit] { inner => ctx =>
+      implicit val ec: ExecutionContext = ctx.executionContext
+      val req = ctx.request
+      val authenticated = Promise[Boolean]()
+      val read = new AtomicBoolean()
+      val digest = MessageDigest.getInstance("SHA-512")
+
+      // the outcome completes authenticated before it is passed on, so before the entity ends
+      def authenticateDigest(): Future[Boolean] =
+        Future
+          .fromTry(Try {
+            MAuthRequest.Builder
+              .get()
+              .withAuthenticationHeaderValue(mauthHeaderValues.authenticator)
+              .withTimeHeaderValue(mauthHeaderValues.time.toString)
+              .withHttpMethod(HttpVerbOps.httpVerb(req.method))
+              .withResourcePath(req.uri.path.toString)
+              .withQueryParameters(getQueryString(req))
+              .withBodyDigest(Hex.encodeHexString(digest.digest()))
+              .build()
+          })
+          .flatMap(authenticator.authenticate(_)(requestValidationTimeout))
+          .andThen { case outcome => authenticated.tryComplete(outcome) }
+
+      // the bytes go through to the inner route as they are digested, the end of the entity waits for the authentication
+      val digesting = Flow[ByteString]
+        .map { bytes =>
+          bytes.asByteBuffers.foreach(buffer => digest.update(buffer))
+          bytes
+        }
+        .concat(Source.lazyFuture(() => authenticateDigest()).flatMapConcat { isAuthed =>
+          if (isAuthed) Source.empty[ByteString]
+          else Source.failed[ByteString](new MAuthValidationException("MAuth request authentication failed"))
+        })
+        .watchTermination() { (mat, done) =>
+          read.set(true)
+          done.onComplete {
+            case Failure(error) => authenticated.tryFailure(error)
+            case Success(_)     => authenticated.tryFailure(new MAuthValidationException("The request body was not read entirely"))
+          }
+          mat
+        }
+      val entity = req.entity.transformDataBytes(digesting)
+      val timedOut = ctx.materializer.scheduleOnce(
+        timeout,
+        new Runnable {
+          override def run(): Unit = {
+            val _ = authenticated.tryFailure(new MAuthValidationException(s"The request body was not read within $timeout"))
+          }
+        }
+      )
+      authenticated.future.onComplete(_ => timedOut.cancel())
+
+      inner(())(ctx.withRequest(req.withEntity(entity))).transformWith { result =>
+        if (!read.get) {
+          val _ = entity.dataBytes.runWith(Sink.ignore)(ctx.materializer)
+        }
+        authenticated.future.transform {
+          case Success(true)  => result
+          case Success(false) => Success(RouteResult.Rejected(List(MdsolAuthFailedRejection)))
+          case Failure(error) =>
+            logger.error("MAUTH: Authentication of the streamed request body failed", error)
+            Success(RouteResult.Rejected(List(MdsolAuthFailedRejection)))
+        }
+      }
+    }
+
   @deprecated("This method is for Mauth V1 protocol only", "3.0.0")
   val extractMwsAuthenticationHeader: Directive1[String] = headerValueByName(`X-MWS-Authentication`.name)
 
@@ -147,6 +258,16 @@ trait MAuthDirectives extends StrictLogging {
     }
   }
 
+  private def toStrictUnlessEmpty(timeout: FiniteDuration): Directive0 =
+    extractRequestEntity.flatMap(entity => if (entity.isKnownEmpty) pass else toStrictEntity(timeout))
+
+  // the body of an empty entity is not copied, its digest is not computed again
+  private def strictBody(entity: HttpEntity): Option[Array[Byte]] = entity match {
+    case _ if entity.isKnownEmpty  => Some(Array.emptyByteArray)
+    case strict: HttpEntity.Strict => Some(strict.data.toArray[Byte])
+    case _                         => None
+  }
+
   private def getQueryString(req: HttpRequest): String = req.uri.rawQueryString.getOrElse("")
 
   private def extractRequestHeader(request: HttpRequest, headerName: String): String = {
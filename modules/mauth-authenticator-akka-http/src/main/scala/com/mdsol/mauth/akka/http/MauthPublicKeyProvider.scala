@@ -1,29 +1,72 @@
 package com.mdsol.mauth.akka.http
 
+import akka.Done
 import akka.actor.ActorSystem
 import akka.http.caching.scaladsl.CachingSettings
 import akka.http.caching.LfuCache
-import akka.http.scaladsl.model.{HttpResponse, StatusCodes}
+import akka.http.scaladsl.Http
+import akka.http.scaladsl.model.headers.{`Cache-Control`, CacheDirectives}
+import akka.http.scaladsl.model.{HttpRequest, HttpResponse, StatusCodes, Uri}
+import akka.http.scaladsl.settings.{ClientConnectionSettings, ConnectionPoolSettings}
 import akka.http.scaladsl.unmarshalling.Unmarshal
-import akka.stream.Materializer
+import akka.stream.{BoundedSourceQueue, Materializer, QueueOfferResult}
+import akka.stream.scaladsl.{Sink, Source}
 import cats.effect.IO
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.mdsol.mauth.http.HttpClient
+import com.mdsol.mauth.akka.http.MauthPublicKeyProvider.Fetched
+import com.mdsol.mauth.exception.HttpClientPublicKeyProviderException
 import com.mdsol.mauth.http.Implicits._
 import com.mdsol.mauth.models.UnsignedRequest
-import com.mdsol.mauth.scaladsl.utils.ClientPublicKeyProvider
-import com.mdsol.mauth.util.MAuthKeysHelper
+import com.mdsol.mauth.scaladsl.utils.{ClientPublicKeyProvider, SharedPublicKeyCache}
+import com.mdsol.mauth.utils.{KeyFetchCircuitBreaker, MAuthEndpoints, MappedFilePublicKeyCache, PublicKeySnapshot}
+import com.mdsol.mauth.util.{MAuthKeysHelper, MAuthPublicKey}
 import com.mdsol.mauth.{AuthenticatorConfiguration, MAuthRequestSigner}
 import com.typesafe.scalalogging.StrictLogging
 
 import java.net.URI
 import java.security.PublicKey
 import java.util.UUID
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 import scala.concurrent.duration.DurationLong
-import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.{blocking, ExecutionContext, Future, Promise}
+import scala.jdk.CollectionConverters._
 import scala.util.{Failure, Success, Try}
 
-class MauthPublicKeyProvider(configuration: AuthenticatorConfiguration, signer: MAuthRequestSigner)(implicit
+/** Fetches public keys from MAuth and caches them for the max-age returned by MAuth, or the configured time to live
+  * when there is none.
+  *
+  * Keys read after the refresh ahead ratio of their max-age are reloaded in the background, and keys past their
+  * max-age are still served for the stale-if-error period when they cannot be reloaded.
+  *
+  * When MAuth does not know the app, the failure is cached for the negative cache TTL, and after any other failed
+  * fetch for the min key fetch interval. Then the key is fetched again.
+  *
+  * With a key snapshot path configured, the cached keys are written to that file periodically. A new provider serves
+  * the keys of the snapshot that are still within their max-age straight away, and reloads the others in the
+  * background.
+  *
+  * Keys are looked up in the shared cache before they are fetched from MAuth, and the fetched keys are added to it, so
+  * that the JVMs sharing it fetch each key once. By default it is the memory-mapped file cache at the configured shared
+  * key cache path, if any.
+  *
+  * Keys are fetched from the fastest of the configured base URLs so far, and from the next ones when it fails. With a
+  * hedge delay configured, a fetch that is not answered within that delay is also sent to the next base URL, and the
+  * first answer is used.
+  *
+  * At most the key cache max size of keys are cached.
+  *
+  * Keys are fetched over a connection pool per base URL, of the key fetch pool size. At most the key fetch queue size
+  * of fetches wait for a connection, the others fail fast. A connection that receives nothing for the key fetch read
+  * timeout is closed, failing the fetch.
+  *
+  * While MAuth fails or too many keys are being fetched, the [[KeyFetchCircuitBreaker]] fails the fetches fast.
+  */
+class MauthPublicKeyProvider(
+  configuration: AuthenticatorConfiguration,
+  signer: MAuthRequestSigner,
+  sharedCache: Option[SharedPublicKeyCache[Future]] = None
+)(implicit
   ec: ExecutionContext,
   system: ActorSystem,
   materializer: Materializer
@@ -32,25 +75,324 @@ class MauthPublicKeyProvider(configuration: AuthenticatorConfiguration, signer:
 
   protected val mapper = new ObjectMapper
 
-  private val defaultCachingSettings = CachingSettings(system)
-  private val lfuCacheSettings = defaultCachingSettings.lfuCacheSettings.withTimeToLive(configuration.getTimeToLive.seconds)
-  private val cache = LfuCache.apply[UUID, Option[PublicKey]](defaultCachingSettings.withLfuCacheSettings(lfuCacheSettings))
+  // entries expire with their own time to live, the cache only bounds how many are kept
+  private val cache = {
+    val settings = CachingSettings(system)
+    val maxCapacity = math.max(1L, math.min(configuration.getKeyCacheMaxSize, Int.MaxValue.toLong)).toInt
+    val lfuSettings = settings.lfuCacheSettings
+      .withMaxCapacity(maxCapacity)
+      .withInitialCapacity(math.min(settings.lfuCacheSettings.initialCapacity, maxCapacity))
+    LfuCache.apply[UUID, CachedPublicKey](settings.withLfuCacheSettings(lfuSettings))
+  }
+  private val staleIfErrorNanos = TimeUnit.SECONDS.toNanos(configuration.getStaleIfErrorSeconds)
+  private val minRefreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getMinKeyFetchIntervalMillis)
+  private val negativeCacheTtlNanos = TimeUnit.SECONDS.toNanos(configuration.getNegativeCacheTtlSeconds)
+  private val refreshing = new ConcurrentHashMap[UUID, Future[CachedPublicKey]]()
+  private val snapshot = Option(configuration.getKeySnapshotPath.orElse(null)).map(new PublicKeySnapshot(_))
+  // the cache opened from the configuration when none is given, shared with the other providers of the file in the JVM
+  private val openedSharedCache =
+    if (sharedCache.isDefined) None else Option(MappedFilePublicKeyCache.fromConfiguration(configuration).orElse(null))
+  private val sharedKeyCache = sharedCache.orElse(openedSharedCache.map(SharedPublicKeyCache.future(_)))
+  private val endpoints = new MAuthEndpoints(configuration.getBaseUrls)
+  private val circuitBreaker = KeyFetchCircuitBreaker.fromConfiguration(configuration)
+  private val hostPools = new ConcurrentHashMap[String, BoundedSourceQueue[(HttpRequest, Promise[HttpResponse])]]()
+  private val poolSettings = {
+    val connectionSettings = ClientConnectionSettings(system)
+    val connectTimeout = configuration.getKeyFetchConnectTimeoutMillis
+    val readTimeout = configuration.getKeyFetchReadTimeoutMillis
+    // the pool has no read timeout: the idle timeout closes a connection that receives nothing for that long, which
+    // fails the fetch waiting on it
+    ConnectionPoolSettings(system)
+      .withMaxConnections(math.max(1, configuration.getKeyFetchPoolSize))
+      .withConnectionSettings(
+        connectionSettings
+          .withConnectingTimeout(if (connectTimeout > 0) connectTimeout.millis else connectionSettings.connectingTimeout)
+          .withIdleTimeout(if (readTimeout > 0) readTimeout.millis else connectionSettings.idleTimeout)
+      )
+  }
+
+  snapshot.foreach { keySnapshot =>
+    restoreSnapshot(keySnapshot)
+    val interval = configuration.getKeySnapshotIntervalSeconds
+    if (interval > 0) {
+      val _ = system.scheduler.scheduleWithFixedDelay(interval.seconds, interval.seconds)(() => snapshotKeys(keySnapshot))
+    }
+  }
 
   /** Returns the associated public key for a given application UUID.
     *
     * @param appUUID , UUID of the application for which we want to retrieve its public key.
     * @return { @link PublicKey} registered in MAuth for the application with given appUUID.
     */
-  override def getPublicKey(appUUID: UUID): Future[Option[PublicKey]] =
-    cache.getOrLoad(
-      appUUID,
-      _ => {
-        val signedRequest =
-          signer.signRequest(UnsignedRequest.noBody("GET", new URI(configuration.getBaseUrl + getRequestUrlPath(appUUID)), headers = Map.empty))
-        retrievePublicKey()(HttpClient.call(signedRequest.toAkkaHttpRequest))
+  override def getPublicKey(appUUID: UUID): Future[Option[PublicKey]] = {
+    expireFailure(appUUID)
+    cache.getOrLoad(appUUID, fetchPublicKey).flatMap { cached =>
+      val now = System.nanoTime()
+      val age = now - cached.fetchedAt
+      if (cached.publicKey.isEmpty) Future.successful(None)
+      else if (age >= cached.timeToLive) {
+        // only still cached for stale-if-error, keys restored from a snapshot may be past that as well
+        val stale = if (age < cached.timeToLive + staleIfErrorNanos) cached.publicKey else None
+        if (cached.claimRefresh(now, minRefreshIntervalNanos))
+          refresh(appUUID, cached).map(_.publicKey.orElse(stale)).recover { case _ => stale }
+        else Future.successful(stale)
+      } else {
+        if (age >= refreshAhead(cached.timeToLive) && cached.claimRefresh(now, minRefreshIntervalNanos))
+          refresh(appUUID, cached).failed.foreach(error => logger.warn(s"Public key refresh failed for app $appUUID", error))
+        Future.successful(cached.publicKey)
+      }
+    }
+  }
+
+  // a failed fetch is answered from the cache until it expires, then the key is fetched again
+  private def expireFailure(appUUID: UUID): Unit =
+    cache.getOptional(appUUID).flatMap(_.value) match {
+      case Some(Success(cached)) if cached.publicKey.isEmpty && System.nanoTime() - cached.fetchedAt >= cached.timeToLive => cache.remove(appUUID)
+      case _                                                                                                              => ()
+    }
+
+  private def refreshAhead(timeToLive: Long): Long =
+    if (configuration.getRefreshAheadRatio > 0 && configuration.getRefreshAheadRatio < 1) (timeToLive * configuration.getRefreshAheadRatio).toLong
+    else timeToLive
+
+  /** Fetch the public keys of the configured prefetch app UUIDs, at most prefetch concurrency at a time.
+    * Complete it before the service reports ready so that the first requests of known clients do not wait for MAuth.
+    *
+    * @return completed once the keys are cached, keys that cannot be fetched are logged and skipped
+    */
+  def warmUp(): Future[Done] = warmUp(configuration.getPrefetchAppUUIDs.asScala.toList)
+
+  def warmUp(appUUIDs: Seq[UUID]): Future[Done] =
+    Source(appUUIDs.toList)
+      .mapAsyncUnordered(math.max(1, configuration.getPrefetchConcurrency)) { appUUID =>
+        getPublicKey(appUUID).recover { case error =>
+          logger.warn(s"Unable to prefetch the public key of app $appUUID", error)
+          None
+        }
+      }
+      .runWith(Sink.ignore)
+
+  /** Write the cached public keys to the configured key snapshot path, if any.
+    * It runs periodically, run it on shutdown to keep the latest keys as well.
+    */
+  def writeSnapshot(): Future[Done] =
+    snapshot match {
+      case Some(keySnapshot) => Future(blocking(snapshotKeys(keySnapshot))).map(_ => Done)
+      case None              => Future.successful(Done)
+    }
+
+  /** Close the shared cache opened from the configuration, if any, on shutdown */
+  def close(): Unit = openedSharedCache.foreach(_.close())
+
+  private def snapshotKeys(keySnapshot: PublicKeySnapshot): Unit = {
+    val now = System.nanoTime()
+    val nowMillis = System.currentTimeMillis()
+    val entries = cache.keys.toList.flatMap { appUUID =>
+      cache.getOptional(appUUID).flatMap(_.value).flatMap(_.toOption).flatMap { cached =>
+        cached.publicKey.map { publicKey =>
+          new PublicKeySnapshot.Entry(
+            appUUID,
+            publicKey,
+            nowMillis - TimeUnit.NANOSECONDS.toMillis(now - cached.fetchedAt),
+            TimeUnit.NANOSECONDS.toSeconds(cached.timeToLive)
+          )
+        }
+      }
+    }
+    Try(keySnapshot.write(entries.asJava)).failed.foreach(error => logger.warn(s"Unable to write the public key snapshot ${keySnapshot.getPath}", error))
+  }
+
+  // serve the keys still within their max-age right away, reload the others in the background
+  private def restoreSnapshot(keySnapshot: PublicKeySnapshot): Unit = {
+    val now = System.nanoTime()
+    val nowMillis = System.currentTimeMillis()
+    keySnapshot.read().asScala.foreach { entry =>
+      val age = TimeUnit.MILLISECONDS.toNanos(entry.getAgeMillis(nowMillis))
+      val timeToLive = TimeUnit.SECONDS.toNanos(entry.getMaxAgeSeconds)
+      val restored =
+        if (age < timeToLive + staleIfErrorNanos)
+          cache.put(entry.getAppUUID, Future.successful(new CachedPublicKey(Some(entry.getPublicKey), now - age, timeToLive))).map(_ => Done)
+        else Future.successful(Done)
+      if (age >= timeToLive)
+        restored
+          .flatMap(_ => getPublicKey(entry.getAppUUID))
+          .failed
+          .foreach(error => logger.warn(s"Public key refresh failed for app ${entry.getAppUUID}", error))
+    }
+  }
+
+  private def fetchPublicKey(appUUID: UUID): Future[CachedPublicKey] =
+    getSharedPublicKey(appUUID).flatMap {
+      case Some(shared) => Future.successful(shared)
+      case None =>
+        Option(circuitBreaker.tryAcquire()) match {
+          case None =>
+            Future.failed(
+              new HttpClientPublicKeyProviderException(s"Not fetching the public key of app $appUUID, MAuth is failing or too many keys are being fetched")
+            )
+          case Some(permit) =>
+            val baseUrls = endpoints.byLatency().asScala.toList
+            val fetched = if (configuration.getHedgeDelayMillis > 0) fetchHedged(appUUID, baseUrls) else fetchInOrder(appUUID, baseUrls)
+            fetched
+              .andThen {
+                case Success(Fetched(_, true, _)) => permit.onSuccess()
+                case _                            => permit.onFailure()
+              }
+              .flatMap { result =>
+                sharePublicKey(appUUID, result).map(_ => new CachedPublicKey(result.publicKey, System.nanoTime(), result.timeToLive))
+              }
+        }
+    }
+
+  // try the base URLs one after the other, the fastest first, until one answers
+  private def fetchInOrder(appUUID: UUID, baseUrls: List[String]): Future[Fetched] =
+    baseUrls match {
+      case baseUrl :: others =>
+        fetchFrom(appUUID, baseUrl).flatMap {
+          case Fetched(_, false, _) if others.nonEmpty => fetchInOrder(appUUID, others)
+          case fetched                                 => Future.successful(fetched)
+        }
+      case Nil => Future.successful(Fetched(None, answered = false, minRefreshIntervalNanos))
+    }
 
+  // when the fetch is not answered within the hedge delay, or fails sooner, fetch from the next base URL as well (the
+  // same one when there is a single one), the first answer wins whichever fetch it comes from, else the last outcome
+  // is used
+  private def fetchHedged(appUUID: UUID, baseUrls: List[String]): Future[Fetched] = {
+    val primary = fetchInOrder(appUUID, baseUrls)
+    val hedgeDue = Promise[Unit]()
+    val hedgeTimer = system.scheduler.scheduleOnce(
+      configuration.getHedgeDelayMillis.millis,
+      new Runnable {
+        override def run(): Unit = {
+          val _ = hedgeDue.trySuccess(())
+        }
       }
     )
+    primary.onComplete {
+      case Success(fetched) if fetched.answered => val _ = hedgeTimer.cancel()
+      case _                                    => val _ = hedgeDue.trySuccess(())
+    }
+    val hedge = hedgeDue.future.flatMap { _ =>
+      if (primary.value.exists(_.toOption.exists(_.answered))) primary
+      else fetchInOrder(appUUID, if (baseUrls.size > 1) baseUrls.tail else baseUrls)
+    }
+    val result = Promise[Fetched]()
+    val pending = new AtomicInteger(2)
+    List(primary, hedge).foreach(_.onComplete {
+      case Success(fetched) if fetched.answered      => val _ = result.trySuccess(fetched)
+      case outcome if pending.decrementAndGet() == 0 => val _ = result.tryComplete(outcome)
+      case _                                         => ()
+    })
+    result.future
+  }
+
+  // MAuth answered unless it could not be reached or returned a server error, an unknown app is an answer as well
+  private def fetchFrom(appUUID: UUID, baseUrl: String): Future[Fetched] = {
+    val start = System.nanoTime()
+    Future
+      .fromTry(Try {
+        signer.signRequest(UnsignedRequest.noBody("GET", new URI(baseUrl + getRequestUrlPath(appUUID)), headers = Map.empty))
+      })
+      .flatMap { signedRequest =>
+        send(baseUrl, signedRequest.toAkkaHttpRequest).transformWith {
+          case Success(response) =>
+            retrievePublicKey()(Future.successful(response)).map { publicKey =>
+              Fetched(publicKey, answered = !response.status.isInstanceOf[StatusCodes.ServerError], timeToLive(response, publicKey))
+            }
+          case Failure(error) => retrievePublicKey()(Future.failed(error)).map(Fetched(_, answered = false, minRefreshIntervalNanos))
+        }
+      }
+      .map { fetched =>
+        if (fetched.answered) endpoints.recordLatency(baseUrl, System.nanoTime() - start) else endpoints.recordFailure(baseUrl)
+        fetched
+      }
+  }
+
+  // keys are cached for the max-age returned by MAuth, unknown apps for the negative cache TTL and other failures for
+  // the min key fetch interval
+  private def timeToLive(response: HttpResponse, publicKey: Option[PublicKey]): Long =
+    publicKey match {
+      case Some(_) =>
+        val maxAge = response.header[`Cache-Control`].flatMap(_.directives.collectFirst { case CacheDirectives.`max-age`(seconds) => seconds })
+        TimeUnit.SECONDS.toNanos(maxAge.getOrElse(configuration.getTimeToLive))
+      case None if response.status == StatusCodes.Unauthorized || response.status == StatusCodes.NotFound => negativeCacheTtlNanos
+      case None                                                                                           => minRefreshIntervalNanos
+    }
+
+  // the fetches to a base URL share a host connection pool, and fail fast when too many wait for a connection
+  private def send(baseUrl: String, request: HttpRequest): Future[HttpResponse] = {
+    val response = Promise[HttpResponse]()
+    hostPool(baseUrl).offer(request.withUri(request.uri.toRelative) -> response) match {
+      case QueueOfferResult.Enqueued => response.future
+      case QueueOfferResult.Dropped =>
+        Future.failed(new HttpClientPublicKeyProviderException(s"Too many public keys are being fetched from $baseUrl"))
+      case QueueOfferResult.Failure(error) => Future.failed(error)
+      case QueueOfferResult.QueueClosed =>
+        Future.failed(new HttpClientPublicKeyProviderException(s"The connection pool to $baseUrl is closed"))
+    }
+  }
+
+  private def hostPool(baseUrl: String): BoundedSourceQueue[(HttpRequest, Promise[HttpResponse])] =
+    hostPools.computeIfAbsent(
+      baseUrl,
+      { url =>
+        val uri = Uri(url)
+        val host = uri.authority.host.address
+        val pool =
+          if (uri.scheme == "https") Http().cachedHostConnectionPoolHttps[Promise[HttpResponse]](host, uri.effectivePort, settings = poolSettings)
+          else Http().cachedHostConnectionPool[Promise[HttpResponse]](host, uri.effectivePort, poolSettings)
+        Source
+          .queue[(HttpRequest, Promise[HttpResponse])](math.max(1, configuration.getKeyFetchQueueSize))
+          .via(pool)
+          .to(Sink.foreach { case (response, promise) =>
+            val _ = promise.tryComplete(response)
+          })
+          .run()
+      }
+    )
+
+  // a key of the shared cache is only used before the refresh ahead ratio, so that reloads do not get it back
+  private def getSharedPublicKey(appUUID: UUID): Future[Option[CachedPublicKey]] =
+    sharedKeyCache match {
+      case Some(shared) =>
+        shared
+          .get(appUUID)
+          .map(_.flatMap { entry =>
+            val age = TimeUnit.MILLISECONDS.toNanos(entry.getAgeMillis(System.currentTimeMillis()))
+            val timeToLive = TimeUnit.SECONDS.toNanos(entry.getMaxAgeSeconds)
+            if (age < refreshAhead(timeToLive)) Some(new CachedPublicKey(Some(entry.getPublicKey), System.nanoTime() - age, timeToLive)) else None
+          })
+          .recover { case error =>
+            logger.warn(s"Unable to read the public key of app $appUUID from the shared cache", error)
+            None
+          }
+      case None => Future.successful(None)
+    }
+
+  private def sharePublicKey(appUUID: UUID, fetched: Fetched): Future[Unit] =
+    (sharedKeyCache, fetched.publicKey) match {
+      case (Some(shared), Some(key)) =>
+        val entry = new PublicKeySnapshot.Entry(appUUID, key, System.currentTimeMillis(), TimeUnit.NANOSECONDS.toSeconds(fetched.timeToLive))
+        shared.put(entry).recover { case error =>
+          logger.warn(s"Unable to add the public key of app $appUUID to the shared cache", error)
+        }
+      case _ => Future.unit
+    }
+
+  // a failed reload keeps the current key
+  private def refresh(appUUID: UUID, current: CachedPublicKey): Future[CachedPublicKey] = {
+    val refreshed = refreshing.computeIfAbsent(
+      appUUID,
+      uuid =>
+        fetchPublicKey(uuid).flatMap { fetched =>
+          if (fetched.publicKey.isDefined || current.publicKey.isEmpty) cache.put(uuid, Future.successful(fetched)).map(_ => fetched)
+          else Future.successful(fetched)
+        }
+    )
+    refreshed.onComplete(_ => refreshing.remove(appUUID, refreshed))
+    refreshed
+  }
 
   def getPublicKeyIO(appUUID: UUID): IO[Option[PublicKey]] = IO.fromFuture(IO(getPublicKey(appUUID)))
 
@@ -61,7 +403,7 @@ class MauthPublicKeyProvider(configuration: AuthenticatorConfiguration, signer:
           .to[String]
           .map { body =>
             if (response.status == StatusCodes.OK) {
-              Try(MAuthKeysHelper.getPublicKeyFromString(mapper.readTree(body).findValue("public_key_str").asText)) match {
+              Try(MAuthPublicKey.of(MAuthKeysHelper.getPublicKeyFromString(mapper.readTree(body).findValue("public_key_str").asText))) match {
                 case Success(publicKey) => Some(publicKey)
                 case Failure(error) =>
                   logger.error("Converting string to Public Key failed", error)
@@ -85,4 +427,20 @@ class MauthPublicKeyProvider(configuration: AuthenticatorConfiguration, signer:
 
   protected def getRequestUrlPath(appUUID: UUID): String =
     configuration.getRequestUrlPath + String.format(configuration.getSecurityTokensUrlPath, appUUID.toString)
+
+  // the time to live is in nanoseconds, like the fetch time
+  private class CachedPublicKey(val publicKey: Option[PublicKey], val fetchedAt: Long, val timeToLive: Long) {
+    private val refreshNotBefore = new AtomicLong(fetchedAt)
+
+    def claimRefresh(now: Long, minInterval: Long): Boolean = {
+      val notBefore = refreshNotBefore.get
+      now - notBefore >= 0 && refreshNotBefore.compareAndSet(notBefore, now + minInterval)
+    }
+  }
+}
+
+object MauthPublicKeyProvider {
+
+  // the key fetched from a base URL, if MAuth answered at all, and how long it is cached in nanoseconds
+  private[http] final case class Fetched(publicKey: Option[PublicKey], answered: Boolean, timeToLive: Long)
 }
@@ -2,16 +2,15 @@ package com.mdsol.mauth.akka.http.utils
 
 import java.io.IOException
 import java.nio.charset.StandardCharsets
-import java.security.{MessageDigest, PublicKey}
+import java.security.PublicKey
 import java.util.UUID
 
 import com.mdsol.mauth.CryptoError
+import com.mdsol.mauth.util.{MAuthCryptoEngines, MAuthKeysHelper}
 import com.typesafe.scalalogging.StrictLogging
 import org.apache.commons.codec.binary.{Base64, Hex}
 import org.bouncycastle.crypto.InvalidCipherTextException
 import org.bouncycastle.crypto.encodings.PKCS1Encoding
-import org.bouncycastle.crypto.engines.RSAEngine
-import org.bouncycastle.crypto.util.PublicKeyFactory
 
 /** Signature engine for MAuth Specification. Currently only String
   * bodies (entities) are supported in MAuth
@@ -47,8 +46,8 @@ private[mauth] object MAuthSignatureEngine extends StrictLogging {
   def decryptFromBase64(encDigestBase64: String, publicKey: PublicKey): Either[CryptoError, Array[Byte]] = {
     try {
       val encryptedDigest: Array[Byte] = Base64.decodeBase64(encDigestBase64)
-      val decryptEngine: PKCS1Encoding = new PKCS1Encoding(new RSAEngine())
-      decryptEngine.init(false, PublicKeyFactory.createKey(publicKey.getEncoded))
+      val decryptEngine: PKCS1Encoding = MAuthCryptoEngines.pkcs1RsaEncoding()
+      decryptEngine.init(false, MAuthKeysHelper.getPublicKeyParameters(publicKey))
       val decryptedDigest: Array[Byte] = decryptEngine.processBlock(encryptedDigest, 0, encryptedDigest.length)
       Right(decryptedDigest)
     } catch {
@@ -82,10 +81,8 @@ private[mauth] object MAuthSignatureEngine extends StrictLogging {
     * @param signature String to be digested
     * @return Hex encoded digest string
     */
-  def getDigest(signature: String): Array[Byte] = {
-    val messageDigest = MessageDigest.getInstance("SHA-512", "BC")
-    messageDigest.digest(signature.getBytes(StandardCharsets.UTF_8))
-  }
+  def getDigest(signature: String): Array[Byte] =
+    MAuthCryptoEngines.sha512Digest().digest(signature.getBytes(StandardCharsets.UTF_8))
 
   /** Convenience method
     *
@@ -4,10 +4,12 @@ import java.security.Security
 import java.util.UUID
 
 import akka.http.scaladsl.model.headers.RawHeader
-import akka.http.scaladsl.model.{HttpResponse, StatusCodes}
+import akka.http.scaladsl.model.{ContentTypes, HttpEntity, HttpMethod, HttpMethods, HttpRequest, HttpResponse, RequestEntity, StatusCodes, Uri}
 import akka.http.scaladsl.server._
 import akka.http.scaladsl.testkit.ScalatestRouteTest
-import com.mdsol.mauth.MAuthRequest
+import akka.stream.scaladsl.Source
+import akka.util.ByteString
+import com.mdsol.mauth.{DefaultSigner, MAuthRequest, SignerConfiguration}
 import com.mdsol.mauth.http.{`X-MWS-Authentication`, `X-MWS-Time`}
 import com.mdsol.mauth.scaladsl.utils.ClientPublicKeyProvider
 import com.mdsol.mauth.test.utils.TestFixtures
@@ -20,6 +22,7 @@ import org.scalatest.wordspec.AnyWordSpec
 
 import scala.concurrent.Future
 import scala.concurrent.duration._
+import scala.jdk.CollectionConverters._
 
 class MAuthDirectivesSpec extends AnyWordSpec with Matchers with ScalatestRouteTest with MAuthDirectives with Directives with Inside with MockFactory {
 
@@ -148,6 +151,135 @@ class MAuthDirectivesSpec extends AnyWordSpec with Matchers with ScalatestRouteT
     }
   }
 
+  "authenticateStreaming" should {
+    lazy val route: Route = authenticateStreaming(bufferForV1Fallback = true)(authenticatorV2, timeout, requestValidationTimeout) {
+      entity(as[String])(body => complete(body))
+    }
+    val publicKey = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+    def streamed(body: String): RequestEntity =
+      HttpEntity.Chunked.fromData(ContentTypes.`text/plain(UTF-8)`, Source(List(body).filter(_.nonEmpty).map(ByteString(_))))
+
+    "pass successfully authenticated request with a streamed body" in {
+      (client.getPublicKey _).expects(appUuid).returns(Future(Some(publicKey)))
+      (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader)
+
+      Get("/")
+        .withEntity(streamed(""))
+        .withHeaders(
+          RawHeader(MAuthRequest.MCC_TIME_HEADER_NAME, timeHeader.toString),
+          RawHeader(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, authHeaderV2)
+        ) ~> route ~> check {
+        status shouldEqual StatusCodes.OK
+      }
+    }
+
+    "pass every successfully authenticated request with a streamed body, when the end of the body races the authentication" in {
+      (client.getPublicKey _).expects(appUuid).returns(Future(Some(publicKey))).repeated(50)
+      (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader).repeated(50)
+
+      (1 to 50).foreach { _ =>
+        Get("/")
+          .withEntity(streamed(""))
+          .withHeaders(
+            RawHeader(MAuthRequest.MCC_TIME_HEADER_NAME, timeHeader.toString),
+            RawHeader(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, authHeaderV2)
+          ) ~> route ~> check {
+          status shouldEqual StatusCodes.OK
+        }
+      }
+    }
+
+    "pass successfully authenticated request when the route does not read the body" in {
+      (client.getPublicKey _).expects(appUuid).returns(Future(Some(publicKey)))
+      (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader)
+
+      Get("/")
+        .withEntity(streamed(""))
+        .withHeaders(
+          RawHeader(MAuthRequest.MCC_TIME_HEADER_NAME, timeHeader.toString),
+          RawHeader(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, authHeaderV2)
+        ) ~> authenticateStreaming(bufferForV1Fallback = false)(authenticatorV2, timeout, requestValidationTimeout)(complete(HttpResponse())) ~> check {
+        status shouldEqual StatusCodes.OK
+      }
+    }
+
+    "reject if the streamed body does not match the signature" in {
+      (client.getPublicKey _).expects(appUuid).returns(Future(Some(publicKey)))
+      (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader)
+
+      Get("/")
+        .withEntity(streamed("tampered"))
+        .withHeaders(
+          RawHeader(MAuthRequest.MCC_TIME_HEADER_NAME, timeHeader.toString),
+          RawHeader(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, authHeaderV2)
+        ) ~> route ~> check {
+        inside(rejection) { case MdsolAuthFailedRejection => }
+      }
+    }
+
+    "reject if request validation timeout passed, though the time is within the request timeout" in {
+      (client.getPublicKey _).expects(*).never()
+      (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader)
+
+      Get("/")
+        .withEntity(streamed(""))
+        .withHeaders(
+          RawHeader(MAuthRequest.MCC_TIME_HEADER_NAME, (timeHeader - requestValidationTimeout.toSeconds - 10).toString),
+          RawHeader(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, authHeaderV2)
+        ) ~> route ~> check {
+        inside(rejection) { case MdsolAuthFailedRejection => }
+      }
+    }
+  }
+
+  "authenticate and authenticateStreaming" should {
+    val publicKey = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+    val signer = new DefaultSigner(
+      appUuid,
+      MAuthKeysHelper.getPrivateKeyFromString(TestFixtures.PRIVATE_KEY_1),
+      new EpochTimeProvider { override def inSeconds(): Long = timeHeader },
+      SignerConfiguration.ALL_SIGN_VERSIONS
+    )
+    val routes = Seq(
+      "authenticate" -> authenticate(authenticator, timeout, requestValidationTimeout)(complete(HttpResponse())),
+      "authenticateStreaming" -> authenticateStreaming(bufferForV1Fallback = true)(authenticator, timeout, requestValidationTimeout)(complete(HttpResponse()))
+    )
+    // the V2 headers are signed for v2Path, which fails the V2 authentication unless it is the path of the request
+    def bodiless(method: HttpMethod, v2Path: String): HttpRequest = {
+      val v1Headers = signer.generateRequestHeaders(method.value, "/", Array.emptyByteArray, "").asScala
+      val v2Headers = signer.generateRequestHeaders(method.value, v2Path, Array.emptyByteArray, "").asScala
+      HttpRequest(method, Uri("/")).withHeaders(
+        RawHeader(MAuthRequest.MCC_TIME_HEADER_NAME, v2Headers(MAuthRequest.MCC_TIME_HEADER_NAME)),
+        RawHeader(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, v2Headers(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME)),
+        RawHeader(MAuthRequest.X_MWS_TIME_HEADER_NAME, v1Headers(MAuthRequest.X_MWS_TIME_HEADER_NAME)),
+        RawHeader(MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME, v1Headers(MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME))
+      )
+    }
+
+    for {
+      (name, route) <- routes
+      method <- Seq(HttpMethods.GET, HttpMethods.HEAD, HttpMethods.DELETE)
+    } {
+      s"$name: pass successfully authenticated ${method.value} request without a body" in {
+        (client.getPublicKey _).expects(appUuid).returns(Future(Some(publicKey))).anyNumberOfTimes()
+        (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader).anyNumberOfTimes()
+
+        bodiless(method, "/") ~> route ~> check {
+          status shouldEqual StatusCodes.OK
+        }
+      }
+
+      s"$name: pass successfully authenticated ${method.value} request without a body, fallback to v1 if v2 failed" in {
+        (client.getPublicKey _).expects(appUuid).returns(Future(Some(publicKey))).anyNumberOfTimes()
+        (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(timeHeader).anyNumberOfTimes()
+
+        bodiless(method, "/other") ~> route ~> check {
+          status shouldEqual StatusCodes.OK
+        }
+      }
+    }
+  }
+
   "extractMwsTimeHeader" should {
     lazy val route =
       extractMwsTimeHeader(x => complete(x.toString))
@@ -2,11 +2,16 @@ package com.mdsol.mauth.akka.http
 
 import java.net.URI
 import java.security.Security
+import java.util.concurrent.TimeUnit
 import akka.actor.ActorSystem
+import com.github.tomakehurst.wiremock.WireMockServer
+import com.github.tomakehurst.wiremock.client.WireMock
+import com.github.tomakehurst.wiremock.stubbing.Scenario
 import cats.effect.unsafe.IORuntime
 import com.mdsol.mauth.models.{SignedRequest, UnsignedRequest}
 import com.mdsol.mauth.test.utils.{FakeMAuthServer, PortFinder}
 import com.mdsol.mauth.{AuthenticatorConfiguration, MAuthRequest, MAuthRequestSigner}
+import com.typesafe.config.ConfigFactory
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import org.scalamock.scalatest.MockFactory
 import org.scalatest.concurrent.{IntegrationPatience, ScalaFutures}
@@ -56,6 +61,36 @@ class MauthPublicKeyProviderSpec
 
   private def getMAuthConfiguration = new AuthenticatorConfiguration(MAUTH_BASE_URL, MAUTH_URL_PATH, SECURITY_TOKENS_PATH)
 
+  private def getMAuthConfiguration(settings: String) =
+    new AuthenticatorConfiguration(
+      ConfigFactory
+        .parseString(s"""mauth {
+                        |  base_url: "$MAUTH_BASE_URL"
+                        |  $settings
+                        |}""".stripMargin)
+        .withFallback(ConfigFactory.defaultReference())
+    )
+
+  private def getSigner: MAuthRequestSigner = {
+    val mockedSigner = mock[MAuthRequestSigner]
+    (mockedSigner
+      .signRequest(_: UnsignedRequest))
+      .expects(*)
+      .onCall { (request: UnsignedRequest) =>
+        SignedRequest(request, mauthHeaders = Map("not_testing_signer_behaviour" -> "So any header is ok"))
+      }
+      .anyNumberOfTimes()
+    mockedSigner
+  }
+
+  private def withInstances(fixedDelaysMillis: Int*)(test: Seq[WireMockServer] => Unit): Unit = {
+    val instances = fixedDelaysMillis.map(FakeMAuthServer.startInstance(PortFinder.findFreePort(), _))
+    try test(instances)
+    finally instances.foreach(_.stop())
+  }
+
+  private def baseUrlsSetting(baseUrls: String*): String = baseUrls.map(url => s""""$url"""").mkString("base_urls: [", ", ", "]")
+
   "MauthPublicKeyProvider" should {
     "retrieve PublicKey from MAuth Server" in {
       FakeMAuthServer.return200()
@@ -133,6 +168,91 @@ class MauthPublicKeyProviderSpec
         case None    =>
       }
     }
+    "fetch the key again once the cached failure expired" in {
+      val mockedSigner = mock[MAuthRequestSigner]
+      val unsignedRequest = UnsignedRequest(
+        "GET",
+        URI.create(MAUTH_BASE_URL + getRequestUrlPath(FakeMAuthServer.EXISTING_CLIENT_APP_UUID.toString)),
+        body = Array.empty,
+        headers = Map.empty
+      )
+      val mockedResponse = SignedRequest(
+        unsignedRequest,
+        mauthHeaders = Map(
+          "not_testing_signer_behaviour" -> "So any header is ok"
+        )
+      )
+      (mockedSigner.signRequest(_: UnsignedRequest)).expects(*).returns(mockedResponse).twice()
+      val configuration = new AuthenticatorConfiguration(
+        ConfigFactory
+          .parseString(s"""mauth {
+                          |  base_url: "$MAUTH_BASE_URL"
+                          |  negative_cache_ttl_seconds: 0
+                          |}""".stripMargin)
+          .withFallback(ConfigFactory.defaultReference())
+      )
+      val provider = new MauthPublicKeyProvider(configuration, mockedSigner)
+
+      // nothing is stubbed yet, MAuth does not know the app
+      provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe None
+      FakeMAuthServer.return200()
+      provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+      provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+    }
+    "cache the key for the max-age returned by MAuth" in {
+      WireMock.stubFor(
+        WireMock
+          .get(WireMock.urlPathEqualTo(getRequestUrlPath(FakeMAuthServer.EXISTING_CLIENT_APP_UUID.toString)))
+          .willReturn(WireMock.aResponse().withStatus(200).withBody(FakeMAuthServer.mockedMauthTokenResponse()).withHeader("Cache-Control", "max-age=1"))
+      )
+      WireMock.resetAllRequests()
+      val provider = new MauthPublicKeyProvider(getMAuthConfiguration("refresh_ahead_ratio: 1"), getSigner)
+
+      provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+      provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+      FakeMAuthServer.verifyNumberOfRequests(1)
+      Thread.sleep(1100)
+      provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+      FakeMAuthServer.verifyNumberOfRequests(2)
+    }
+    "use the answer of the hedged fetch when the first base URL is slow" in {
+      withInstances(3000, 0) { case Seq(slow, fast) =>
+        val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl(), fast.baseUrl())}
+                                                     |  hedge_delay_millis: 100""".stripMargin)
+        val start = System.nanoTime()
+        new MauthPublicKeyProvider(configuration, getSigner).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 2000L
+        FakeMAuthServer.verifyNumberOfRequests(slow, 1)
+        FakeMAuthServer.verifyNumberOfRequests(fast, 1)
+      }
+    }
+    "wait for the answer of the first base URL when the hedged fetch fails" in {
+      withInstances(1000, 0) { case Seq(slow, failing) =>
+        failing.stubFor(WireMock.get(WireMock.urlPathMatching("/mauth/v1/security_tokens/.*")).willReturn(WireMock.aResponse().withStatus(503)))
+        val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl(), failing.baseUrl())}
+                                                     |  hedge_delay_millis: 100""".stripMargin)
+        new MauthPublicKeyProvider(configuration, getSigner).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+        FakeMAuthServer.verifyNumberOfRequests(slow, 1)
+      }
+    }
+    "fetch again as soon as the first fetch fails, without waiting for the hedge delay" in {
+      withInstances(0) { case Seq(flaky) =>
+        flaky.stubFor(
+          WireMock
+            .get(WireMock.urlPathMatching("/mauth/v1/security_tokens/.*"))
+            .inScenario("flaky")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(WireMock.aResponse().withStatus(503))
+            .willSetStateTo("recovered")
+        )
+        val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(flaky.baseUrl())}
+                                                     |  hedge_delay_millis: 3000""".stripMargin)
+        val start = System.nanoTime()
+        new MauthPublicKeyProvider(configuration, getSigner).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).futureValue shouldBe defined
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 2000L
+        FakeMAuthServer.verifyNumberOfRequests(flaky, 2)
+      }
+    }
   }
 
 }
@@ -1,94 +1,609 @@
 package com.mdsol.mauth.apache;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
 import com.mdsol.mauth.AuthenticatorConfiguration;
 import com.mdsol.mauth.Signer;
 import com.mdsol.mauth.exception.HttpClientPublicKeyProviderException;
 import com.mdsol.mauth.util.MAuthKeysHelper;
+import com.mdsol.mauth.util.MAuthPublicKey;
 import com.mdsol.mauth.utils.ClientPublicKeyProvider;
+import com.mdsol.mauth.utils.KeyFetchCircuitBreaker;
+import com.mdsol.mauth.utils.MAuthEndpoints;
+import com.mdsol.mauth.utils.MappedFilePublicKeyCache;
+import com.mdsol.mauth.utils.PublicKeySnapshot;
+import com.mdsol.mauth.utils.SharedPublicKeyCache;
 
 import org.apache.http.*;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class HttpClientPublicKeyProvider implements ClientPublicKeyProvider {
+/**
+ * Fetches public keys from MAuth and caches them for the max-age returned by MAuth.
+ *
+ * App UUIDs that MAuth does not know (401 or 404) are cached as such for
+ * {@link AuthenticatorConfiguration#getNegativeCacheTtlSeconds()}, and after any other failed request to MAuth the key
+ * of that app UUID is not fetched again for {@link AuthenticatorConfiguration#getMinKeyFetchIntervalMillis()}. In both
+ * cases the failure is answered locally until the entry expires.
+ *
+ * Keys read after {@link AuthenticatorConfiguration#getRefreshAheadRatio()} of their max-age are reloaded in the
+ * background. Past their max-age, keys are kept for {@link AuthenticatorConfiguration#getStaleIfErrorSeconds()} and
+ * served while MAuth cannot be reached.
+ *
+ * With {@link AuthenticatorConfiguration#getKeySnapshotPath()} set, the cached keys are written to that file every
+ * {@link AuthenticatorConfiguration#getKeySnapshotIntervalSeconds()}. A new provider serves the keys of the snapshot
+ * that are still within their max-age straight away, and reloads the others in the background.
+ *
+ * Keys are looked up in a {@link SharedPublicKeyCache} before they are fetched from MAuth, and the fetched keys are
+ * added to it, so that the JVMs sharing it fetch each key once. By default it is the
+ * {@link MappedFilePublicKeyCache} at {@link AuthenticatorConfiguration#getSharedKeyCachePath()}, if set.
+ *
+ * Keys are fetched from the fastest of {@link AuthenticatorConfiguration#getBaseUrls()} so far, and from the next ones
+ * when it fails. With {@link AuthenticatorConfiguration#getHedgeDelayMillis()} set, a fetch that is not answered within
+ * that delay is also sent to the next base URL, and the first response is used.
+ *
+ * Keys are fetched on a pool of {@link AuthenticatorConfiguration#getKeyFetchPoolSize()} threads, each with its own
+ * pooled connection to MAuth, so {@link #getPublicKeyAsync(UUID)} does not block the caller while a key is fetched.
+ * While MAuth fails or too many keys are being fetched, the {@link KeyFetchCircuitBreaker} fails the fetches fast.
+ *
+ * Close the provider on shutdown to stop its threads and close its connections to MAuth, and the shared cache it opened.
+ */
+public class HttpClientPublicKeyProvider implements ClientPublicKeyProvider, AutoCloseable {
 
   private static final Logger logger = LoggerFactory.getLogger(HttpClientPublicKeyProvider.class);
 
   private final AuthenticatorConfiguration configuration;
   private final Signer signer;
   private final CloseableHttpClient httpclient;
+  private final Executor fetchExecutor;
   private final PublicKeyResponseHandler publicKeyResponseHandler;
-  private final LoadingCache<UUID, PublicKeyData> publicKeyCache;
+  private final Ticker ticker;
+  private final long staleIfErrorNanos;
+  private final AsyncLoadingCache<UUID, PublicKeyData> publicKeyCache;
+  private final PublicKeySnapshot snapshot;
+  private final SharedPublicKeyCache sharedCache;
+  private final boolean closeSharedCache;
+  private final MAuthEndpoints endpoints;
+  private final ExecutorService hedgeExecutor;
+  private final ScheduledExecutorService snapshotScheduler;
+  private final KeyFetchCircuitBreaker circuitBreaker;
 
   public HttpClientPublicKeyProvider(AuthenticatorConfiguration configuration, Signer signer) {
+    this(configuration, signer, Ticker.systemTicker(), newFetchExecutor(configuration));
+  }
+
+  /**
+   * @param configuration the authenticator configuration
+   * @param signer the signer of the requests to MAuth
+   * @param sharedCache the cache shared with other JVMs, consulted before MAuth, or null for none
+   */
+  public HttpClientPublicKeyProvider(AuthenticatorConfiguration configuration, Signer signer, SharedPublicKeyCache sharedCache) {
+    this(configuration, signer, sharedCache, Ticker.systemTicker(), newFetchExecutor(configuration));
+  }
+
+  HttpClientPublicKeyProvider(AuthenticatorConfiguration configuration, Signer signer, Ticker ticker, Executor fetchExecutor) {
+    this(configuration, signer, MappedFilePublicKeyCache.fromConfiguration(configuration).orElse(null), true, ticker, fetchExecutor);
+  }
+
+  HttpClientPublicKeyProvider(AuthenticatorConfiguration configuration, Signer signer, SharedPublicKeyCache sharedCache, Ticker ticker,
+      Executor fetchExecutor) {
+    this(configuration, signer, sharedCache, false, ticker, fetchExecutor);
+  }
+
+  // the shared cache is closed with the provider when the provider opened it
+  private HttpClientPublicKeyProvider(AuthenticatorConfiguration configuration, Signer signer, SharedPublicKeyCache sharedCache,
+      boolean closeSharedCache, Ticker ticker, Executor fetchExecutor) {
     this.configuration = configuration;
     this.signer = signer;
-    this.httpclient = HttpClients.createDefault();
+    this.sharedCache = sharedCache;
+    this.closeSharedCache = closeSharedCache;
+    this.endpoints = new MAuthEndpoints(configuration.getBaseUrls());
+    this.circuitBreaker = KeyFetchCircuitBreaker.fromConfiguration(configuration);
+    this.hedgeExecutor = configuration.getHedgeDelayMillis() > 0 ? newHedgeExecutor(configuration) : null;
+    this.httpclient = createHttpClient(configuration);
+    this.fetchExecutor = fetchExecutor;
     this.publicKeyResponseHandler = new PublicKeyResponseHandler();
-    this.publicKeyCache = setupCache();
+    this.ticker = ticker;
+    this.staleIfErrorNanos = TimeUnit.SECONDS.toNanos(configuration.getStaleIfErrorSeconds());
+    this.publicKeyCache = setupCache(fetchExecutor);
+    this.snapshot = configuration.getKeySnapshotPath().map(PublicKeySnapshot::new).orElse(null);
+    if (snapshot != null) {
+      restoreSnapshot();
+    }
+    this.snapshotScheduler = snapshot != null ? scheduleSnapshots() : null;
+  }
+
+  private static CloseableHttpClient createHttpClient(AuthenticatorConfiguration configuration) {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(Math.max(1, configuration.getKeyFetchPoolSize()));
+    connectionManager.setDefaultMaxPerRoute(Math.max(1, configuration.getKeyFetchPoolSize()));
+    int connectTimeout = (int) configuration.getKeyFetchConnectTimeoutMillis();
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectTimeout)
+        .setConnectionRequestTimeout(connectTimeout)
+        .setSocketTimeout((int) configuration.getKeyFetchReadTimeoutMillis())
+        .build();
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .build();
+  }
+
+  private static ExecutorService newFetchExecutor(AuthenticatorConfiguration configuration) {
+    return Executors.newFixedThreadPool(Math.max(1, configuration.getKeyFetchPoolSize()), daemonThreads("mauth-key-fetch"));
+  }
+
+  // Bounded to a request per base URL and one more for each pooled fetch, the fetch thread sends any further request itself
+  private static ExecutorService newHedgeExecutor(AuthenticatorConfiguration configuration) {
+    int maxThreads = Math.max(1, configuration.getKeyFetchPoolSize()) * (configuration.getBaseUrls().size() + 1);
+    return new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+        daemonThreads("mauth-key-hedge"), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    AtomicInteger threads = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
   }
 
-  private LoadingCache<UUID, PublicKeyData> setupCache() {
+  private AsyncLoadingCache<UUID, PublicKeyData> setupCache(Executor fetchExecutor) {
     return Caffeine.newBuilder()
+        .ticker(ticker)
+        .executor(fetchExecutor)
         .expireAfter(new Expiry<UUID, PublicKeyData>() {
           public long expireAfterCreate(UUID key, PublicKeyData data, long currentTime) {
-            return TimeUnit.SECONDS.toNanos(data.getMaxAgeSeconds());
+            if (data.getPublicKey() == null) {
+              return data.getTimeToLiveNanos();
+            }
+            // keys restored from a snapshot were fetched before they were cached
+            return Math.max(0L, data.getFetchedAtNanos() + data.getTimeToLiveNanos() + staleIfErrorNanos - currentTime);
           }
           public long expireAfterUpdate(UUID key, PublicKeyData data, long currentTime, long currentDuration) {
-            return currentDuration;
+            // a refreshed key starts a new max-age
+            return expireAfterCreate(key, data, currentTime);
           }
           public long expireAfterRead(UUID key, PublicKeyData data, long currentTime, long currentDuration) {
             return currentDuration;
           }
         })
-        .build(this::getPublicKeyFromMauth);
+        .buildAsync(new CacheLoader<UUID, PublicKeyData>() {
+          @Override
+          public PublicKeyData load(UUID appUUID) {
+            return getPublicKeyFromMauth(appUUID);
+          }
+
+          // a failed reload keeps the current key
+          @Override
+          public PublicKeyData reload(UUID appUUID, PublicKeyData oldValue) {
+            PublicKeyData data = fetchPublicKey(appUUID);
+            // MAuth no longer knowing the app does not replace the key either, it is dropped once it expires
+            return data.getPublicKey() == null && oldValue.getPublicKey() != null ? oldValue : data;
+          }
+        });
   }
 
   private PublicKeyData getPublicKeyFromMauth(UUID appUUID) {
+    try {
+      return fetchPublicKey(appUUID);
+    } catch (HttpClientPublicKeyProviderException ex) {
+      if (configuration.getMinKeyFetchIntervalMillis() <= 0) {
+        throw ex;
+      }
+      return PublicKeyData.failure(ex.getMessage(), ex, TimeUnit.MILLISECONDS.toNanos(configuration.getMinKeyFetchIntervalMillis()));
+    }
+  }
+
+  private PublicKeyData fetchPublicKey(UUID appUUID) {
+    PublicKeyData shared = getSharedPublicKey(appUUID);
+    if (shared != null) {
+      return shared;
+    }
+    // the request is only signed once the breaker lets the fetch through
+    KeyFetchCircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+    if (permit == null) {
+      throw new HttpClientPublicKeyProviderException("Not fetching the public key of app " + appUUID
+          + ", MAuth is failing or too many keys are being fetched");
+    }
     byte[] payload = new byte[0];
     String requestUrlPath = getRequestUrlPath(appUUID);
-    Map<String, String> headers = signer.generateRequestHeaders("GET", requestUrlPath, payload, "");
-    String requestUrl = configuration.getBaseUrl() + requestUrlPath;
-    return get(requestUrl, headers, publicKeyResponseHandler);
+    Map<String, String> headers;
+    try {
+      headers = signer.generateRequestHeaders("GET", requestUrlPath, payload, "");
+    } catch (RuntimeException ex) {
+      permit.release();
+      throw ex;
+    }
+    PublicKeyData data;
+    try {
+      data = hedgeExecutor != null
+          ? fetchHedged(requestUrlPath, headers)
+          : fetchInOrder(requestUrlPath, headers);
+      permit.onSuccess();
+    } catch (UnknownAppException ex) {
+      permit.onSuccess();
+      throw ex;
+    } catch (RuntimeException ex) {
+      permit.onFailure();
+      throw ex;
+    }
+    if (sharedCache != null && data.getPublicKey() != null) {
+      try {
+        sharedCache.put(toEntry(appUUID, data, ticker.read(), System.currentTimeMillis()));
+      } catch (RuntimeException ex) {
+        logger.warn("Unable to add the public key of app " + appUUID + " to the shared cache", ex);
+      }
+    }
+    return data;
+  }
+
+  // Try the base URLs one after the other, the fastest first, until one answers
+  private PublicKeyData fetchInOrder(String requestUrlPath, Map<String, String> headers) {
+    HttpClientPublicKeyProviderException failure = null;
+    for (String baseUrl : endpoints.byLatency()) {
+      try {
+        return fetchFrom(baseUrl, newHttpGet(baseUrl + requestUrlPath, headers));
+      } catch (UnknownAppException ex) {
+        throw ex;
+      } catch (HttpClientPublicKeyProviderException ex) {
+        failure = ex;
+      }
+    }
+    throw failure;
+  }
+
+  // Send the request to the next base URL when the current ones fail, or once when they do not answer within the hedge
+  // delay. The first response wins, and the requests still running are aborted.
+  private PublicKeyData fetchHedged(String requestUrlPath, Map<String, String> headers) {
+    List<String> baseUrls = endpoints.byLatency();
+    CompletionService<PublicKeyData> fetches = new ExecutorCompletionService<>(hedgeExecutor);
+    List<HttpGet> requests = new ArrayList<>();
+    HttpClientPublicKeyProviderException failure = null;
+    int next = 0;
+    int pending = 0;
+    boolean hedged = false;
+    try {
+      submit(fetches, requests, baseUrls.get(next++), requestUrlPath, headers);
+      pending++;
+      while (pending > 0) {
+        Future<PublicKeyData> done = hedged
+            ? fetches.take()
+            : fetches.poll(configuration.getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+        if (done == null) {
+          // with a single base URL the hedged request goes to the same one
+          hedged = true;
+          submit(fetches, requests, baseUrls.get(next < baseUrls.size() ? next++ : 0), requestUrlPath, headers);
+          pending++;
+          continue;
+        }
+        pending--;
+        try {
+          return done.get();
+        } catch (ExecutionException ex) {
+          if (ex.getCause() instanceof UnknownAppException) {
+            throw (UnknownAppException) ex.getCause();
+          }
+          failure = ex.getCause() instanceof HttpClientPublicKeyProviderException
+              ? (HttpClientPublicKeyProviderException) ex.getCause()
+              : new HttpClientPublicKeyProviderException(ex.getCause());
+          if (next < baseUrls.size()) {
+            submit(fetches, requests, baseUrls.get(next++), requestUrlPath, headers);
+            pending++;
+          }
+        }
+      }
+      throw failure;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new HttpClientPublicKeyProviderException(ex);
+    } finally {
+      requests.forEach(HttpGet::abort);
+    }
+  }
+
+  private void submit(CompletionService<PublicKeyData> fetches, List<HttpGet> requests, String baseUrl, String requestUrlPath,
+      Map<String, String> headers) {
+    HttpGet httpGet = newHttpGet(baseUrl + requestUrlPath, headers);
+    requests.add(httpGet);
+    fetches.submit(() -> fetchFrom(baseUrl, httpGet));
+  }
+
+  // An aborted request lost to a faster base URL, so its wait counts as its latency rather than as a failure, and so
+  // does an answer for an unknown app
+  private PublicKeyData fetchFrom(String baseUrl, HttpGet httpGet) {
+    long start = System.nanoTime();
+    try {
+      PublicKeyData data = execute(httpGet, publicKeyResponseHandler);
+      endpoints.recordLatency(baseUrl, System.nanoTime() - start);
+      return data;
+    } catch (RuntimeException ex) {
+      if (httpGet.isAborted() || ex instanceof UnknownAppException) {
+        endpoints.recordLatency(baseUrl, System.nanoTime() - start);
+      } else {
+        endpoints.recordFailure(baseUrl);
+      }
+      throw ex;
+    }
+  }
+
+  // A key of the shared cache is only used before its refresh ahead ratio, so that reloads do not get it back
+  private PublicKeyData getSharedPublicKey(UUID appUUID) {
+    if (sharedCache == null) {
+      return null;
+    }
+    try {
+      Optional<PublicKeySnapshot.Entry> entry = sharedCache.get(appUUID);
+      if (entry.isPresent()) {
+        long ageMillis = entry.get().getAgeMillis(System.currentTimeMillis());
+        long maxAgeMillis = TimeUnit.SECONDS.toMillis(entry.get().getMaxAgeSeconds());
+        double refreshAheadRatio = configuration.getRefreshAheadRatio();
+        if (ageMillis < (refreshAheadRatio > 0 && refreshAheadRatio < 1 ? maxAgeMillis * refreshAheadRatio : maxAgeMillis)) {
+          return PublicKeyData.of(entry.get().getPublicKey(), entry.get().getMaxAgeSeconds(),
+              ticker.read() - TimeUnit.MILLISECONDS.toNanos(ageMillis));
+        }
+      }
+    } catch (RuntimeException ex) {
+      logger.warn("Unable to read the public key of app " + appUUID + " from the shared cache", ex);
+    }
+    return null;
   }
 
   @Override
   public PublicKey getPublicKey(UUID appUUID) {
-    return publicKeyCache.get(appUUID).getPublicKey();
+    try {
+      return getPublicKeyAsync(appUUID).join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new HttpClientPublicKeyProviderException(ex.getCause());
+    }
+  }
+
+  /**
+   * Returns the public key of the app UUID without blocking the caller while it is fetched from MAuth.
+   *
+   * @param appUUID the app UUID of the key
+   * @return completed with the key, or with a {@link HttpClientPublicKeyProviderException} when it cannot be fetched
+   */
+  public CompletableFuture<PublicKey> getPublicKeyAsync(UUID appUUID) {
+    CompletableFuture<PublicKeyData> loading = publicKeyCache.get(appUUID);
+    return loading.whenComplete((data, error) -> {
+      // failed fetches are not cached, drop it before the caller sees the failure so that the next call fetches again
+      if (error != null) {
+        publicKeyCache.asMap().remove(appUUID, loading);
+      }
+    }).thenCompose(data -> {
+      if (data.getPublicKey() == null) {
+        throw new HttpClientPublicKeyProviderException(data.getFailureMessage(), data.getFailureCause());
+      }
+      long now = ticker.read();
+      long age = now - data.getFetchedAtNanos();
+      if (age >= data.getTimeToLiveNanos()) {
+        return getStalePublicKey(appUUID, data, now);
+      }
+      double refreshAheadRatio = configuration.getRefreshAheadRatio();
+      if (refreshAheadRatio > 0 && refreshAheadRatio < 1 && age >= data.getTimeToLiveNanos() * refreshAheadRatio
+          && claimRefresh(data, now)) {
+        publicKeyCache.synchronous().refresh(appUUID);
+      }
+      return CompletableFuture.completedFuture(data.getPublicKey());
+    });
+  }
+
+  /**
+   * Fetch the public keys of {@link AuthenticatorConfiguration#getPrefetchAppUUIDs()}, at most
+   * {@link AuthenticatorConfiguration#getPrefetchConcurrency()} at a time, and wait until they are cached.
+   * Call it before the service reports ready so that the first requests of known clients do not wait for MAuth.
+   */
+  public void warmUp() {
+    warmUp(configuration.getPrefetchAppUUIDs());
+  }
+
+  /**
+   * Fetch the public keys of the given app UUIDs, see {@link #warmUp()}.
+   * Keys that cannot be fetched are logged and skipped.
+   *
+   * @param appUUIDs the app UUIDs whose public keys are fetched
+   */
+  public void warmUp(Collection<UUID> appUUIDs) {
+    if (appUUIDs.isEmpty()) {
+      return;
+    }
+    // fetched on the fetch executor, the permits bound how many of them are fetched at a time
+    Semaphore permits = new Semaphore(Math.max(1, configuration.getPrefetchConcurrency()));
+    List<CompletableFuture<?>> fetches = new ArrayList<>(appUUIDs.size());
+    for (UUID appUUID : appUUIDs) {
+      permits.acquireUninterruptibly();
+      CompletableFuture<PublicKey> fetch;
+      try {
+        fetch = getPublicKeyAsync(appUUID);
+      } catch (RuntimeException ex) {
+        fetch = new CompletableFuture<>();
+        fetch.completeExceptionally(ex);
+      }
+      fetches.add(fetch.handle((publicKey, error) -> {
+        permits.release();
+        if (error != null) {
+          Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+          logger.warn("Unable to prefetch the public key of app " + appUUID, cause);
+        }
+        return null;
+      }));
+    }
+    CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0])).join();
+  }
+
+  /**
+   * Write the cached public keys to {@link AuthenticatorConfiguration#getKeySnapshotPath()}, if it is set.
+   * It runs periodically, call it on shutdown to keep the latest keys as well.
+   */
+  public void writeSnapshot() {
+    if (snapshot == null) {
+      return;
+    }
+    long now = ticker.read();
+    long nowMillis = System.currentTimeMillis();
+    List<PublicKeySnapshot.Entry> entries = new ArrayList<>();
+    publicKeyCache.synchronous().asMap().forEach((appUUID, data) -> {
+      if (data.getPublicKey() != null) {
+        entries.add(toEntry(appUUID, data, now, nowMillis));
+      }
+    });
+    try {
+      snapshot.write(entries);
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Unable to write the public key snapshot " + snapshot.getPath(), ex);
+    }
+  }
+
+  private static PublicKeySnapshot.Entry toEntry(UUID appUUID, PublicKeyData data, long now, long nowMillis) {
+    long fetchedAtMillis = nowMillis - TimeUnit.NANOSECONDS.toMillis(now - data.getFetchedAtNanos());
+    return new PublicKeySnapshot.Entry(appUUID, data.getPublicKey(), fetchedAtMillis, TimeUnit.NANOSECONDS.toSeconds(data.getTimeToLiveNanos()));
+  }
+
+  // Serve the keys still within their max-age (or stale-if-error) right away, reload the others in the background
+  private void restoreSnapshot() {
+    long now = ticker.read();
+    long nowMillis = System.currentTimeMillis();
+    for (PublicKeySnapshot.Entry entry : snapshot.read()) {
+      long ageNanos = TimeUnit.MILLISECONDS.toNanos(entry.getAgeMillis(nowMillis));
+      long timeToLiveNanos = TimeUnit.SECONDS.toNanos(entry.getMaxAgeSeconds());
+      if (ageNanos < timeToLiveNanos + staleIfErrorNanos) {
+        publicKeyCache.synchronous().put(entry.getAppUUID(),
+            PublicKeyData.of(entry.getPublicKey(), entry.getMaxAgeSeconds(), now - ageNanos));
+      }
+      if (ageNanos >= timeToLiveNanos) {
+        publicKeyCache.synchronous().refresh(entry.getAppUUID());
+      }
+    }
+  }
+
+  /**
+   * Stop fetching keys in the background and close the connections to MAuth. Only the cached keys are served afterwards.
+   */
+  @Override
+  public void close() {
+    if (fetchExecutor instanceof ExecutorService) {
+      ((ExecutorService) fetchExecutor).shutdown();
+    }
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdown();
+    }
+    if (snapshotScheduler != null) {
+      snapshotScheduler.shutdown();
+    }
+    try {
+      httpclient.close();
+    } catch (IOException ex) {
+      logger.warn("Unable to close the connections to MAuth", ex);
+    }
+    if (closeSharedCache && sharedCache instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) sharedCache).close();
+      } catch (Exception ex) {
+        logger.warn("Unable to close the shared public key cache", ex);
+      }
+    }
+  }
+
+  private ScheduledExecutorService scheduleSnapshots() {
+    long interval = configuration.getKeySnapshotIntervalSeconds();
+    if (interval <= 0) {
+      return null;
+    }
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("mauth-key-snapshot"));
+    scheduler.scheduleWithFixedDelay(this::writeSnapshot, interval, interval, TimeUnit.SECONDS);
+    return scheduler;
+  }
+
+  // The key is past its max-age and only cached for stale-if-error: reload it, and serve the stale key if that fails
+  private CompletableFuture<PublicKey> getStalePublicKey(UUID appUUID, PublicKeyData stale, long now) {
+    if (!claimRefresh(stale, now)) {
+      return CompletableFuture.completedFuture(stale.getPublicKey());
+    }
+    return publicKeyCache.synchronous().refresh(appUUID).handle((refreshed, error) -> {
+      if (error != null) {
+        logger.warn("Public key refresh failed, serving a stale public key for app " + appUUID,
+            error instanceof CompletionException ? error.getCause() : error);
+        return stale.getPublicKey();
+      }
+      if (refreshed.getPublicKey() == null) {
+        throw new HttpClientPublicKeyProviderException(refreshed.getFailureMessage(), refreshed.getFailureCause());
+      }
+      return refreshed.getPublicKey();
+    });
+  }
+
+  // A failed reload keeps the current key, so reload it at most once per minimum fetch interval
+  private boolean claimRefresh(PublicKeyData data, long now) {
+    long notBefore = data.refreshNotBeforeNanos.get();
+    return now - notBefore >= 0
+        && data.refreshNotBeforeNanos.compareAndSet(notBefore, now + TimeUnit.MILLISECONDS.toNanos(configuration.getMinKeyFetchIntervalMillis()));
   }
 
   private String getRequestUrlPath(UUID appUUID) {
     return configuration.getRequestUrlPath() + String.format(configuration.getSecurityTokensUrlPath(), appUUID.toString());
   }
 
-  private <T> T get(String url, Map<String, String> headers, ResponseHandler<T> responseHandler) {
+  private static HttpGet newHttpGet(String url, Map<String, String> headers) {
+    HttpGet httpGet = new HttpGet(url);
+    for (Entry<String, String> header : headers.entrySet()) {
+      httpGet.addHeader(header.getKey(), header.getValue());
+    }
+    return httpGet;
+  }
+
+  private <T> T execute(HttpGet httpGet, ResponseHandler<T> responseHandler) {
     try {
-      HttpGet httpGet = new HttpGet(url);
-      for (Entry<String, String> header : headers.entrySet()) {
-        httpGet.addHeader(header.getKey(), header.getValue());
-      }
       return httpclient.execute(httpGet, responseHandler);
     } catch (IOException ex) {
-      logger.error("Public key retrieval error", ex);
+      if (!httpGet.isAborted()) {
+        logger.error("Public key retrieval error", ex);
+      }
       throw new HttpClientPublicKeyProviderException(ex);
     }
   }
@@ -96,22 +611,42 @@ public class HttpClientPublicKeyProvider implements ClientPublicKeyProvider {
   private class PublicKeyResponseHandler implements ResponseHandler<PublicKeyData> {
     private static final String MAX_AGE = "max-age";
     private static final String PUBLIC_KEY_STR = "public_key_str";
+    private final JsonFactory jsonFactory = new JsonFactory();
 
     @Override
     public PublicKeyData handleResponse(HttpResponse response) throws IOException {
       if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
         Long timeToLive = getMaxAge(response).orElse(configuration.getTimeToLive());
 
-        HttpEntity entity = response.getEntity();
-        String responseAsString = EntityUtils.toString(entity, StandardCharsets.UTF_8);
-        ObjectMapper mapper = new ObjectMapper();
-        String publicKeyString = mapper.readTree(responseAsString).findValue(PUBLIC_KEY_STR).asText();
+        String publicKeyString = readPublicKeyString(response.getEntity());
 
-        return new PublicKeyData(MAuthKeysHelper.getPublicKeyFromString(publicKeyString), timeToLive);
+        return PublicKeyData.of(MAuthPublicKey.of(MAuthKeysHelper.getPublicKeyFromString(publicKeyString)), timeToLive, ticker.read());
       } else {
-        throw new HttpClientPublicKeyProviderException("Invalid response code returned by server: "
-          + response.getStatusLine().getStatusCode());
+        int statusCode = response.getStatusLine().getStatusCode();
+        String message = "Invalid response code returned by server: " + statusCode;
+        if (isUnknownApp(statusCode) && configuration.getNegativeCacheTtlSeconds() > 0) {
+          return PublicKeyData.failure(message, null, TimeUnit.SECONDS.toNanos(configuration.getNegativeCacheTtlSeconds()));
+        }
+        throw isUnknownApp(statusCode) ? new UnknownAppException(message) : new HttpClientPublicKeyProviderException(message);
+      }
+    }
+
+    // streams the response up to the key instead of reading it into a tree
+    private String readPublicKeyString(HttpEntity entity) throws IOException {
+      try (InputStream content = entity.getContent(); JsonParser parser = jsonFactory.createParser(content)) {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+          if (token == JsonToken.FIELD_NAME && PUBLIC_KEY_STR.equals(parser.currentName())) {
+            parser.nextToken();
+            return parser.getValueAsString();
+          }
+        }
       }
+      throw new HttpClientPublicKeyProviderException("No " + PUBLIC_KEY_STR + " in the response of MAuth");
+    }
+
+    private boolean isUnknownApp(int statusCode) {
+      return statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_NOT_FOUND;
     }
 
     public Optional<Long> getMaxAge(HttpResponse response) {
@@ -124,21 +659,59 @@ public class HttpClientPublicKeyProvider implements ClientPublicKeyProvider {
     }
   }
 
+  // MAuth answered, so it is neither retried on another base URL nor counted as a failure by the circuit breaker
+  private static class UnknownAppException extends HttpClientPublicKeyProviderException {
+    private static final long serialVersionUID = 1L;
+
+    UnknownAppException(String message) {
+      super(message);
+    }
+  }
+
   private static class PublicKeyData {
     private final PublicKey publicKey;
-    private final Long maxAgeSeconds;
+    private final long fetchedAtNanos;
+    private final long timeToLiveNanos;
+    private final String failureMessage;
+    private final Throwable failureCause;
+    private final AtomicLong refreshNotBeforeNanos;
 
-    public PublicKeyData(PublicKey publicKey, Long maxAgeSeconds) {
+    private PublicKeyData(PublicKey publicKey, long fetchedAtNanos, long timeToLiveNanos, String failureMessage, Throwable failureCause) {
       this.publicKey = publicKey;
-      this.maxAgeSeconds = maxAgeSeconds;
+      this.fetchedAtNanos = fetchedAtNanos;
+      this.refreshNotBeforeNanos = new AtomicLong(fetchedAtNanos);
+      this.timeToLiveNanos = timeToLiveNanos;
+      this.failureMessage = failureMessage;
+      this.failureCause = failureCause;
+    }
+
+    static PublicKeyData of(PublicKey publicKey, long maxAgeSeconds, long fetchedAtNanos) {
+      return new PublicKeyData(publicKey, fetchedAtNanos, TimeUnit.SECONDS.toNanos(maxAgeSeconds), null, null);
+    }
+
+    // a failed fetch answered from the cache until it expires
+    static PublicKeyData failure(String message, Throwable cause, long timeToLiveNanos) {
+      return new PublicKeyData(null, 0L, timeToLiveNanos, message, cause);
     }
 
     public PublicKey getPublicKey() {
       return publicKey;
     }
 
-    public Long getMaxAgeSeconds() {
-      return maxAgeSeconds;
+    public long getFetchedAtNanos() {
+      return fetchedAtNanos;
+    }
+
+    public long getTimeToLiveNanos() {
+      return timeToLiveNanos;
+    }
+
+    public String getFailureMessage() {
+      return failureMessage;
+    }
+
+    public Throwable getFailureCause() {
+      return failureCause;
     }
   }
 
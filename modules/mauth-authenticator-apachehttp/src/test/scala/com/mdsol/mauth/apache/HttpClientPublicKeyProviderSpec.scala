@@ -1,14 +1,21 @@
 package com.mdsol.mauth.apache
 
+import java.nio.file.Files
 import java.security.Security
 import java.util
+import java.util.{Optional, UUID}
+import java.util.concurrent.{CompletionException, ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
 
+import com.github.benmanes.caffeine.cache.Ticker
+import com.github.tomakehurst.wiremock.WireMockServer
 import com.github.tomakehurst.wiremock.client.WireMock
 import com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor
 import com.mdsol.mauth.MAuthRequest._
 import com.mdsol.mauth.exception.HttpClientPublicKeyProviderException
-import com.mdsol.mauth.test.utils.{FakeMAuthServer, PortFinder}
-import com.mdsol.mauth.utils.ClientPublicKeyProvider
+import com.mdsol.mauth.test.utils.{FakeMAuthServer, PortFinder, TestFixtures}
+import com.mdsol.mauth.util.{MAuthKeysHelper, MAuthPublicKey}
+import com.mdsol.mauth.utils.{ClientPublicKeyProvider, PublicKeySnapshot, SharedPublicKeyCache}
 import com.mdsol.mauth.{AuthenticatorConfiguration, Signer}
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import org.scalamock.scalatest.MockFactory
@@ -37,18 +44,32 @@ class HttpClientPublicKeyProviderSpec extends AnyFlatSpec with Matchers with Moc
   override protected def afterAll(): Unit =
     FakeMAuthServer.stop()
 
-  private def getClientWithMockedSigner: HttpClientPublicKeyProvider = {
-    val configuration: AuthenticatorConfiguration = getMAuthConfiguration
+  private def getClientWithMockedSigner: HttpClientPublicKeyProvider = getClientWithMockedSigner(getMAuthConfiguration, 1)
+
+  private def getClientWithMockedSigner(configuration: AuthenticatorConfiguration, fetches: Int): HttpClientPublicKeyProvider =
+    new HttpClientPublicKeyProvider(configuration, getMockedSigner(fetches))
+
+  private def getMockedSigner(fetches: Int): Signer = {
     val mockedSigner: Signer = mock[Signer]
     val mockedHeaders: util.Map[String, String] = new util.HashMap[String, String]
     mockedHeaders.put(X_MWS_AUTHENTICATION_HEADER_NAME, EXPECTED_AUTHENTICATION_HEADER_VALUE)
     mockedHeaders.put(X_MWS_TIME_HEADER_NAME, EXPECTED_TIME_HEADER_VALUE)
     mockedHeaders.put(MCC_AUTHENTICATION_HEADER_NAME, EXPECTED_AUTHENTICATION_HEADER_VALUE_V2)
     mockedHeaders.put(MCC_TIME_HEADER_NAME, EXPECTED_TIME_HEADER_VALUE)
-    (mockedSigner.generateRequestHeaders(_: String, _: String, _: Array[Byte], _: String)).expects("GET", *, *, "").returns(mockedHeaders)
-    new HttpClientPublicKeyProvider(configuration, mockedSigner)
+    (mockedSigner.generateRequestHeaders(_: String, _: String, _: Array[Byte], _: String)).expects("GET", *, *, "").returns(mockedHeaders).repeat(fetches)
+    mockedSigner
   }
 
+  private def getMAuthConfiguration(settings: String): AuthenticatorConfiguration =
+    new AuthenticatorConfiguration(
+      com.typesafe.config.ConfigFactory
+        .parseString(s"""mauth {
+                        |  base_url: "$MAUTH_BASE_URL"
+                        |  $settings
+                        |}""".stripMargin)
+        .withFallback(com.typesafe.config.ConfigFactory.defaultReference())
+    )
+
   private def getRequestUrlPath(clientAppId: String): String = String.format(MAUTH_URL_PATH + SECURITY_TOKENS_PATH, clientAppId)
 
   private def getMAuthConfiguration: AuthenticatorConfiguration =
@@ -71,4 +92,455 @@ class HttpClientPublicKeyProviderSpec extends AnyFlatSpec with Matchers with Moc
     val expectedException = intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID))
     expectedException.getMessage should include("Invalid response code returned by server: 401")
   }
+
+  it should "return a verification-ready public key" in {
+    FakeMAuthServer.return200()
+    val client: ClientPublicKeyProvider = getClientWithMockedSigner
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+    publicKey shouldBe a[MAuthPublicKey]
+    publicKey shouldBe MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+  }
+
+  it should "answer repeated requests for an unknown app UUID from the negative cache" in {
+    FakeMAuthServer.return401()
+    WireMock.resetAllRequests()
+    val client: ClientPublicKeyProvider = getClientWithMockedSigner
+    (1 to 3).foreach { _ =>
+      val expectedException = intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID))
+      expectedException.getMessage should include("Invalid response code returned by server: 401")
+    }
+    WireMock.verify(1, getRequestedFor(WireMock.urlEqualTo(getRequestUrlPath(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID.toString))))
+  }
+
+  it should "not fetch the key of an app UUID again within the minimum interval after a failed fetch" in {
+    val appUUID = UUID.randomUUID()
+    WireMock.stubFor(WireMock.get(WireMock.urlEqualTo(getRequestUrlPath(appUUID.toString))).willReturn(WireMock.aResponse().withStatus(503)))
+    val configuration = new AuthenticatorConfiguration(MAUTH_BASE_URL, MAUTH_URL_PATH, SECURITY_TOKENS_PATH, false, 0L, 60000L)
+    val client: ClientPublicKeyProvider = getClientWithMockedSigner(configuration, 1)
+    (1 to 3).foreach { _ =>
+      val expectedException = intercept[HttpClientPublicKeyProviderException](client.getPublicKey(appUUID))
+      expectedException.getMessage should include("Invalid response code returned by server: 503")
+    }
+    WireMock.verify(1, getRequestedFor(WireMock.urlEqualTo(getRequestUrlPath(appUUID.toString))))
+  }
+
+  it should "fetch the key on every request when negative caching and rate limiting are disabled" in {
+    FakeMAuthServer.return401()
+    WireMock.resetAllRequests()
+    val configuration = new AuthenticatorConfiguration(MAUTH_BASE_URL, MAUTH_URL_PATH, SECURITY_TOKENS_PATH, false, 0L, 0L)
+    val client: ClientPublicKeyProvider = getClientWithMockedSigner(configuration, 2)
+    (1 to 2).foreach { _ =>
+      intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID))
+    }
+    WireMock.verify(2, getRequestedFor(WireMock.urlEqualTo(getRequestUrlPath(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID.toString))))
+  }
+
+  it should "read the negative cache settings from the configuration" in {
+    val configuration = getMAuthConfiguration("negative_cache_ttl_seconds: 30")
+    configuration.getNegativeCacheTtlSeconds shouldBe 30L
+    configuration.getMinKeyFetchIntervalMillis shouldBe AuthenticatorConfiguration.DEFAULT_MIN_KEY_FETCH_INTERVAL_MILLIS
+  }
+
+  private class FakeTicker extends Ticker {
+    private val nanos = new AtomicLong()
+    override def read(): Long = nanos.get
+    def advance(seconds: Long): Unit = { nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds)); () }
+  }
+
+  private def return503(): Unit = {
+    FakeMAuthServer.resetMappings()
+    WireMock.stubFor(
+      WireMock.get(WireMock.urlEqualTo(getRequestUrlPath(FakeMAuthServer.EXISTING_CLIENT_APP_UUID.toString))).willReturn(WireMock.aResponse().withStatus(503))
+    )
+    ()
+  }
+
+  it should "reload a key in the background once it is read after the refresh ahead ratio of its max-age" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val ticker = new FakeTicker
+    val client = new HttpClientPublicKeyProvider(getMAuthConfiguration, getMockedSigner(2), ticker, (task: Runnable) => task.run())
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+
+    ticker.advance(2000)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(1)
+
+    // max-age is 3600 seconds
+    ticker.advance(1000)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(2)
+
+    // the reload started a new max-age
+    ticker.advance(1000)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(2)
+  }
+
+  it should "keep the current key when a background reload fails" in {
+    FakeMAuthServer.return200()
+    val ticker = new FakeTicker
+    val client = new HttpClientPublicKeyProvider(getMAuthConfiguration, getMockedSigner(2), ticker, (task: Runnable) => task.run())
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+
+    return503()
+    WireMock.resetAllRequests()
+    ticker.advance(3000)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    // the failed reload is not retried within the minimum fetch interval
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(1)
+  }
+
+  it should "keep the current key when MAuth does not know the app on a background reload" in {
+    FakeMAuthServer.return200()
+    val ticker = new FakeTicker
+    val configuration = getMAuthConfiguration("negative_cache_ttl_seconds: 300")
+    val client = new HttpClientPublicKeyProvider(configuration, getMockedSigner(2), ticker, (task: Runnable) => task.run())
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+
+    FakeMAuthServer.resetMappings()
+    WireMock.stubFor(
+      WireMock.get(WireMock.urlEqualTo(getRequestUrlPath(FakeMAuthServer.EXISTING_CLIENT_APP_UUID.toString))).willReturn(WireMock.aResponse().withStatus(404))
+    )
+    WireMock.resetAllRequests()
+    ticker.advance(3000)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(1)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+  }
+
+  it should "serve a stale key within the stale-if-error period while MAuth fails" in {
+    FakeMAuthServer.return200()
+    val ticker = new FakeTicker
+    val configuration = getMAuthConfiguration("stale_if_error_seconds: 600")
+    val client = new HttpClientPublicKeyProvider(configuration, getMockedSigner(3), ticker, (task: Runnable) => task.run())
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+
+    return503()
+    ticker.advance(3700)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+
+    ticker.advance(600)
+    val expectedException = intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID))
+    expectedException.getMessage should include("Invalid response code returned by server: 503")
+  }
+
+  it should "not serve a key past its max-age without stale-if-error" in {
+    FakeMAuthServer.return200()
+    val ticker = new FakeTicker
+    val client = new HttpClientPublicKeyProvider(getMAuthConfiguration(""), getMockedSigner(2), ticker, (task: Runnable) => task.run())
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+
+    return503()
+    ticker.advance(3601)
+    intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID))
+  }
+
+  it should "fetch the public keys of the configured app UUIDs when warmed up" in {
+    FakeMAuthServer.return200()
+    FakeMAuthServer.return401()
+    WireMock.resetAllRequests()
+    val configuration = getMAuthConfiguration(
+      s"""prefetch_app_uuids: ["${FakeMAuthServer.EXISTING_CLIENT_APP_UUID}", "${FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID}"]"""
+    )
+    configuration.getPrefetchAppUUIDs should contain theSameElementsInOrderAs List(
+      FakeMAuthServer.EXISTING_CLIENT_APP_UUID,
+      FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID
+    )
+    val client = getClientWithMockedSigner(configuration, 2)
+    client.warmUp()
+    FakeMAuthServer.verifyNumberOfRequests(1)
+
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+    intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID))
+    FakeMAuthServer.verifyNumberOfRequests(1)
+    WireMock.verify(1, getRequestedFor(WireMock.urlEqualTo(getRequestUrlPath(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID.toString))))
+  }
+
+  it should "fetch the public keys on the fetch executor when warmed up, without a pool of its own" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val submittingThreads = ConcurrentHashMap.newKeySet[Thread]()
+    val client = new HttpClientPublicKeyProvider(
+      getMAuthConfiguration,
+      getMockedSigner(1),
+      Ticker.systemTicker(),
+      (task: Runnable) => {
+        val _ = submittingThreads.add(Thread.currentThread())
+        task.run()
+      }
+    )
+    client.warmUp(util.Collections.singletonList(FakeMAuthServer.EXISTING_CLIENT_APP_UUID))
+    FakeMAuthServer.verifyNumberOfRequests(1)
+    submittingThreads shouldBe util.Collections.singleton(Thread.currentThread())
+
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+    FakeMAuthServer.verifyNumberOfRequests(1)
+  }
+
+  it should "not fetch anything when warmed up without app UUIDs" in {
+    val client = getClientWithMockedSigner(getMAuthConfiguration, 0)
+    client.warmUp()
+    getMAuthConfiguration("").getPrefetchAppUUIDs shouldBe empty
+  }
+
+  it should "serve the keys of a snapshot written by a previous provider without fetching them" in {
+    FakeMAuthServer.return200()
+    val snapshotPath = Files.createTempDirectory("mauth").resolve("public-keys.tsv")
+    val configuration = getMAuthConfiguration(s"""key_snapshot_path: "$snapshotPath"""")
+    configuration.getKeySnapshotIntervalSeconds shouldBe AuthenticatorConfiguration.DEFAULT_KEY_SNAPSHOT_INTERVAL_SECONDS
+    val client = getClientWithMockedSigner(configuration, 1)
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+    client.writeSnapshot()
+
+    WireMock.resetAllRequests()
+    val restartedClient = getClientWithMockedSigner(configuration, 0)
+    restartedClient.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(0)
+  }
+
+  it should "reload the keys of a snapshot that are past their max-age" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val snapshotPath = Files.createTempDirectory("mauth").resolve("public-keys.tsv")
+    val publicKey = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+    val fetchedAt = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(4000)
+    new PublicKeySnapshot(snapshotPath).write(
+      util.Arrays.asList(new PublicKeySnapshot.Entry(FakeMAuthServer.EXISTING_CLIENT_APP_UUID, publicKey, fetchedAt, 3600))
+    )
+
+    val configuration = getMAuthConfiguration(s"""key_snapshot_path: "$snapshotPath"""")
+    val client = new HttpClientPublicKeyProvider(configuration, getMockedSigner(1), new FakeTicker, (task: Runnable) => task.run())
+    FakeMAuthServer.verifyNumberOfRequests(1)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(1)
+  }
+
+  it should "not snapshot the keys without a snapshot path" in {
+    getMAuthConfiguration("").getKeySnapshotPath.isPresent shouldBe false
+  }
+
+  // local stand-in for a networked shared cache
+  private class InMemorySharedPublicKeyCache extends SharedPublicKeyCache {
+    val entries = new ConcurrentHashMap[UUID, PublicKeySnapshot.Entry]()
+    override def get(appUUID: UUID): Optional[PublicKeySnapshot.Entry] = Optional.ofNullable(entries.get(appUUID))
+    override def put(entry: PublicKeySnapshot.Entry): Unit = { entries.put(entry.getAppUUID, entry); () }
+  }
+
+  private def sharedEntry(ageSeconds: Long): PublicKeySnapshot.Entry =
+    new PublicKeySnapshot.Entry(
+      FakeMAuthServer.EXISTING_CLIENT_APP_UUID,
+      MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1),
+      System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ageSeconds),
+      3600
+    )
+
+  it should "serve a key of the shared cache without fetching it" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val sharedCache = new InMemorySharedPublicKeyCache
+    sharedCache.put(sharedEntry(60))
+    val client = new HttpClientPublicKeyProvider(getMAuthConfiguration, getMockedSigner(0), sharedCache)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe sharedCache.entries.get(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).getPublicKey
+    FakeMAuthServer.verifyNumberOfRequests(0)
+  }
+
+  it should "fetch a key of the shared cache past the refresh ahead ratio of its max-age and share the fetched key" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val sharedCache = new InMemorySharedPublicKeyCache
+    sharedCache.put(sharedEntry(3000))
+    val client = new HttpClientPublicKeyProvider(getMAuthConfiguration, getMockedSigner(1), sharedCache)
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+    FakeMAuthServer.verifyNumberOfRequests(1)
+
+    val shared = sharedCache.entries.get(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+    shared.getPublicKey shouldBe publicKey
+    shared.getMaxAgeSeconds shouldBe 3600L
+    shared.getAgeMillis(System.currentTimeMillis()) should be < TimeUnit.SECONDS.toMillis(60)
+  }
+
+  it should "share the fetched keys with other providers through the memory-mapped file cache" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val sharedCachePath = Files.createTempDirectory("mauth").resolve("public-keys.cache")
+    val configuration = getMAuthConfiguration(s"""shared_key_cache_path: "$sharedCachePath"
+                                                 |shared_key_cache_slots: 16""".stripMargin)
+    configuration.getSharedKeyCacheSlots shouldBe 16
+    val publicKey = getClientWithMockedSigner(configuration, 1).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+
+    getClientWithMockedSigner(configuration, 0).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    FakeMAuthServer.verifyNumberOfRequests(1)
+  }
+
+  private def withInstances(fixedDelaysMillis: Int*)(test: Seq[WireMockServer] => Unit): Unit = {
+    val instances = fixedDelaysMillis.map(FakeMAuthServer.startInstance(PortFinder.findFreePort(), _))
+    try test(instances)
+    finally instances.foreach(_.stop())
+  }
+
+  private def baseUrlsSetting(baseUrls: String*): String = baseUrls.map(url => s""""$url"""").mkString("base_urls: [", ", ", "]")
+
+  it should "read the base URLs and the hedge delay from the configuration" in {
+    getMAuthConfiguration("").getBaseUrls should contain only MAUTH_BASE_URL
+    val configuration = getMAuthConfiguration(s"""${baseUrlsSetting("http://mauth-1", "http://mauth-2")}
+                                                 |hedge_delay_millis: 50""".stripMargin)
+    configuration.getBaseUrls should contain inOrderOnly ("http://mauth-1", "http://mauth-2")
+    configuration.getBaseUrl shouldBe "http://mauth-1"
+    configuration.getHedgeDelayMillis shouldBe 50L
+    getMAuthConfiguration("").getHedgeDelayMillis shouldBe AuthenticatorConfiguration.DEFAULT_HEDGE_DELAY_MILLIS
+  }
+
+  it should "fetch the key from the next base URL when one fails" in {
+    FakeMAuthServer.return200()
+    WireMock.resetAllRequests()
+    val unreachable = s"http://localhost:${PortFinder.findFreePort()}"
+    val configuration = getMAuthConfiguration(baseUrlsSetting(unreachable, MAUTH_BASE_URL))
+    getClientWithMockedSigner(configuration, 1).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe a[MAuthPublicKey]
+    FakeMAuthServer.verifyNumberOfRequests(1)
+  }
+
+  it should "send a hedged request to the next base URL when the first one does not answer within the hedge delay" in {
+    withInstances(3000, 0) { case Seq(slow, fast) =>
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl(), fast.baseUrl())}
+                                                   |hedge_delay_millis: 100""".stripMargin)
+      val start = System.nanoTime()
+      getClientWithMockedSigner(configuration, 1).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe a[MAuthPublicKey]
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 2000L
+      FakeMAuthServer.verifyNumberOfRequests(slow, 1)
+      FakeMAuthServer.verifyNumberOfRequests(fast, 1)
+    }
+  }
+
+  it should "not send a hedged request when the first base URL answers within the hedge delay" in {
+    withInstances(0, 0) { case Seq(first, second) =>
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(first.baseUrl(), second.baseUrl())}
+                                                   |hedge_delay_millis: 2000""".stripMargin)
+      getClientWithMockedSigner(configuration, 1).getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe a[MAuthPublicKey]
+      FakeMAuthServer.verifyNumberOfRequests(first, 1)
+      FakeMAuthServer.verifyNumberOfRequests(second, 0)
+    }
+  }
+
+  it should "fetch the keys from the base URL with the lowest observed latency" in {
+    withInstances(500, 0) { case Seq(slow, fast) =>
+      val ticker = new FakeTicker
+      val configuration = getMAuthConfiguration(baseUrlsSetting(slow.baseUrl(), fast.baseUrl()))
+      val client = new HttpClientPublicKeyProvider(configuration, getMockedSigner(3), ticker, (task: Runnable) => task.run())
+      // max-age is 3600 seconds, each fetch follows an expiry
+      (1 to 3).foreach { _ =>
+        client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe a[MAuthPublicKey]
+        ticker.advance(3601)
+      }
+      // the base URLs are tried before their latency is compared
+      FakeMAuthServer.verifyNumberOfRequests(slow, 1)
+      FakeMAuthServer.verifyNumberOfRequests(fast, 2)
+    }
+  }
+
+  it should "read the key fetch pool size and timeouts from the configuration" in {
+    val configuration = getMAuthConfiguration("""key_fetch_pool_size: 4
+                                                 |key_fetch_connect_timeout_millis: 100
+                                                 |key_fetch_read_timeout_millis: 200""".stripMargin)
+    configuration.getKeyFetchPoolSize shouldBe 4
+    configuration.getKeyFetchConnectTimeoutMillis shouldBe 100L
+    configuration.getKeyFetchReadTimeoutMillis shouldBe 200L
+    getMAuthConfiguration("").getKeyFetchPoolSize shouldBe AuthenticatorConfiguration.DEFAULT_KEY_FETCH_POOL_SIZE
+  }
+
+  it should "fetch the keys of several app UUIDs at the same time without blocking the caller" in {
+    withInstances(1000) { case Seq(slow) =>
+      slow.stubFor(
+        WireMock
+          .get(WireMock.urlPathMatching("/mauth/v1/security_tokens/.*"))
+          .willReturn(WireMock.aResponse().withStatus(200).withBody(FakeMAuthServer.mockedMauthTokenResponse()).withFixedDelay(1000))
+      )
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl())}
+                                                   |key_fetch_pool_size: 4""".stripMargin)
+      val client = getClientWithMockedSigner(configuration, 4)
+      val start = System.nanoTime()
+      val publicKeys = (1 to 4).map(_ => client.getPublicKeyAsync(UUID.randomUUID()))
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 500L
+      publicKeys.foreach(_.join() shouldBe a[MAuthPublicKey])
+      // one after the other they would take 4 seconds
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 3000L
+    }
+  }
+
+  it should "serve the cached keys once closed, and fail the fetches of the others" in {
+    FakeMAuthServer.return200()
+    val client = getClientWithMockedSigner(getMAuthConfiguration, 1)
+    val publicKey = client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+    client.close()
+
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe publicKey
+    a[RuntimeException] should be thrownBy client.getPublicKey(UUID.randomUUID())
+  }
+
+  it should "fail a key fetch that is not answered within the read timeout" in {
+    withInstances(3000) { case Seq(slow) =>
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl())}
+                                                   |key_fetch_read_timeout_millis: 200""".stripMargin)
+      val client = getClientWithMockedSigner(configuration, 1)
+      val start = System.nanoTime()
+      val failure = intercept[CompletionException](client.getPublicKeyAsync(FakeMAuthServer.EXISTING_CLIENT_APP_UUID).join())
+      failure.getCause shouldBe a[HttpClientPublicKeyProviderException]
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) should be < 2000L
+    }
+  }
+
+  it should "fail key fetches fast while the circuit breaker is open, and close it after a successful probe" in {
+    return503()
+    WireMock.resetAllRequests()
+    val configuration = getMAuthConfiguration("""min_key_fetch_interval_millis: 0
+                                                 |circuit_breaker_failure_threshold: 2
+                                                 |circuit_breaker_open_millis: 300""".stripMargin)
+    // the fetch failed fast is not signed
+    val client = getClientWithMockedSigner(configuration, 3)
+    (1 to 2).foreach { _ =>
+      intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID))
+    }
+    intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)).getMessage should include(
+      "MAuth is failing"
+    )
+    FakeMAuthServer.verifyNumberOfRequests(2)
+
+    FakeMAuthServer.resetMappings()
+    FakeMAuthServer.return200()
+    Thread.sleep(400)
+    client.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID) shouldBe a[MAuthPublicKey]
+    FakeMAuthServer.verifyNumberOfRequests(3)
+  }
+
+  it should "not open the circuit breaker for app UUIDs unknown to MAuth" in {
+    FakeMAuthServer.return401()
+    WireMock.resetAllRequests()
+    val configuration = getMAuthConfiguration("""negative_cache_ttl_seconds: 0
+                                                 |min_key_fetch_interval_millis: 0
+                                                 |circuit_breaker_failure_threshold: 1""".stripMargin)
+    val client = getClientWithMockedSigner(configuration, 3)
+    (1 to 3).foreach { _ =>
+      intercept[HttpClientPublicKeyProviderException](client.getPublicKey(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID)).getMessage should include(
+        "401"
+      )
+    }
+    WireMock.verify(3, getRequestedFor(WireMock.urlEqualTo(getRequestUrlPath(FakeMAuthServer.NON_EXISTING_CLIENT_APP_UUID.toString))))
+  }
+
+  it should "fail the key fetches above the maximum outstanding fetches fast" in {
+    withInstances(1000) { case Seq(slow) =>
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl())}
+                                                   |max_concurrent_key_fetches: 1""".stripMargin)
+      val client = getClientWithMockedSigner(configuration, 1)
+      val fetching = client.getPublicKeyAsync(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+      Thread.sleep(200)
+      intercept[HttpClientPublicKeyProviderException](client.getPublicKey(UUID.randomUUID())).getMessage should include(
+        "too many keys are being fetched"
+      )
+      fetching.join() shouldBe a[MAuthPublicKey]
+      FakeMAuthServer.verifyNumberOfRequests(slow, 1)
+    }
+  }
 }
@@ -4,10 +4,13 @@ import cats.arrow.FunctionK
 import cats.data.{Kleisli, OptionT}
 import cats.effect.Sync
 import cats.syntax.all._
-import cats.effect.kernel.Async
+import cats.effect.kernel.{Async, Deferred, Ref}
 import cats.~>
 import com.mdsol.mauth.MAuthRequest
+import com.mdsol.mauth.exception.MAuthValidationException
 import com.mdsol.mauth.scaladsl.Authenticator
+import fs2.{Pipe, Stream}
+import org.apache.commons.codec.binary.Hex
 import org.http4s._
 import org.http4s.EntityDecoder._
 import org.typelevel.ci.CIString
@@ -15,7 +18,8 @@ import enumeratum._
 import org.typelevel.ci._
 import org.typelevel.log4cats.slf4j.Slf4jLogger
 
-import scala.concurrent.duration.Duration
+import java.security.MessageDigest
+import scala.concurrent.duration.{Duration, FiniteDuration}
 import scala.util.Try
 
 final case class MdsolAuthMissingHeaderRejection(headerName: String) extends Throwable
@@ -78,9 +82,11 @@ object MAuthMiddleware {
         else
           extractAll(request, V2) orElse extractAll(request, V1)
 
+      val bodiless = isBodiless(request)
+
       fk(for {
-        strictRequest <- request.toStrict(none)
-        byteArray <- strictRequest.as[Array[Byte]]
+        strictRequest <- if (bodiless) request.pure[F] else request.toStrict(none)
+        byteArray <- if (bodiless) Array.emptyByteArray.pure[F] else strictRequest.as[Array[Byte]]
         authCtx <- authHeaderTimeHeader(strictRequest)
         mAuthRequest = new MAuthRequest(
                          authCtx.authHeader,
@@ -106,6 +112,105 @@ object MAuthMiddleware {
         }
     }
 
+  /** Like [[apply]], but a V2 request is authenticated while the wrapped routes read its body instead of after reading
+    * it into memory, so that the memory per request does not depend on the size of the body.
+    *
+    * The body goes through [[digesting]]: the end of the body is held back until the request is authenticated, and the
+    * body fails with a MAuthValidationException when it is not. So the routes must not act on the body before they have
+    * read all of it, as when they decode it. The response of the routes is only returned once the request is
+    * authenticated, otherwise the response is Unauthorized. A body the routes do not read is drained for that, so the
+    * response must not stream the request body. An authentication that does not complete within the request validation
+    * timeout fails, and its errors are logged.
+    *
+    * Requests without V2 headers or without a body are authenticated like [[apply]]. The V2 requests are not authenticated again with
+    * their V1 headers when the V2 authentication fails.
+    */
+  def streaming[G[_]: Sync, F[_]](requestValidationTimeout: Duration, authenticator: Authenticator[F], fk: F ~> G)(
+    http: Kleisli[G, AuthedRequest[F, MAuthContext], Response[F]]
+  )(implicit F: Async[F]): Http[G, F] = {
+    val strict = apply(requestValidationTimeout, authenticator, fk)(http)
+    Kleisli { request =>
+      val logger = Slf4jLogger.getLogger[G]
+      val authenticationLogger = Slf4jLogger.getLogger[F]
+
+      val v2Context = for {
+        authHeader <- request.headers.get(V2.authHeaderName).map(_.head.value)
+        timeHeader <- request.headers.get(V2.timeHeaderName).flatMap(header => Try(header.head.value.toLong).toOption)
+      } yield MAuthContext(authHeader, timeHeader)
+
+      def authenticate(authCtx: MAuthContext, bodyDigest: String): F[Boolean] = {
+        val authentication = Try(
+          MAuthRequest.Builder
+            .get()
+            .withAuthenticationHeaderValue(authCtx.authHeader)
+            .withTimeHeaderValue(authCtx.timeHeader.toString)
+            .withHttpMethod(request.method.name)
+            .withResourcePath(request.uri.path.renderString)
+            .withQueryParameters(request.uri.query.renderString)
+            .withBodyDigest(bodyDigest)
+            .build()
+        ).liftTo[F]
+          .flatMap(authenticator.authenticate(_)(requestValidationTimeout))
+        val bounded = requestValidationTimeout match {
+          case timeout: FiniteDuration => F.timeout(authentication, timeout)
+          case _                       => authentication
+        }
+        bounded.handleErrorWith(error => authenticationLogger.warn(error)("MAuth authentication of the streamed request body failed").as(false))
+      }
+
+      v2Context.filterNot(_ => isBodiless(request)).fold(strict(request)) { authCtx =>
+        fk(for {
+          authenticated <- Deferred[F, Boolean]
+          read <- Ref.of[F, Boolean](false)
+          body = Stream.exec(read.set(true)) ++ request.body.through(digesting(authenticate(authCtx, _), authenticated))
+        } yield (request.withBodyStream(body), read, authenticated))
+          .flatMap { case (streamedRequest, read, authenticated) =>
+            http(AuthedRequest(authCtx, streamedRequest)).attempt.flatMap { response =>
+              fk(read.get.ifM(F.unit, streamedRequest.body.compile.drain.attempt.void) *> authenticated.get).flatMap { isAuthed =>
+                if (isAuthed) response.liftTo[G]
+                else logger.warn("Rejecting request as authentication failed") *> Response[F](status = Status.Unauthorized).pure[G]
+              }
+            }
+          }
+      }
+    }
+  }
+
+  // the body of an empty entity is neither read nor copied, and its digest is not computed again
+  private def isBodiless[F[_]](request: Request[F]): Boolean = request.entity match {
+    case Entity.Empty         => true
+    case Entity.Strict(chunk) => chunk.isEmpty
+    case _                    => false
+  }
+
+  /** Digests the bytes going through, then authenticates their hex encoded SHA-512 when the stream ends.
+    * The stream fails with a MAuthValidationException when it is not authenticated.
+    *
+    * @param authenticate  authenticates the request with the digest of its body
+    * @param authenticated completed with the result of the authentication, or with false when the stream does not end
+    */
+  def digesting[F[_]](authenticate: String => F[Boolean], authenticated: Deferred[F, Boolean])(implicit F: Sync[F]): Pipe[F, Byte, Byte] =
+    bytes =>
+      Stream
+        .eval(F.delay(MessageDigest.getInstance("SHA-512")))
+        .flatMap { digest =>
+          bytes.chunks
+            .evalTap { chunk =>
+              F.delay {
+                val slice = chunk.toArraySlice
+                digest.update(slice.values, slice.offset, slice.size)
+              }
+            }
+            .flatMap(Stream.chunk) ++
+            Stream
+              .eval(F.defer(authenticate(Hex.encodeHexString(digest.digest()))).flatTap(authenticated.complete))
+              .flatMap[F, Byte] { isAuthed =>
+                if (isAuthed) Stream.empty
+                else Stream.raiseError[F](new MAuthValidationException("MAuth request authentication failed"))
+              }
+        }
+        .onFinalize(authenticated.complete(false).void)
+
   def httpRoutes[F[_]: Async](requestValidationTimeout: Duration, authenticator: Authenticator[F])(
     httpRoutes: HttpRoutes[F]
   ): HttpRoutes[F] = apply(requestValidationTimeout, authenticator, OptionT.liftK[F])(Kleisli(contextRequest => httpRoutes(contextRequest.req)))
@@ -117,4 +222,16 @@ object MAuthMiddleware {
   def httpApp[F[_]: Async](requestValidationTimeout: Duration, authenticator: Authenticator[F])(
     httpRoutes: Kleisli[F, AuthedRequest[F, MAuthContext], Response[F]]
   ): HttpApp[F] = apply(requestValidationTimeout, authenticator, FunctionK.id[F])(httpRoutes)
+
+  def streamingHttpRoutes[F[_]: Async](requestValidationTimeout: Duration, authenticator: Authenticator[F])(
+    httpRoutes: HttpRoutes[F]
+  ): HttpRoutes[F] = streaming(requestValidationTimeout, authenticator, OptionT.liftK[F])(Kleisli(contextRequest => httpRoutes(contextRequest.req)))
+
+  def streamingHttpAuthRoutes[F[_]: Async](requestValidationTimeout: Duration, authenticator: Authenticator[F])(
+    httpRoutes: AuthedRoutes[MAuthContext, F]
+  ): HttpRoutes[F] = streaming(requestValidationTimeout, authenticator, OptionT.liftK[F])(httpRoutes)
+
+  def streamingHttpApp[F[_]: Async](requestValidationTimeout: Duration, authenticator: Authenticator[F])(
+    httpRoutes: Kleisli[F, AuthedRequest[F, MAuthContext], Response[F]]
+  ): HttpApp[F] = streaming(requestValidationTimeout, authenticator, FunctionK.id[F])(httpRoutes)
 }
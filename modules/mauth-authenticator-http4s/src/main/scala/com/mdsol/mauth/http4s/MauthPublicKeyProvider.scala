@@ -1,60 +1,350 @@
 package com.mdsol.mauth.http4s
 
 import cats.ApplicativeThrow
-import cats.effect.{Async, Outcome, Sync}
+import cats.effect.{Async, Deferred, Fiber, Outcome, Resource, Sync}
+import com.mdsol.mauth.exception.HttpClientPublicKeyProviderException
 import com.mdsol.mauth.http4s.client.Implicits.NewSignedRequestOps
 import com.mdsol.mauth.models.UnsignedRequest
-import com.mdsol.mauth.scaladsl.utils.ClientPublicKeyProvider
-import com.mdsol.mauth.util.MAuthKeysHelper
+import com.mdsol.mauth.scaladsl.utils.{ClientPublicKeyProvider, SharedPublicKeyCache}
+import com.mdsol.mauth.utils.{KeyFetchCircuitBreaker, MAuthEndpoints, MappedFilePublicKeyCache, PublicKeySnapshot}
+import com.mdsol.mauth.util.{MAuthKeysHelper, MAuthPublicKey}
 import com.mdsol.mauth.{AuthenticatorConfiguration, MAuthRequestSigner}
 import org.http4s.client.Client
-import org.http4s.{Response, Status}
+import org.http4s.headers.`Cache-Control`
+import org.http4s.{CacheDirective, Response, Status}
 import scalacache.{Cache, Entry}
 import scalacache.caffeine.CaffeineCache
 
 import java.net.URI
 import java.security.PublicKey
+import java.time.Instant
+import java.time.temporal.ChronoUnit
 import java.util.UUID
+import java.util.concurrent.{ConcurrentMap, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
 import scala.concurrent.duration._
+import scala.jdk.CollectionConverters._
 import cats.implicits._
-import com.github.benmanes.caffeine.cache.Caffeine
-import com.mdsol.mauth.http4s.MauthPublicKeyProvider.SecurityToken
+import com.github.benmanes.caffeine.cache.{Caffeine, Expiry}
+import com.github.benmanes.caffeine.cache.stats.CacheStats
+import com.mdsol.mauth.http4s.MauthPublicKeyProvider.{Fetched, SecurityToken}
 import io.circe.{Decoder, HCursor}
 import org.http4s.circe.CirceEntityDecoder._
 import org.typelevel.log4cats.Logger
 import cats.effect.implicits._
 
-class MauthPublicKeyProvider[F[_]: Async: Logger](configuration: AuthenticatorConfiguration, signer: MAuthRequestSigner, val client: Client[F])(implicit
+/** Fetches public keys from MAuth and caches them for the max-age returned by MAuth, or the configured time to live
+  * when there is none.
+  *
+  * Keys read after the refresh ahead ratio of their max-age are reloaded in the background, and keys past their
+  * max-age are still served for the stale-if-error period when they cannot be reloaded.
+  *
+  * The key cache of [[MauthPublicKeyProvider.apply]] holds at most the configured key cache max size of keys, and the
+  * default cache at most [[AuthenticatorConfiguration.DEFAULT_KEY_CACHE_MAX_SIZE]]. Both record their hit, miss and
+  * eviction counts, see [[MauthPublicKeyProvider.boundedCache]] and [[cacheStats]].
+  *
+  * With a key snapshot path configured, [[snapshots]] writes the cached keys to that file periodically, and [[warmUp()]]
+  * first restores the keys of the snapshot: those still within their max-age are served straight away, the others
+  * are reloaded in the background.
+  *
+  * Keys are looked up in the shared cache before they are fetched from MAuth, and the fetched keys are added to it, so
+  * that the JVMs sharing it fetch each key once. By default it is the memory-mapped file cache at the configured shared
+  * key cache path, if any.
+  *
+  * Keys are fetched from the fastest of the configured base URLs so far, and from the next ones when it fails. With a
+  * hedge delay configured, a fetch that is not answered within that delay is also sent to the next base URL, and the
+  * first answer is used while the other request is canceled.
+  *
+  * While MAuth fails or too many keys are being fetched, the [[KeyFetchCircuitBreaker]] fails the fetches fast.
+  */
+class MauthPublicKeyProvider[F[_]: Async: Logger](
+  configuration: AuthenticatorConfiguration,
+  signer: MAuthRequestSigner,
+  val client: Client[F],
+  sharedCache: Option[SharedPublicKeyCache[F]] = None
+)(implicit
   val cache: Cache[F, UUID, F[Option[PublicKey]]]
 ) extends ClientPublicKeyProvider[F] {
 
+  private val timeToLiveNanos = TimeUnit.SECONDS.toNanos(configuration.getTimeToLive)
+  private val staleIfErrorNanos = TimeUnit.SECONDS.toNanos(configuration.getStaleIfErrorSeconds)
+  private val minRefreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getMinKeyFetchIntervalMillis)
+  // until the key is fetched, then it is cached for its own max-age
+  private val cacheTimeToLive = Some((configuration.getTimeToLive + configuration.getStaleIfErrorSeconds).seconds)
+  // the cached key of each app UUID and when it was fetched, of the same maximum size as a Caffeine key cache. A key
+  // evicted from only one of them is fetched again when it is read next
+  private val fetches: ConcurrentMap[UUID, Fetch] =
+    Caffeine.newBuilder().maximumSize(keyCacheMaxSize).build[UUID, Fetch]().asMap()
+  private val snapshot = Option(configuration.getKeySnapshotPath.orElse(null)).map(new PublicKeySnapshot(_))
+  // the cache opened from the configuration when none is given, shared with the other providers of the file in the JVM
+  private val openedSharedCache =
+    if (sharedCache.isDefined) None else Option(MappedFilePublicKeyCache.fromConfiguration(configuration).orElse(null))
+  private val sharedKeyCache = sharedCache.orElse(openedSharedCache.map(SharedPublicKeyCache.sync[F](_)))
+  private val endpoints = new MAuthEndpoints(configuration.getBaseUrls)
+  private val circuitBreaker = KeyFetchCircuitBreaker.fromConfiguration(configuration)
+
   /** Returns the associated public key for a given application UUID.
     *
     * @param appUUID , UUID of the application for which we want to retrieve its public key.
     * @return { @link PublicKey} registered in MAuth for the application with given appUUID.
     */
-  override def getPublicKey(appUUID: UUID): F[Option[PublicKey]] = cache
-    .cachingF(appUUID)(Some(configuration.getTimeToLive.seconds)) {
+  override def getPublicKey(appUUID: UUID): F[Option[PublicKey]] =
+    Sync[F].delay((Option(fetches.get(appUUID)), System.nanoTime())).flatMap {
+      case (Some(fetch), now) if now - fetch.fetchedAt < staleIfErrorNanos + fetch.timeToLive =>
+        val age = now - fetch.fetchedAt
+        if (age >= fetch.timeToLive) {
+          // only still cached for stale-if-error
+          if (fetch.claimRefresh(now, minRefreshIntervalNanos)) refresh(appUUID).flatMap {
+            case None      => cachedPublicKey(appUUID)
+            case publicKey => publicKey.pure[F]
+          }
+          else cachedPublicKey(appUUID)
+        } else if (age >= refreshAhead(fetch.timeToLive) && fetch.claimRefresh(now, minRefreshIntervalNanos))
+          Async[F].start(refresh(appUUID)) *> cachedPublicKey(appUUID)
+        else cachedPublicKey(appUUID)
+      case _ => cachedPublicKey(appUUID)
+    }
+
+  /** The hit, miss and eviction counts of the key cache, when it is a Caffeine cache such as the default one. They are
+    * all 0 unless the Caffeine cache records stats.
+    */
+  def cacheStats: Option[CacheStats] =
+    cache match {
+      case caffeine: CaffeineCache[F, UUID, F[Option[PublicKey]]] @unchecked => Some(caffeine.underlying.stats())
+      case _                                                                 => None
+    }
+
+  private def keyCacheMaxSize: Long =
+    cache match {
+      case caffeine: CaffeineCache[F, UUID, F[Option[PublicKey]]] @unchecked =>
+        Option(caffeine.underlying.policy().eviction().orElse(null)).fold(configuration.getKeyCacheMaxSize)(_.getMaximum)
+      case _ => configuration.getKeyCacheMaxSize
+    }
+
+  private def refreshAhead(timeToLive: Long): Long =
+    if (configuration.getRefreshAheadRatio > 0 && configuration.getRefreshAheadRatio < 1) (timeToLive * configuration.getRefreshAheadRatio).toLong
+    else timeToLive
+
+  /** Fetch the public keys of the configured prefetch app UUIDs, at most prefetch concurrency at a time.
+    * Run it before the service reports ready so that the first requests of known clients do not wait for MAuth.
+    * Keys that cannot be fetched are logged and skipped.
+    */
+  def warmUp(): F[Unit] = restoreSnapshot() *> warmUp(configuration.getPrefetchAppUUIDs.asScala.toList)
+
+  def warmUp(appUUIDs: List[UUID]): F[Unit] =
+    appUUIDs
+      .parTraverseN(math.max(1, configuration.getPrefetchConcurrency)) { appUUID =>
+        getPublicKey(appUUID).handleErrorWith(error => Logger[F].warn(error)(s"Unable to prefetch the public key of app $appUUID").as(none[PublicKey]))
+      }
+      .void
+
+  /** Write the cached public keys to the configured key snapshot path, if any */
+  def writeSnapshot(): F[Unit] =
+    snapshot.traverse_ { keySnapshot =>
       Sync[F]
-        .defer {
-          val uri = new URI(configuration.getBaseUrl + getRequestUrlPath(appUUID))
-          val signedRequest = signer.signRequest(UnsignedRequest.noBody("GET", uri, headers = Map.empty))
-          signedRequest
-            .toHttp4sRequest[F]
-            .flatMap(req => client.run(req).use(retrievePublicKey))
+        .blocking {
+          val now = System.nanoTime()
+          val nowMillis = System.currentTimeMillis()
+          val entries = fetches.asScala.toList.collect {
+            case (appUUID, fetch) if now - fetch.fetchedAt < fetch.timeToLive + staleIfErrorNanos =>
+              new PublicKeySnapshot.Entry(
+                appUUID,
+                fetch.publicKey,
+                nowMillis - TimeUnit.NANOSECONDS.toMillis(now - fetch.fetchedAt),
+                TimeUnit.NANOSECONDS.toSeconds(fetch.timeToLive)
+              )
+          }
+          keySnapshot.write(entries.asJava)
         }
+        .handleErrorWith(error => Logger[F].warn(error)(s"Unable to write the public key snapshot ${keySnapshot.getPath}"))
+    }
+
+  /** Writes the key snapshot every key snapshot interval while in use, and once more when released */
+  def snapshots: Resource[F, Unit] =
+    if (snapshot.isEmpty || configuration.getKeySnapshotIntervalSeconds <= 0) Resource.unit[F]
+    else
+      (Async[F].sleep(configuration.getKeySnapshotIntervalSeconds.seconds) *> writeSnapshot()).foreverM.background.void *>
+        Resource.onFinalize(writeSnapshot())
+
+  /** Close the shared cache opened from the configuration, if any, on shutdown */
+  def close(): F[Unit] = openedSharedCache.traverse_(openedCache => Sync[F].blocking(openedCache.close()))
+
+  // serve the keys still within their max-age right away, reload the others in the background
+  private def restoreSnapshot(): F[Unit] =
+    snapshot.traverse_ { keySnapshot =>
+      Sync[F].blocking((keySnapshot.read().asScala.toList, System.nanoTime(), System.currentTimeMillis())).flatMap { case (entries, now, nowMillis) =>
+        entries.traverse_ { entry =>
+          val age = TimeUnit.MILLISECONDS.toNanos(entry.getAgeMillis(nowMillis))
+          val fetch = new Fetch(entry.getPublicKey, now - age, TimeUnit.SECONDS.toNanos(entry.getMaxAgeSeconds))
+          val restore =
+            if (age < fetch.timeToLive + staleIfErrorNanos) cacheFetch(entry.getAppUUID, fetch) *> Sync[F].delay(fetches.put(entry.getAppUUID, fetch)).void
+            else Async[F].unit
+          restore *> Async[F].start(getPublicKey(entry.getAppUUID)).void.whenA(age >= fetch.timeToLive)
+        }
+      }
+    }
+
+  private def cachedPublicKey(appUUID: UUID): F[Option[PublicKey]] = cache
+    .cachingF(appUUID)(cacheTimeToLive) {
+      fetchPublicKey(appUUID)
         .guaranteeCase {
           case Outcome.Succeeded(res) =>
             res.flatMap {
-              case Some(_) => Async[F].unit
-              case None    => cache.remove(appUUID)
+              case Some(fetch) => cacheFetch(appUUID, fetch)
+              case None        => cache.remove(appUUID)
             }
           case _ => cache.remove(appUUID)
         }
+        .map(_.map(_.publicKey))
         .memoize
     }
     .flatten
 
+  // cached until the max-age and the stale-if-error period of the key are over
+  private def cacheFetch(appUUID: UUID, fetch: Fetch): F[Unit] =
+    Sync[F].delay(fetch.timeToLive + staleIfErrorNanos - (System.nanoTime() - fetch.fetchedAt)).flatMap { remaining =>
+      if (remaining > 0) cache.put(appUUID)(fetch.publicKey.some.pure[F], Some(remaining.nanos)) else cache.remove(appUUID)
+    }
+
+  // a failed reload keeps the current key
+  private def refresh(appUUID: UUID): F[Option[PublicKey]] =
+    fetchPublicKey(appUUID)
+      .flatMap {
+        case Some(fetch) => cacheFetch(appUUID, fetch).as(fetch.publicKey.some)
+        case None        => none[PublicKey].pure[F]
+      }
+      .handleErrorWith(error => Logger[F].warn(error)(s"Public key refresh failed for app $appUUID").as(none[PublicKey]))
+
+  // also records when the key was fetched
+  private def fetchPublicKey(appUUID: UUID): F[Option[Fetch]] =
+    getSharedPublicKey(appUUID).flatMap {
+      case Some(shared) => Sync[F].delay(fetches.put(appUUID, shared)).as(shared.some)
+      case None =>
+        Sync[F]
+          .delay(Option(circuitBreaker.tryAcquire()))
+          .flatMap {
+            case Some(permit) => fetchFromMauth(appUUID, permit)
+            case None =>
+              Async[F].raiseError[Fetched](
+                new HttpClientPublicKeyProviderException(s"Not fetching the public key of app $appUUID, MAuth is failing or too many keys are being fetched")
+              )
+          }
+          .flatMap(fetched => Sync[F].delay(fetched.publicKey.map(new Fetch(_, System.nanoTime(), fetched.timeToLive))))
+          .flatTap(_.traverse_(fetch => Sync[F].delay(fetches.put(appUUID, fetch)) *> sharePublicKey(appUUID, fetch)))
+    }
+
+  private def fetchFromMauth(appUUID: UUID, permit: KeyFetchCircuitBreaker.Permit): F[Fetched] =
+    Sync[F]
+      .delay(endpoints.byLatency().asScala.toList)
+      .flatMap { baseUrls =>
+        if (configuration.getHedgeDelayMillis > 0) fetchHedged(appUUID, baseUrls) else fetchInOrder(appUUID, baseUrls)
+      }
+      .guaranteeCase {
+        case Outcome.Succeeded(result) =>
+          result.flatMap(fetched => Sync[F].delay(if (fetched.answered) permit.onSuccess() else permit.onFailure()))
+        case Outcome.Errored(_) => Sync[F].delay(permit.onFailure())
+        case Outcome.Canceled() => Sync[F].delay(permit.release())
+      }
+
+  // try the base URLs one after the other, the fastest first, until one answers
+  private def fetchInOrder(appUUID: UUID, baseUrls: List[String]): F[Fetched] =
+    baseUrls match {
+      case baseUrl :: Nil => fetchFrom(appUUID, baseUrl)
+      case baseUrl :: others =>
+        fetchFrom(appUUID, baseUrl)
+          .handleErrorWith { error =>
+            Logger[F].warn(error)(s"Unable to fetch the public key of app $appUUID from $baseUrl").as(Fetched(None, answered = false, timeToLiveNanos))
+          }
+          .flatMap {
+            case Fetched(_, false, _) => fetchInOrder(appUUID, others)
+            case fetched              => fetched.pure[F]
+          }
+      case Nil => Fetched(None, answered = false, timeToLiveNanos).pure[F]
+    }
+
+  // when the fetch is not answered within the hedge delay, or fails sooner, fetch from the next base URL as well (the
+  // same one when there is a single one), the first answer wins
+  private def fetchHedged(appUUID: UUID, baseUrls: List[String]): F[Fetched] =
+    Deferred[F, Unit].flatMap { primaryFailed =>
+      val primary = fetchInOrder(appUUID, baseUrls).guaranteeCase {
+        case Outcome.Succeeded(result) => result.flatMap(fetched => primaryFailed.complete(()).void.whenA(!fetched.answered))
+        case Outcome.Errored(_)        => primaryFailed.complete(()).void
+        case Outcome.Canceled()        => Async[F].unit
+      }
+      val hedge = Async[F].race(Async[F].sleep(configuration.getHedgeDelayMillis.millis), primaryFailed.get) *>
+        fetchInOrder(appUUID, if (baseUrls.size > 1) baseUrls.tail else baseUrls)
+      Async[F].racePair(primary, hedge).flatMap {
+        case Left((outcome, other))  => firstPublicKey(outcome, other)
+        case Right((other, outcome)) => firstPublicKey(outcome, other)
+      }
+    }
+
+  private def firstPublicKey(outcome: Outcome[F, Throwable, Fetched], other: Fiber[F, Throwable, Fetched]): F[Fetched] =
+    outcome match {
+      case Outcome.Succeeded(result) =>
+        result.flatMap {
+          case Fetched(_, false, _) => other.joinWithNever
+          case fetched              => other.cancel.as(fetched)
+        }
+      case _ => other.joinWithNever
+    }
+
+  // a canceled request lost to a faster base URL, so its wait counts as its latency rather than as a failure. MAuth
+  // answered unless it returned a server error, an unknown app is an answer as well
+  private def fetchFrom(appUUID: UUID, baseUrl: String): F[Fetched] =
+    Async[F].monotonic.flatMap { start =>
+      def recordLatency: F[Unit] = Async[F].monotonic.flatMap(end => Sync[F].delay(endpoints.recordLatency(baseUrl, (end - start).toNanos)))
+      Sync[F]
+        .defer {
+          val uri = new URI(baseUrl + getRequestUrlPath(appUUID))
+          val signedRequest = signer.signRequest(UnsignedRequest.noBody("GET", uri, headers = Map.empty))
+          signedRequest
+            .toHttp4sRequest[F]
+            .flatMap { req =>
+              client.run(req).use { response =>
+                retrievePublicKey(response).map(Fetched(_, answered = response.status.responseClass != Status.ServerError, timeToLive(response)))
+              }
+            }
+        }
+        .guaranteeCase {
+          case Outcome.Succeeded(result) =>
+            result.flatMap {
+              case Fetched(_, true, _)  => recordLatency
+              case Fetched(_, false, _) => Sync[F].delay(endpoints.recordFailure(baseUrl))
+            }
+          case Outcome.Errored(_) => Sync[F].delay(endpoints.recordFailure(baseUrl))
+          case Outcome.Canceled() => recordLatency
+        }
+    }
+
+  // the max-age returned by MAuth, or the configured time to live when there is none
+  private def timeToLive(response: Response[F]): Long =
+    response.headers
+      .get[`Cache-Control`]
+      .flatMap(_.values.collectFirst { case CacheDirective.`max-age`(maxAge) => maxAge.toNanos })
+      .getOrElse(timeToLiveNanos)
+
+  // a key of the shared cache is only used before the refresh ahead ratio, so that reloads do not get it back
+  private def getSharedPublicKey(appUUID: UUID): F[Option[Fetch]] =
+    sharedKeyCache.flatTraverse { shared =>
+      shared
+        .get(appUUID)
+        .map(_.flatMap { entry =>
+          val age = TimeUnit.MILLISECONDS.toNanos(entry.getAgeMillis(System.currentTimeMillis()))
+          val timeToLive = TimeUnit.SECONDS.toNanos(entry.getMaxAgeSeconds)
+          if (age < refreshAhead(timeToLive)) Some(new Fetch(entry.getPublicKey, System.nanoTime() - age, timeToLive)) else None
+        })
+        .handleErrorWith(error => Logger[F].warn(error)(s"Unable to read the public key of app $appUUID from the shared cache").as(none[Fetch]))
+    }
+
+  private def sharePublicKey(appUUID: UUID, fetch: Fetch): F[Unit] =
+    sharedKeyCache.traverse_ { shared =>
+      Sync[F]
+        .delay(new PublicKeySnapshot.Entry(appUUID, fetch.publicKey, System.currentTimeMillis(), TimeUnit.NANOSECONDS.toSeconds(fetch.timeToLive)))
+        .flatMap(shared.put)
+        .handleErrorWith(error => Logger[F].warn(error)(s"Unable to add the public key of app $appUUID to the shared cache"))
+    }
+
   private def retrievePublicKey(mauthPublicKeyFetcher: Response[F]): F[Option[PublicKey]] = {
     mauthPublicKeyFetcher.status match {
       case Status.Ok =>
@@ -62,7 +352,7 @@ class MauthPublicKeyProvider[F[_]: Async: Logger](configuration: AuthenticatorCo
           .as[SecurityToken]
           .flatMap { securityToken =>
             ApplicativeThrow[F]
-              .catchNonFatal(MAuthKeysHelper.getPublicKeyFromString(securityToken.publicKeyStr))
+              .catchNonFatal(MAuthPublicKey.of(MAuthKeysHelper.getPublicKeyFromString(securityToken.publicKeyStr)))
               .map(_.some)
               .recoverWith { case error =>
                 Logger[F].error(error)("Converting string to Public Key failed") *> none[PublicKey].pure[F]
@@ -80,11 +370,24 @@ class MauthPublicKeyProvider[F[_]: Async: Logger](configuration: AuthenticatorCo
 
   private def getRequestUrlPath(appUUID: UUID): String =
     configuration.getRequestUrlPath + String.format(configuration.getSecurityTokensUrlPath, appUUID.toString)
+
+  // the time to live is in nanoseconds, like the fetch time
+  private class Fetch(val publicKey: PublicKey, val fetchedAt: Long, val timeToLive: Long) {
+    private val refreshNotBefore = new AtomicLong(fetchedAt)
+
+    def claimRefresh(now: Long, minInterval: Long): Boolean = {
+      val notBefore = refreshNotBefore.get
+      now - notBefore >= 0 && refreshNotBefore.compareAndSet(notBefore, now + minInterval)
+    }
+  }
 }
 
 object MauthPublicKeyProvider {
 
   final case class SecurityToken(appName: String, appUuid: UUID, publicKeyStr: String)
+
+  // the key fetched from a base URL, if MAuth answered at all, and its max-age in nanoseconds
+  private[http4s] final case class Fetched(publicKey: Option[PublicKey], answered: Boolean, timeToLive: Long)
   object SecurityToken {
     implicit val securityTokenDecoderInstance: Decoder[SecurityToken] = (c: HCursor) => {
       for {
@@ -95,11 +398,43 @@ object MauthPublicKeyProvider {
     }
   }
 
+  /** A provider with a key cache of at most the configured key cache max size of keys, see [[boundedCache]] */
+  def apply[F[_]: Async: Logger](
+    configuration: AuthenticatorConfiguration,
+    signer: MAuthRequestSigner,
+    client: Client[F],
+    sharedCache: Option[SharedPublicKeyCache[F]] = None
+  ): MauthPublicKeyProvider[F] =
+    new MauthPublicKeyProvider[F](configuration, signer, client, sharedCache)(implicitly, implicitly, boundedCache[F](configuration.getKeyCacheMaxSize))
+
   // this provides a default implementation of the cache to be used with the public key provider, and frees the user to
-  // inject their own cache
+  // inject their own cache. It does not know the configuration, MauthPublicKeyProvider.apply uses the configured size
   implicit def defaultCache[F[_]: Sync]: Cache[F, UUID, F[Option[PublicKey]]] =
+    boundedCache[F](AuthenticatorConfiguration.DEFAULT_KEY_CACHE_MAX_SIZE)
+
+  /** A cache of at most maximumSize keys, e.g. the configured key cache max size, recording its hit, miss and eviction
+    * counts. The keys are evicted when they expire rather than when they are read next, so that they do not count
+    * against the maximum size.
+    */
+  def boundedCache[F[_]: Sync](maximumSize: Long): Cache[F, UUID, F[Option[PublicKey]]] =
     CaffeineCache[F, UUID, F[Option[PublicKey]]](
-      Caffeine.newBuilder().build[UUID, Entry[F[Option[PublicKey]]]]()
+      Caffeine
+        .newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfter[UUID, Entry[F[Option[PublicKey]]]](new EntryExpiry[F[Option[PublicKey]]])
+        .recordStats()
+        .build[UUID, Entry[F[Option[PublicKey]]]]()
     )
 
+  // expires the entries when scalacache considers them expired
+  private final class EntryExpiry[V] extends Expiry[UUID, Entry[V]] {
+    override def expireAfterCreate(key: UUID, entry: Entry[V], currentTime: Long): Long =
+      entry.expiresAt.fold(Long.MaxValue)(expiresAt => math.max(0L, ChronoUnit.NANOS.between(Instant.now(), expiresAt)))
+
+    override def expireAfterUpdate(key: UUID, entry: Entry[V], currentTime: Long, currentDuration: Long): Long =
+      expireAfterCreate(key, entry, currentTime)
+
+    override def expireAfterRead(key: UUID, entry: Entry[V], currentTime: Long, currentDuration: Long): Long = currentDuration
+  }
+
 }
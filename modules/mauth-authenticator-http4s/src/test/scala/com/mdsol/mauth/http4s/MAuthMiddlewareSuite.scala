@@ -3,7 +3,7 @@ package com.mdsol.mauth.http4s
 import cats.data.Kleisli
 import cats.effect._
 import cats.syntax.all._
-import com.mdsol.mauth.MAuthRequest
+import com.mdsol.mauth.{DefaultSigner, MAuthRequest, SignerConfiguration}
 import com.mdsol.mauth.exception.MAuthValidationException
 import com.mdsol.mauth.scaladsl.utils.ClientPublicKeyProvider
 import com.mdsol.mauth.test.utils.TestFixtures
@@ -19,6 +19,7 @@ import org.typelevel.log4cats._
 import java.security.{PublicKey, Security}
 import java.util.UUID
 import scala.concurrent.duration._
+import scala.jdk.CollectionConverters._
 import org.typelevel.log4cats.noop.NoOpLogger
 
 class MAuthMiddlewareSuite extends CatsEffectSuite {
@@ -462,4 +463,116 @@ class MAuthMiddlewareSuite extends CatsEffectSuite {
     )
     res.map(_.status).assertEquals(Status.Unauthorized)
   }
+
+  val echoRoute: HttpRoutes[IO] =
+    HttpRoutes.of {
+      case req if req.uri.path === path"/" =>
+        req.as[String].map(body => Response[IO](Status.Ok).withEntity(s"pong $body"))
+    }
+
+  val streamingService: Kleisli[IO, Request[IO], Response[IO]] =
+    MAuthMiddleware.streamingHttpRoutes[IO](requestValidationTimeout, authenticator)(echoRoute).orNotFound
+
+  test("allow successfully authenticated request with V2 headers when streaming") {
+    val res = streamingService(
+      Request[IO](GET, uri"/").withHeaders(
+        MAuthRequest.MCC_TIME_HEADER_NAME -> timeHeader.toString,
+        MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME -> authHeaderV2
+      )
+    )
+
+    res.flatMap(_.as[String]).assertEquals("pong ")
+  }
+
+  test("allow successfully authenticated request with V2 headers when streaming to a route that does not read the body") {
+    val res = MAuthMiddleware
+      .streamingHttpRoutes[IO](requestValidationTimeout, authenticator)(route)
+      .orNotFound(
+        Request[IO](GET, uri"/").withHeaders(
+          MAuthRequest.MCC_TIME_HEADER_NAME -> timeHeader.toString,
+          MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME -> authHeaderV2
+        )
+      )
+
+    res.map(_.status).assertEquals(Status.Ok)
+  }
+
+  test("allow successfully authenticated request with V1 headers when streaming") {
+    val res = streamingService(
+      Request[IO](GET, uri"/").withHeaders(
+        MAuthRequest.X_MWS_TIME_HEADER_NAME -> timeHeader.toString,
+        MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME -> authHeader
+      )
+    )
+
+    res.map(_.status).assertEquals(Status.Ok)
+  }
+
+  test("reject v2 request if the streamed body does not match the signature") {
+    val res = streamingService(
+      Request[IO](GET, uri"/")
+        .withEntity("tampered")
+        .withHeaders(
+          MAuthRequest.MCC_TIME_HEADER_NAME -> timeHeader.toString,
+          MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME -> authHeaderV2
+        )
+    )
+
+    res.map(_.status).assertEquals(Status.Unauthorized)
+  }
+
+  test("reject v2 request when streaming if the authentication does not complete within the request validation timeout") {
+    val pendingClient = new ClientPublicKeyProvider[IO] {
+      override def getPublicKey(appUUID: UUID): IO[Option[PublicKey]] = IO.never
+    }
+    val res = MAuthMiddleware
+      .streamingHttpRoutes[IO](1.second, RequestAuthenticator(pendingClient, epochTimeProvider))(echoRoute)
+      .orNotFound(
+        Request[IO](GET, uri"/")
+          .withEntity("ping")
+          .withHeaders(
+            MAuthRequest.MCC_TIME_HEADER_NAME -> timeHeader.toString,
+            MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME -> authHeaderV2
+          )
+      )
+
+    res.map(_.status).assertEquals(Status.Unauthorized)
+  }
+
+  private val signer = new DefaultSigner(
+    appUuid,
+    MAuthKeysHelper.getPrivateKeyFromString(TestFixtures.PRIVATE_KEY_1),
+    epochTimeProvider,
+    SignerConfiguration.ALL_SIGN_VERSIONS
+  )
+
+  // the V2 headers are signed for v2Path, which fails the V2 authentication unless it is the path of the request
+  private def bodiless(method: Method, v2Path: String): Request[IO] = {
+    val v1Headers = signer.generateRequestHeaders(method.name, "/", Array.emptyByteArray, "").asScala
+    val v2Headers = signer.generateRequestHeaders(method.name, v2Path, Array.emptyByteArray, "").asScala
+    Request[IO](method, uri"/").withHeaders(
+      MAuthRequest.MCC_TIME_HEADER_NAME -> v2Headers(MAuthRequest.MCC_TIME_HEADER_NAME),
+      MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME -> v2Headers(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME),
+      MAuthRequest.X_MWS_TIME_HEADER_NAME -> v1Headers(MAuthRequest.X_MWS_TIME_HEADER_NAME),
+      MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME -> v1Headers(MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME)
+    )
+  }
+
+  private val bodilessServices = Seq(
+    "apply" -> service,
+    "streaming" -> MAuthMiddleware.streamingHttpRoutes[IO](requestValidationTimeout, authenticator)(route).orNotFound
+  )
+
+  for {
+    (name, bodilessService) <- bodilessServices
+    method <- Seq(GET, HEAD, DELETE)
+  } {
+    test(s"allow successfully authenticated $method request without a body via $name") {
+      bodilessService(bodiless(method, "/")).map(_.status).assertEquals(Status.Ok)
+    }
+
+    test(s"allow successfully authenticated $method request without a body via $name, fallback to v1 if v2 failed") {
+      bodilessService(bodiless(method, "/other")).map(_.status).assertEquals(Status.Ok)
+    }
+  }
 }
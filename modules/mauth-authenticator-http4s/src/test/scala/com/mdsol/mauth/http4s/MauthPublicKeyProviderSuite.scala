@@ -1,7 +1,10 @@
 package com.mdsol.mauth.http4s
 
-import cats.effect.{IO, Ref}
+import cats.effect.{IO, Ref, Resource}
 import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.tomakehurst.wiremock.WireMockServer
+import com.github.tomakehurst.wiremock.client.WireMock
+import com.github.tomakehurst.wiremock.stubbing.Scenario
 import com.mdsol.mauth.test.utils.{FakeMAuthServer, PortFinder, TestFixtures}
 import com.mdsol.mauth.util.MAuthKeysHelper
 import com.mdsol.mauth.{AuthenticatorConfiguration, MAuthRequestSigner}
@@ -10,15 +13,19 @@ import org.http4s.dsl.io._
 import org.http4s.implicits._
 import org.http4s._
 import org.http4s.client.Client
+import org.http4s.ember.client.EmberClientBuilder
+import org.http4s.headers.`Cache-Control`
 import org.typelevel.log4cats.noop.NoOpLogger
 import scalacache.caffeine.CaffeineCache
 import scalacache.{Cache, Entry}
 
 import java.security.PublicKey
 import cats.implicits._
+import com.typesafe.config.ConfigFactory
 import org.typelevel.log4cats.Logger
 
 import java.util.UUID
+import scala.concurrent.duration._
 
 class MauthPublicKeyProviderSuite extends CatsEffectSuite {
 
@@ -51,6 +58,24 @@ class MauthPublicKeyProviderSuite extends CatsEffectSuite {
   )
   private def getMAuthConfiguration = new AuthenticatorConfiguration(MAUTH_BASE_URL, MAUTH_URL_PATH, SECURITY_TOKENS_PATH)
 
+  private def getMAuthConfiguration(settings: String) =
+    new AuthenticatorConfiguration(
+      ConfigFactory
+        .parseString(s"""mauth {
+                        |  base_url: "$MAUTH_BASE_URL"
+                        |  $settings
+                        |}""".stripMargin)
+        .withFallback(ConfigFactory.defaultReference())
+    )
+
+  private def withInstances[A](fixedDelaysMillis: Int*)(test: (Client[IO], Seq[WireMockServer]) => IO[A]): IO[A] = {
+    val instances =
+      Resource.make(IO(fixedDelaysMillis.map(FakeMAuthServer.startInstance(PortFinder.findFreePort(), _))))(started => IO(started.foreach(_.stop())))
+    (EmberClientBuilder.default[IO].build, instances).tupled.use { case (client, started) => test(client, started) }
+  }
+
+  private def baseUrlsSetting(baseUrls: String*): String = baseUrls.map(url => s""""$url"""").mkString("base_urls: [", ", ", "]")
+
   private def runTest(response: IO[Response[IO]], assertion: Option[PublicKey]) = {
     new MauthPublicKeyProvider[IO](
       getMAuthConfiguration,
@@ -122,6 +147,65 @@ class MauthPublicKeyProviderSuite extends CatsEffectSuite {
     } yield ()
   }
 
+  test("MauthPublicKeyProvider records the hits and misses of a bounded cache") {
+    val client = Client.fromHttpApp(executeRequest(FakeMAuthServer.EXISTING_CLIENT_APP_UUID.toString, Ok(FakeMAuthServer.mockedMauthTokenResponse())))
+
+    val provider = new MauthPublicKeyProvider[IO](
+      getMAuthConfiguration,
+      signer = signer,
+      client = client
+    )(implicitly, implicitly, MauthPublicKeyProvider.boundedCache[IO](10))
+
+    for {
+      _ <- provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+      _ <- provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+    } yield {
+      val stats = provider.cacheStats.getOrElse(fail("no stats for a Caffeine cache"))
+      assertEquals(stats.missCount(), 1L)
+      assertEquals(stats.hitCount(), 1L)
+    }
+  }
+
+  test("MauthPublicKeyProvider caches a key for the max-age returned by MAuth") {
+    val client = Client.fromHttpApp(
+      executeRequest(
+        FakeMAuthServer.EXISTING_CLIENT_APP_UUID.toString,
+        Ok(FakeMAuthServer.mockedMauthTokenResponse()).map(_.putHeaders(`Cache-Control`(CacheDirective.`max-age`(1.second))))
+      )
+    )
+    val provider = new MauthPublicKeyProvider[IO](getMAuthConfiguration("refresh_ahead_ratio: 1"), signer, client)
+
+    for {
+      _ <- requestCounter.set(0)
+      _ <- provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+      _ <- provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+      _ <- requestCounter.get.assertEquals(1)
+      _ <- IO.sleep(1100.millis)
+      _ <- provider.getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+      _ <- requestCounter.get.assertEquals(2)
+    } yield ()
+  }
+
+  test("MauthPublicKeyProvider keeps at most the configured key cache max size of keys") {
+    val client = Client.fromHttpApp(
+      HttpRoutes
+        .of[IO] { case GET -> Root / "mauth" / "v1" / "security_tokens" / _ =>
+          Ok(FakeMAuthServer.mockedMauthTokenResponse())
+        }
+        .orNotFound
+    )
+    val provider = MauthPublicKeyProvider[IO](getMAuthConfiguration("key_cache_max_size: 2"), signer, client)
+
+    List.fill(5)(UUID.randomUUID()).traverse_(provider.getPublicKey).map { _ =>
+      provider.cache match {
+        case caffeine: CaffeineCache[IO, UUID, IO[Option[PublicKey]]] @unchecked =>
+          caffeine.underlying.cleanUp()
+          assert(caffeine.underlying.estimatedSize() <= 2L)
+        case other => fail(s"not a Caffeine cache: $other")
+      }
+    }
+  }
+
   test("fail on invalid response from MAuth Server") {
     runTest(
       IO(Response[IO](status = Unauthorized)),
@@ -129,4 +213,56 @@ class MauthPublicKeyProviderSuite extends CatsEffectSuite {
     )
   }
 
+  test("MauthPublicKeyProvider uses the answer of the hedged fetch when the first base URL is slow") {
+    withInstances(3000, 0) { case (client, Seq(slow, fast)) =>
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl(), fast.baseUrl())}
+                                                   |  hedge_delay_millis: 100""".stripMargin)
+      new MauthPublicKeyProvider[IO](configuration, signer, client)
+        .getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+        .timed
+        .map { case (elapsed, publicKey) =>
+          assert(publicKey.isDefined)
+          assert(elapsed < 2.seconds)
+          FakeMAuthServer.verifyNumberOfRequests(fast, 1)
+        }
+    }
+  }
+
+  test("MauthPublicKeyProvider waits for the answer of the first base URL when the hedged fetch fails") {
+    withInstances(1000, 0) { case (client, Seq(slow, failing)) =>
+      failing.stubFor(WireMock.get(WireMock.urlPathMatching("/mauth/v1/security_tokens/.*")).willReturn(WireMock.aResponse().withStatus(503)))
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(slow.baseUrl(), failing.baseUrl())}
+                                                   |  hedge_delay_millis: 100""".stripMargin)
+      new MauthPublicKeyProvider[IO](configuration, signer, client)
+        .getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+        .map { publicKey =>
+          assert(publicKey.isDefined)
+          FakeMAuthServer.verifyNumberOfRequests(slow, 1)
+        }
+    }
+  }
+
+  test("MauthPublicKeyProvider fetches again as soon as the first fetch fails, without waiting for the hedge delay") {
+    withInstances(0) { case (client, Seq(flaky)) =>
+      flaky.stubFor(
+        WireMock
+          .get(WireMock.urlPathMatching("/mauth/v1/security_tokens/.*"))
+          .inScenario("flaky")
+          .whenScenarioStateIs(Scenario.STARTED)
+          .willReturn(WireMock.aResponse().withStatus(503))
+          .willSetStateTo("recovered")
+      )
+      val configuration = getMAuthConfiguration(s"""${baseUrlsSetting(flaky.baseUrl())}
+                                                   |  hedge_delay_millis: 3000""".stripMargin)
+      new MauthPublicKeyProvider[IO](configuration, signer, client)
+        .getPublicKey(FakeMAuthServer.EXISTING_CLIENT_APP_UUID)
+        .timed
+        .map { case (elapsed, publicKey) =>
+          assert(publicKey.isDefined)
+          assert(elapsed < 2.seconds)
+          FakeMAuthServer.verifyNumberOfRequests(flaky, 2)
+        }
+    }
+  }
+
 }
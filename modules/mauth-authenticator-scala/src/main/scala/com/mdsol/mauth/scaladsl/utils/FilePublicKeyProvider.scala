@@ -0,0 +1,39 @@
+package com.mdsol.mauth.scaladsl.utils
+
+import cats.effect.{Resource, Sync}
+import com.mdsol.mauth.utils.{FilePublicKeyProvider => JavaFilePublicKeyProvider}
+
+import java.nio.file.Path
+import java.security.PublicKey
+import java.util.UUID
+import scala.concurrent.Future
+
+/** Public keys served from local files instead of MAuth, see [[com.mdsol.mauth.utils.FilePublicKeyProvider]].
+  * Lookups of the keys in the files are answered from memory, the others go to the fallback provider if any.
+  */
+object FilePublicKeyProvider {
+
+  def future(keys: JavaFilePublicKeyProvider, fallback: Option[ClientPublicKeyProvider[Future]] = None): ClientPublicKeyProvider[Future] =
+    new ClientPublicKeyProvider[Future] {
+      override def getPublicKey(appUUID: UUID): Future[Option[PublicKey]] =
+        Option(keys.findPublicKey(appUUID).orElse(null)) match {
+          case None if fallback.isDefined => fallback.get.getPublicKey(appUUID)
+          case publicKey                  => Future.successful(publicKey)
+        }
+    }
+
+  def sync[F[_]: Sync](keys: JavaFilePublicKeyProvider, fallback: Option[ClientPublicKeyProvider[F]] = None): ClientPublicKeyProvider[F] =
+    new ClientPublicKeyProvider[F] {
+      override def getPublicKey(appUUID: UUID): F[Option[PublicKey]] =
+        Sync[F].defer {
+          Option(keys.findPublicKey(appUUID).orElse(null)) match {
+            case None if fallback.isDefined => fallback.get.getPublicKey(appUUID)
+            case publicKey                  => Sync[F].pure(publicKey)
+          }
+        }
+    }
+
+  /** Load the keys of a directory of PEM files or a bundle file, and watch it while the resource is in use */
+  def resource[F[_]: Sync](source: Path, fallback: Option[ClientPublicKeyProvider[F]] = None): Resource[F, ClientPublicKeyProvider[F]] =
+    Resource.fromAutoCloseable(Sync[F].blocking(new JavaFilePublicKeyProvider(source))).map(sync(_, fallback))
+}
@@ -0,0 +1,44 @@
+package com.mdsol.mauth.scaladsl.utils
+
+import cats.effect.Sync
+import com.mdsol.mauth.utils.{PublicKeySnapshot, SharedPublicKeyCache => JavaSharedPublicKeyCache}
+
+import java.util.UUID
+import scala.concurrent.{blocking, ExecutionContext, Future}
+
+/** Second level public key cache shared by the key providers of several JVMs, consulted before fetching a key from MAuth.
+  * See [[com.mdsol.mauth.utils.SharedPublicKeyCache]].
+  */
+trait SharedPublicKeyCache[F[_]] {
+
+  /** @param appUUID the app UUID of the key
+    * @return the key cached for the app UUID, None when there is none or it is past its max-age
+    */
+  def get(appUUID: UUID): F[Option[PublicKeySnapshot.Entry]]
+
+  /** Cache a key fetched from MAuth
+    *
+    * @param entry the key and when it was fetched
+    */
+  def put(entry: PublicKeySnapshot.Entry): F[Unit]
+}
+
+object SharedPublicKeyCache {
+
+  /** Run a blocking Java shared cache, e.g. [[com.mdsol.mauth.utils.MappedFilePublicKeyCache]], on an execution context */
+  def future(cache: JavaSharedPublicKeyCache)(implicit ec: ExecutionContext): SharedPublicKeyCache[Future] =
+    new SharedPublicKeyCache[Future] {
+      override def get(appUUID: UUID): Future[Option[PublicKeySnapshot.Entry]] =
+        Future(blocking(Option(cache.get(appUUID).orElse(null))))
+
+      override def put(entry: PublicKeySnapshot.Entry): Future[Unit] = Future(blocking(cache.put(entry)))
+    }
+
+  /** Run a blocking Java shared cache, e.g. [[com.mdsol.mauth.utils.MappedFilePublicKeyCache]], on the blocking pool */
+  def sync[F[_]: Sync](cache: JavaSharedPublicKeyCache): SharedPublicKeyCache[F] =
+    new SharedPublicKeyCache[F] {
+      override def get(appUUID: UUID): F[Option[PublicKeySnapshot.Entry]] = Sync[F].blocking(Option(cache.get(appUUID).orElse(null)))
+
+      override def put(entry: PublicKeySnapshot.Entry): F[Unit] = Sync[F].blocking(cache.put(entry))
+    }
+}
@@ -0,0 +1,109 @@
+package com.mdsol.mauth
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.security.{PublicKey, Security}
+import java.util.UUID
+
+import com.mdsol.mauth.exceptions.MAuthKeyException
+import com.mdsol.mauth.scaladsl.utils.{FilePublicKeyProvider => ScalaFilePublicKeyProvider}
+import com.mdsol.mauth.test.utils.TestFixtures
+import com.mdsol.mauth.util.{MAuthKeysHelper, MAuthPublicKey}
+import com.mdsol.mauth.utils.{ClientPublicKeyProvider, FilePublicKeyProvider}
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import org.scalatest.concurrent.{Eventually, ScalaFutures}
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+import org.scalatest.time.{Seconds, Span}
+
+import scala.concurrent.Future
+
+class FilePublicKeyProviderSpec extends AnyFlatSpec with Matchers with Eventually with ScalaFutures {
+
+  implicit override val patienceConfig: PatienceConfig = PatienceConfig(timeout = Span(30, Seconds))
+
+  Security.addProvider(new BouncyCastleProvider)
+
+  private val APP_UUID_1 = UUID.fromString(TestFixtures.APP_UUID_1)
+  private val APP_UUID_2 = UUID.fromString(TestFixtures.APP_UUID_V2)
+  private val PUBLIC_KEY_1 = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+  private val PUBLIC_KEY_2 = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_2)
+
+  private def write(file: Path, content: String): Unit = {
+    // replaced atomically, as deployment tools do
+    val temporary = Files.createTempFile(file.getParent, "keys", ".tmp")
+    Files.write(temporary, content.getBytes(StandardCharsets.UTF_8))
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    ()
+  }
+
+  behavior of "FilePublicKeyProvider"
+
+  it should "serve the keys of a directory of PEM files" in {
+    val directory = Files.createTempDirectory("mauth-keys")
+    write(directory.resolve(s"$APP_UUID_1.pem"), TestFixtures.PUBLIC_KEY_1)
+    write(directory.resolve("README.txt"), "not a key")
+    val provider = new FilePublicKeyProvider(directory)
+    try {
+      provider.getPublicKey(APP_UUID_1) shouldBe PUBLIC_KEY_1
+      provider.getPublicKey(APP_UUID_1) shouldBe a[MAuthPublicKey]
+      provider.getAppUUIDs should contain only APP_UUID_1
+      intercept[MAuthKeyException](provider.getPublicKey(APP_UUID_2)).getMessage should include(APP_UUID_2.toString)
+    } finally provider.close()
+  }
+
+  it should "reload the keys when the directory changes" in {
+    val directory = Files.createTempDirectory("mauth-keys")
+    write(directory.resolve(s"$APP_UUID_1.pem"), TestFixtures.PUBLIC_KEY_1)
+    val provider = new FilePublicKeyProvider(directory)
+    try {
+      write(directory.resolve(s"$APP_UUID_2.pem"), TestFixtures.PUBLIC_KEY_2)
+      Files.delete(directory.resolve(s"$APP_UUID_1.pem"))
+      eventually {
+        provider.findPublicKey(APP_UUID_2).orElse(null) shouldBe PUBLIC_KEY_2
+        provider.findPublicKey(APP_UUID_1).isPresent shouldBe false
+      }
+    } finally provider.close()
+  }
+
+  it should "serve and reload the keys of a bundle file, skipping invalid entries" in {
+    val bundle = Files.createTempDirectory("mauth-keys").resolve("public-keys.pem")
+    write(bundle, s"# client apps\n$APP_UUID_1\n${TestFixtures.PUBLIC_KEY_1}\nnot-a-uuid\n${TestFixtures.PUBLIC_KEY_2}\n")
+    val provider = new FilePublicKeyProvider(bundle)
+    try {
+      provider.getAppUUIDs should contain only APP_UUID_1
+      provider.getPublicKey(APP_UUID_1) shouldBe PUBLIC_KEY_1
+
+      write(bundle, s"$APP_UUID_1\n${TestFixtures.PUBLIC_KEY_2}\n$APP_UUID_2\n${TestFixtures.PUBLIC_KEY_1}\n")
+      eventually {
+        provider.getPublicKey(APP_UUID_1) shouldBe PUBLIC_KEY_2
+        provider.getPublicKey(APP_UUID_2) shouldBe PUBLIC_KEY_1
+      }
+    } finally provider.close()
+  }
+
+  it should "ask the fallback provider for the keys that are not in the files" in {
+    val directory = Files.createTempDirectory("mauth-keys")
+    write(directory.resolve(s"$APP_UUID_1.pem"), TestFixtures.PUBLIC_KEY_1)
+    val fallback: ClientPublicKeyProvider = appUUID => if (appUUID == APP_UUID_2) PUBLIC_KEY_2 else null
+    val provider = new FilePublicKeyProvider(directory, fallback)
+    try {
+      provider.getPublicKey(APP_UUID_1) shouldBe PUBLIC_KEY_1
+      provider.getPublicKey(APP_UUID_2) shouldBe PUBLIC_KEY_2
+    } finally provider.close()
+  }
+
+  it should "serve the keys of the files from the Future provider, falling back for the others" in {
+    val directory = Files.createTempDirectory("mauth-keys")
+    write(directory.resolve(s"$APP_UUID_1.pem"), TestFixtures.PUBLIC_KEY_1)
+    val provider = new FilePublicKeyProvider(directory)
+    try {
+      val fallback = new com.mdsol.mauth.scaladsl.utils.ClientPublicKeyProvider[Future] {
+        override def getPublicKey(appUUID: UUID): Future[Option[PublicKey]] = Future.successful(Some(PUBLIC_KEY_2))
+      }
+      ScalaFilePublicKeyProvider.future(provider).getPublicKey(APP_UUID_2).futureValue shouldBe None
+      ScalaFilePublicKeyProvider.future(provider, Some(fallback)).getPublicKey(APP_UUID_1).futureValue shouldBe Some(PUBLIC_KEY_1)
+      ScalaFilePublicKeyProvider.future(provider, Some(fallback)).getPublicKey(APP_UUID_2).futureValue shouldBe Some(PUBLIC_KEY_2)
+    } finally provider.close()
+  }
+}
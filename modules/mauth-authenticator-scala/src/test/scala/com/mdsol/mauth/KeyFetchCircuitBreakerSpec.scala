@@ -0,0 +1,90 @@
+package com.mdsol.mauth
+
+import com.mdsol.mauth.utils.KeyFetchCircuitBreaker
+import com.mdsol.mauth.utils.KeyFetchCircuitBreaker.State
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class KeyFetchCircuitBreakerSpec extends AnyFlatSpec with Matchers {
+
+  behavior of "KeyFetchCircuitBreaker"
+
+  it should "open after the failure threshold in a row and fail fast while open" in {
+    val breaker = new KeyFetchCircuitBreaker(2, 60000, 0)
+    breaker.tryAcquire().onFailure()
+    breaker.tryAcquire().onSuccess()
+    breaker.tryAcquire().onFailure()
+    breaker.getState shouldBe State.CLOSED
+
+    breaker.tryAcquire().onFailure()
+    breaker.getState shouldBe State.OPEN
+    breaker.tryAcquire() shouldBe null
+  }
+
+  it should "let a single probe through once half open, closed by its success" in {
+    val breaker = new KeyFetchCircuitBreaker(1, 0, 0)
+    breaker.tryAcquire().onFailure()
+    breaker.getState shouldBe State.HALF_OPEN
+
+    val probe = breaker.tryAcquire()
+    probe.isProbe shouldBe true
+    breaker.tryAcquire() shouldBe null
+
+    probe.onSuccess()
+    breaker.getState shouldBe State.CLOSED
+    breaker.tryAcquire().isProbe shouldBe false
+  }
+
+  it should "open again when the probe fails" in {
+    val breaker = new KeyFetchCircuitBreaker(1, 100, 0)
+    breaker.tryAcquire().onFailure()
+    Thread.sleep(150)
+
+    val probe = breaker.tryAcquire()
+    probe.isProbe shouldBe true
+    probe.onFailure()
+    breaker.getState shouldBe State.OPEN
+    breaker.tryAcquire() shouldBe null
+  }
+
+  it should "ignore the outcome of the fetches started before it opened" in {
+    val breaker = new KeyFetchCircuitBreaker(1, 0, 0)
+    val early = breaker.tryAcquire()
+    val late = breaker.tryAcquire()
+    val canceled = breaker.tryAcquire()
+    breaker.tryAcquire().onFailure()
+
+    val probe = breaker.tryAcquire()
+    probe.isProbe shouldBe true
+    early.onSuccess()
+    breaker.getState shouldBe State.HALF_OPEN
+    late.onFailure()
+    canceled.release()
+    breaker.tryAcquire() shouldBe null
+
+    probe.onSuccess()
+    breaker.getState shouldBe State.CLOSED
+  }
+
+  it should "let another probe through when the probe is released" in {
+    val breaker = new KeyFetchCircuitBreaker(1, 0, 0)
+    breaker.tryAcquire().onFailure()
+
+    breaker.tryAcquire().release()
+    val probe = breaker.tryAcquire()
+    probe.isProbe shouldBe true
+  }
+
+  it should "limit the outstanding fetches, releasing each permit once" in {
+    val breaker = new KeyFetchCircuitBreaker(0, 0, 1)
+    val permit = breaker.tryAcquire()
+    breaker.tryAcquire() shouldBe null
+
+    permit.onFailure()
+    permit.release()
+    val next = breaker.tryAcquire()
+    next should not be null
+    breaker.tryAcquire() shouldBe null
+    breaker.getState shouldBe State.CLOSED
+  }
+}
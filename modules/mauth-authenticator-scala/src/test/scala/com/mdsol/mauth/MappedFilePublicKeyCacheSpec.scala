@@ -0,0 +1,145 @@
+package com.mdsol.mauth
+
+import java.io.{IOException, RandomAccessFile}
+import java.nio.file.{Files, Path}
+import java.security.{PublicKey, Security}
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.mdsol.mauth.test.utils.TestFixtures
+import com.mdsol.mauth.util.MAuthKeysHelper
+import com.mdsol.mauth.utils.{MappedFilePublicKeyCache, PublicKeySnapshot}
+import com.typesafe.config.ConfigFactory
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class MappedFilePublicKeyCacheSpec extends AnyFlatSpec with Matchers {
+
+  Security.addProvider(new BouncyCastleProvider)
+
+  private val PUBLIC_KEY_1 = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+  private val PUBLIC_KEY_2 = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_2)
+
+  private def cachePath(): Path = Files.createTempDirectory("mauth").resolve("public-keys.cache")
+
+  private def entry(appUUID: UUID, publicKey: PublicKey = PUBLIC_KEY_1, ageSeconds: Long = 0, maxAgeSeconds: Long = 3600) =
+    new PublicKeySnapshot.Entry(appUUID, publicKey, System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ageSeconds), maxAgeSeconds)
+
+  private def encodedKey(cache: MappedFilePublicKeyCache, appUUID: UUID): Option[Seq[Byte]] = {
+    val entry = cache.get(appUUID)
+    if (entry.isPresent) Some(entry.get.getPublicKey.getEncoded.toSeq) else None
+  }
+
+  private def withCache(slots: Int)(test: MappedFilePublicKeyCache => Unit): Unit = {
+    val cache = new MappedFilePublicKeyCache(cachePath(), slots)
+    try test(cache)
+    finally cache.close()
+  }
+
+  private def configuration(path: Path, slots: Int): AuthenticatorConfiguration =
+    new AuthenticatorConfiguration(
+      ConfigFactory
+        .parseString(s"""mauth {
+                        |  base_url: "http://localhost"
+                        |  shared_key_cache_path: "$path"
+                        |  shared_key_cache_slots: $slots
+                        |}""".stripMargin)
+        .withFallback(ConfigFactory.defaultReference())
+    )
+
+  behavior of "MappedFilePublicKeyCache"
+
+  it should "return the key put for an app UUID, and the latest one when it is put again" in withCache(16) { cache =>
+    val appUUID = UUID.randomUUID()
+    cache.get(appUUID).isPresent shouldBe false
+
+    cache.put(entry(appUUID))
+    encodedKey(cache, appUUID) shouldBe Some(PUBLIC_KEY_1.getEncoded.toSeq)
+    cache.get(appUUID).get.getMaxAgeSeconds shouldBe 3600L
+
+    cache.put(entry(appUUID, PUBLIC_KEY_2))
+    encodedKey(cache, appUUID) shouldBe Some(PUBLIC_KEY_2.getEncoded.toSeq)
+  }
+
+  it should "keep colliding app UUIDs in the following slots, and overwrite one when all of them are taken" in withCache(2) { cache =>
+    val (first, second, third) = (UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID())
+    cache.put(entry(first))
+    cache.put(entry(second))
+    encodedKey(cache, first) shouldBe defined
+    encodedKey(cache, second) shouldBe defined
+
+    cache.put(entry(third))
+    encodedKey(cache, third) shouldBe defined
+    Seq(first, second).count(encodedKey(cache, _).isDefined) shouldBe 1
+  }
+
+  it should "not return a key past its max-age, and reuse its slot" in withCache(1) { cache =>
+    val (expired, next) = (UUID.randomUUID(), UUID.randomUUID())
+    cache.put(entry(expired, ageSeconds = 120, maxAgeSeconds = 60))
+    cache.get(expired).isPresent shouldBe false
+
+    cache.put(entry(next))
+    encodedKey(cache, next) shouldBe defined
+  }
+
+  it should "skip a slot whose checksum does not match, as when it is being written" in {
+    val path = cachePath()
+    val appUUID = UUID.randomUUID()
+    val cache = new MappedFilePublicKeyCache(path, 1)
+    try {
+      cache.put(entry(appUUID))
+      encodedKey(cache, appUUID) shouldBe defined
+
+      // a byte of the key in the only slot, after the file header, slot header and record header
+      val file = new RandomAccessFile(path.toFile, "rw")
+      try {
+        file.seek(16L + 8 + 32 + 40)
+        val byte = file.read()
+        file.seek(16L + 8 + 32 + 40)
+        file.write(byte ^ 0xff)
+      } finally file.close()
+      cache.get(appUUID).isPresent shouldBe false
+    } finally cache.close()
+  }
+
+  it should "share the keys between the instances of a file, as between JVMs" in {
+    val path = cachePath()
+    val appUUID = UUID.randomUUID()
+    val writer = new MappedFilePublicKeyCache(path, 16)
+    val reader = new MappedFilePublicKeyCache(path, 16)
+    try {
+      writer.put(entry(appUUID))
+      encodedKey(reader, appUUID) shouldBe Some(PUBLIC_KEY_1.getEncoded.toSeq)
+    } finally {
+      writer.close()
+      reader.close()
+    }
+  }
+
+  it should "not open a file with a different number of slots" in {
+    val path = cachePath()
+    new MappedFilePublicKeyCache(path, 16).close()
+    an[IOException] should be thrownBy new MappedFilePublicKeyCache(path, 8)
+  }
+
+  it should "return the same instance for a file from the configuration until it is closed as many times" in {
+    val path = cachePath()
+    val appUUID = UUID.randomUUID()
+    val first = MappedFilePublicKeyCache.fromConfiguration(configuration(path, 16)).get
+    val second = MappedFilePublicKeyCache.fromConfiguration(configuration(path, 16)).get
+    second should be theSameInstanceAs first
+    MappedFilePublicKeyCache.fromConfiguration(configuration(path, 8)).isPresent shouldBe false
+
+    first.put(entry(appUUID))
+    first.close()
+    encodedKey(second, appUUID) shouldBe defined
+    second.close()
+
+    val reopened = MappedFilePublicKeyCache.fromConfiguration(configuration(path, 16)).get
+    try {
+      reopened should not be theSameInstanceAs(first)
+      encodedKey(reopened, appUUID) shouldBe defined
+    } finally reopened.close()
+  }
+}
@@ -2,26 +2,138 @@ package com.mdsol.mauth;
 
 import com.typesafe.config.Config;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
 public class AuthenticatorConfiguration implements MAuthConfiguration{
   public static final String MAUTH_SECTION_HEADER = "mauth";
   public static final String BASE_URL_PATH = MAUTH_SECTION_HEADER + ".base_url";
+  public static final String BASE_URLS_PATH = MAUTH_SECTION_HEADER + ".base_urls";
+  public static final String HEDGE_DELAY_MILLIS = MAUTH_SECTION_HEADER + ".hedge_delay_millis";
   public static final String REQUEST_URL_PATH = MAUTH_SECTION_HEADER + ".request_url";
   public static final String TOKEN_URL_PATH = MAUTH_SECTION_HEADER + ".token_url";
   public static final String V2_ONLY_AUTHENTICATE= MAUTH_SECTION_HEADER + ".v2_only_authenticate";
+  public static final String NEGATIVE_CACHE_TTL_SECONDS = MAUTH_SECTION_HEADER + ".negative_cache_ttl_seconds";
+  public static final String MIN_KEY_FETCH_INTERVAL_MILLIS = MAUTH_SECTION_HEADER + ".min_key_fetch_interval_millis";
+  public static final String REFRESH_AHEAD_RATIO = MAUTH_SECTION_HEADER + ".refresh_ahead_ratio";
+  public static final String STALE_IF_ERROR_SECONDS = MAUTH_SECTION_HEADER + ".stale_if_error_seconds";
+  public static final String PREFETCH_APP_UUIDS = MAUTH_SECTION_HEADER + ".prefetch_app_uuids";
+  public static final String PREFETCH_CONCURRENCY = MAUTH_SECTION_HEADER + ".prefetch_concurrency";
+  public static final String KEY_SNAPSHOT_PATH = MAUTH_SECTION_HEADER + ".key_snapshot_path";
+  public static final String KEY_SNAPSHOT_INTERVAL_SECONDS = MAUTH_SECTION_HEADER + ".key_snapshot_interval_seconds";
+  public static final String SHARED_KEY_CACHE_PATH = MAUTH_SECTION_HEADER + ".shared_key_cache_path";
+  public static final String SHARED_KEY_CACHE_SLOTS = MAUTH_SECTION_HEADER + ".shared_key_cache_slots";
+  public static final String KEY_FETCH_POOL_SIZE = MAUTH_SECTION_HEADER + ".key_fetch_pool_size";
+  public static final String KEY_FETCH_CONNECT_TIMEOUT_MILLIS = MAUTH_SECTION_HEADER + ".key_fetch_connect_timeout_millis";
+  public static final String KEY_FETCH_READ_TIMEOUT_MILLIS = MAUTH_SECTION_HEADER + ".key_fetch_read_timeout_millis";
+  public static final String KEY_FETCH_QUEUE_SIZE = MAUTH_SECTION_HEADER + ".key_fetch_queue_size";
+  public static final String KEY_CACHE_MAX_SIZE = MAUTH_SECTION_HEADER + ".key_cache_max_size";
+  public static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD = MAUTH_SECTION_HEADER + ".circuit_breaker_failure_threshold";
+  public static final String CIRCUIT_BREAKER_OPEN_MILLIS = MAUTH_SECTION_HEADER + ".circuit_breaker_open_millis";
+  public static final String MAX_CONCURRENT_KEY_FETCHES = MAUTH_SECTION_HEADER + ".max_concurrent_key_fetches";
   private static final long CACHE_TIME_TO_LIVE_SECONDS = 300L;
+  public static final long DEFAULT_NEGATIVE_CACHE_TTL_SECONDS = 5L;
+  public static final long DEFAULT_MIN_KEY_FETCH_INTERVAL_MILLIS = 1000L;
+  public static final double DEFAULT_REFRESH_AHEAD_RATIO = 0.8;
+  // serving keys past their time to live is disabled by default
+  public static final long DEFAULT_STALE_IF_ERROR_SECONDS = 0L;
+  public static final int DEFAULT_PREFETCH_CONCURRENCY = 8;
+  public static final long DEFAULT_KEY_SNAPSHOT_INTERVAL_SECONDS = 60L;
+  public static final int DEFAULT_SHARED_KEY_CACHE_SLOTS = 1024;
+  // hedged key fetches are disabled by default
+  public static final long DEFAULT_HEDGE_DELAY_MILLIS = 0L;
+  public static final int DEFAULT_KEY_FETCH_POOL_SIZE = 16;
+  public static final long DEFAULT_KEY_FETCH_CONNECT_TIMEOUT_MILLIS = 2000L;
+  public static final long DEFAULT_KEY_FETCH_READ_TIMEOUT_MILLIS = 5000L;
+  public static final int DEFAULT_KEY_FETCH_QUEUE_SIZE = 64;
+  public static final long DEFAULT_KEY_CACHE_MAX_SIZE = 10000L;
+  public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 10000L;
+  // the number of outstanding key fetches is not limited by default
+  public static final int DEFAULT_MAX_CONCURRENT_KEY_FETCHES = 0;
 
   private final String baseUrl;
+  private List<String> baseUrls;
   private final String requestUrlPath;
   private final String securityTokensUrlPath;
   private final boolean v2OnlyAuthenticate;
+  private long negativeCacheTtlSeconds = DEFAULT_NEGATIVE_CACHE_TTL_SECONDS;
+  private long minKeyFetchIntervalMillis = DEFAULT_MIN_KEY_FETCH_INTERVAL_MILLIS;
+  private double refreshAheadRatio = DEFAULT_REFRESH_AHEAD_RATIO;
+  private long staleIfErrorSeconds = DEFAULT_STALE_IF_ERROR_SECONDS;
+  private List<UUID> prefetchAppUUIDs = Collections.emptyList();
+  private int prefetchConcurrency = DEFAULT_PREFETCH_CONCURRENCY;
+  private Path keySnapshotPath;
+  private long keySnapshotIntervalSeconds = DEFAULT_KEY_SNAPSHOT_INTERVAL_SECONDS;
+  private Path sharedKeyCachePath;
+  private int sharedKeyCacheSlots = DEFAULT_SHARED_KEY_CACHE_SLOTS;
+  private long hedgeDelayMillis = DEFAULT_HEDGE_DELAY_MILLIS;
+  private int keyFetchPoolSize = DEFAULT_KEY_FETCH_POOL_SIZE;
+  private long keyFetchConnectTimeoutMillis = DEFAULT_KEY_FETCH_CONNECT_TIMEOUT_MILLIS;
+  private long keyFetchReadTimeoutMillis = DEFAULT_KEY_FETCH_READ_TIMEOUT_MILLIS;
+  private int keyFetchQueueSize = DEFAULT_KEY_FETCH_QUEUE_SIZE;
+  private long keyCacheMaxSize = DEFAULT_KEY_CACHE_MAX_SIZE;
+  private int circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+  private long circuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+  private int maxConcurrentKeyFetches = DEFAULT_MAX_CONCURRENT_KEY_FETCHES;
 
   public AuthenticatorConfiguration(Config config) {
     this(
-        config.getString(BASE_URL_PATH),
+        getBaseUrls(config).get(0),
         config.getString(REQUEST_URL_PATH),
         config.getString(TOKEN_URL_PATH),
         config.getBoolean(V2_ONLY_AUTHENTICATE)
     );
+    this.negativeCacheTtlSeconds = config.hasPath(NEGATIVE_CACHE_TTL_SECONDS)
+        ? config.getLong(NEGATIVE_CACHE_TTL_SECONDS) : DEFAULT_NEGATIVE_CACHE_TTL_SECONDS;
+    this.minKeyFetchIntervalMillis = config.hasPath(MIN_KEY_FETCH_INTERVAL_MILLIS)
+        ? config.getLong(MIN_KEY_FETCH_INTERVAL_MILLIS) : DEFAULT_MIN_KEY_FETCH_INTERVAL_MILLIS;
+    this.refreshAheadRatio = config.hasPath(REFRESH_AHEAD_RATIO)
+        ? config.getDouble(REFRESH_AHEAD_RATIO) : DEFAULT_REFRESH_AHEAD_RATIO;
+    this.staleIfErrorSeconds = config.hasPath(STALE_IF_ERROR_SECONDS)
+        ? config.getLong(STALE_IF_ERROR_SECONDS) : DEFAULT_STALE_IF_ERROR_SECONDS;
+    if (config.hasPath(PREFETCH_APP_UUIDS)) {
+      this.prefetchAppUUIDs = getPrefetchAppUUIDs(config.getStringList(PREFETCH_APP_UUIDS));
+    }
+    this.prefetchConcurrency = config.hasPath(PREFETCH_CONCURRENCY)
+        ? config.getInt(PREFETCH_CONCURRENCY) : DEFAULT_PREFETCH_CONCURRENCY;
+    if (config.hasPath(KEY_SNAPSHOT_PATH) && !config.getString(KEY_SNAPSHOT_PATH).trim().isEmpty()) {
+      this.keySnapshotPath = Paths.get(config.getString(KEY_SNAPSHOT_PATH).trim());
+    }
+    this.keySnapshotIntervalSeconds = config.hasPath(KEY_SNAPSHOT_INTERVAL_SECONDS)
+        ? config.getLong(KEY_SNAPSHOT_INTERVAL_SECONDS) : DEFAULT_KEY_SNAPSHOT_INTERVAL_SECONDS;
+    if (config.hasPath(SHARED_KEY_CACHE_PATH) && !config.getString(SHARED_KEY_CACHE_PATH).trim().isEmpty()) {
+      this.sharedKeyCachePath = Paths.get(config.getString(SHARED_KEY_CACHE_PATH).trim());
+    }
+    this.sharedKeyCacheSlots = config.hasPath(SHARED_KEY_CACHE_SLOTS)
+        ? config.getInt(SHARED_KEY_CACHE_SLOTS) : DEFAULT_SHARED_KEY_CACHE_SLOTS;
+    this.baseUrls = getBaseUrls(config);
+    for (String url : baseUrls) {
+      validateNotBlank(url, "MAuth base url");
+    }
+    this.hedgeDelayMillis = config.hasPath(HEDGE_DELAY_MILLIS)
+        ? config.getLong(HEDGE_DELAY_MILLIS) : DEFAULT_HEDGE_DELAY_MILLIS;
+    this.keyFetchPoolSize = config.hasPath(KEY_FETCH_POOL_SIZE)
+        ? config.getInt(KEY_FETCH_POOL_SIZE) : DEFAULT_KEY_FETCH_POOL_SIZE;
+    this.keyFetchConnectTimeoutMillis = config.hasPath(KEY_FETCH_CONNECT_TIMEOUT_MILLIS)
+        ? config.getLong(KEY_FETCH_CONNECT_TIMEOUT_MILLIS) : DEFAULT_KEY_FETCH_CONNECT_TIMEOUT_MILLIS;
+    this.keyFetchReadTimeoutMillis = config.hasPath(KEY_FETCH_READ_TIMEOUT_MILLIS)
+        ? config.getLong(KEY_FETCH_READ_TIMEOUT_MILLIS) : DEFAULT_KEY_FETCH_READ_TIMEOUT_MILLIS;
+    this.keyFetchQueueSize = config.hasPath(KEY_FETCH_QUEUE_SIZE)
+        ? config.getInt(KEY_FETCH_QUEUE_SIZE) : DEFAULT_KEY_FETCH_QUEUE_SIZE;
+    this.keyCacheMaxSize = config.hasPath(KEY_CACHE_MAX_SIZE)
+        ? config.getLong(KEY_CACHE_MAX_SIZE) : DEFAULT_KEY_CACHE_MAX_SIZE;
+    this.circuitBreakerFailureThreshold = config.hasPath(CIRCUIT_BREAKER_FAILURE_THRESHOLD)
+        ? config.getInt(CIRCUIT_BREAKER_FAILURE_THRESHOLD) : DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+    this.circuitBreakerOpenMillis = config.hasPath(CIRCUIT_BREAKER_OPEN_MILLIS)
+        ? config.getLong(CIRCUIT_BREAKER_OPEN_MILLIS) : DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+    this.maxConcurrentKeyFetches = config.hasPath(MAX_CONCURRENT_KEY_FETCHES)
+        ? config.getInt(MAX_CONCURRENT_KEY_FETCHES) : DEFAULT_MAX_CONCURRENT_KEY_FETCHES;
   }
 
   public AuthenticatorConfiguration(String baseUrl, String requestUrlPath, String securityTokensUrlPath) {
@@ -33,11 +145,24 @@ public class AuthenticatorConfiguration implements MAuthConfiguration{
     validateNotBlank(requestUrlPath, "MAuth request url path");
     validateNotBlank(securityTokensUrlPath, "MAuth Security tokens url path");
     this.baseUrl = baseUrl;
+    this.baseUrls = Collections.singletonList(baseUrl);
     this.requestUrlPath = requestUrlPath;
     this.securityTokensUrlPath = securityTokensUrlPath;
     this.v2OnlyAuthenticate = v2OnlyAuthenticate;
   }
 
+  /**
+   * @param negativeCacheTtlSeconds how long an app UUID unknown to MAuth (401 or 404) is remembered, 0 to disable
+   * @param minKeyFetchIntervalMillis the minimum time between fetches of the public key of the same app UUID
+   *                                  after a failed fetch, 0 to disable
+   */
+  public AuthenticatorConfiguration(String baseUrl, String requestUrlPath, String securityTokensUrlPath, boolean v2OnlyAuthenticate,
+      long negativeCacheTtlSeconds, long minKeyFetchIntervalMillis) {
+    this(baseUrl, requestUrlPath, securityTokensUrlPath, v2OnlyAuthenticate);
+    this.negativeCacheTtlSeconds = negativeCacheTtlSeconds;
+    this.minKeyFetchIntervalMillis = minKeyFetchIntervalMillis;
+  }
+
   @Deprecated
   public AuthenticatorConfiguration(String baseUrl, String requestUrlPath, String securityTokensUrlPath, Long timeToLive) {
     this (baseUrl, requestUrlPath, securityTokensUrlPath, false);
@@ -64,8 +189,157 @@ public class AuthenticatorConfiguration implements MAuthConfiguration{
     return baseUrl;
   }
 
+  /**
+   * @return the base URLs of the MAuth instances keys are fetched from, {@link #getBaseUrl()} first unless
+   * {@value #BASE_URLS_PATH} is set
+   */
+  public List<String> getBaseUrls() {
+    return baseUrls;
+  }
+
+  /**
+   * @return how long a key fetch waits for MAuth before it sends the same request to another base URL, 0 when disabled
+   */
+  public long getHedgeDelayMillis() {
+    return hedgeDelayMillis;
+  }
+
   public boolean isV2OnlyAuthenticate() {
     return v2OnlyAuthenticate;
   }
 
+  public long getNegativeCacheTtlSeconds() {
+    return negativeCacheTtlSeconds;
+  }
+
+  public long getMinKeyFetchIntervalMillis() {
+    return minKeyFetchIntervalMillis;
+  }
+
+  /**
+   * @return the fraction of its time to live after which a public key is reloaded in the background when read,
+   *         0 to disable
+   */
+  public double getRefreshAheadRatio() {
+    return refreshAheadRatio;
+  }
+
+  /**
+   * @return how long a public key past its time to live is still served while it cannot be reloaded
+   */
+  public long getStaleIfErrorSeconds() {
+    return staleIfErrorSeconds;
+  }
+
+  /**
+   * @return the app UUIDs whose public keys are fetched when the key provider is warmed up
+   */
+  public List<UUID> getPrefetchAppUUIDs() {
+    return prefetchAppUUIDs;
+  }
+
+  /**
+   * @return the maximum number of public keys fetched at the same time when the key provider is warmed up
+   */
+  public int getPrefetchConcurrency() {
+    return prefetchConcurrency;
+  }
+
+  /**
+   * @return the file the cached public keys are snapshotted to and restored from at startup, empty when disabled
+   */
+  public Optional<Path> getKeySnapshotPath() {
+    return Optional.ofNullable(keySnapshotPath);
+  }
+
+  public long getKeySnapshotIntervalSeconds() {
+    return keySnapshotIntervalSeconds;
+  }
+
+  /**
+   * @return the memory-mapped file of the public key cache shared by the JVMs of the host, empty when disabled
+   */
+  public Optional<Path> getSharedKeyCachePath() {
+    return Optional.ofNullable(sharedKeyCachePath);
+  }
+
+  public int getSharedKeyCacheSlots() {
+    return sharedKeyCacheSlots;
+  }
+
+  /**
+   * @return how many public keys are fetched from MAuth at the same time, and how many connections to it are pooled
+   */
+  public int getKeyFetchPoolSize() {
+    return keyFetchPoolSize;
+  }
+
+  /**
+   * @return how long a key fetch waits for a connection to MAuth, 0 for no limit
+   */
+  public long getKeyFetchConnectTimeoutMillis() {
+    return keyFetchConnectTimeoutMillis;
+  }
+
+  /**
+   * @return how long a key fetch waits for data from MAuth, 0 for no limit
+   */
+  public long getKeyFetchReadTimeoutMillis() {
+    return keyFetchReadTimeoutMillis;
+  }
+
+  /**
+   * @return how many key fetches of the akka-http provider wait for a pooled connection to MAuth, the others fail fast.
+   *         The other providers bound the outstanding fetches with {@link #getMaxConcurrentKeyFetches()} only
+   */
+  public int getKeyFetchQueueSize() {
+    return keyFetchQueueSize;
+  }
+
+  /**
+   * @return the maximum number of public keys kept by the key providers with a bounded cache, the least used are evicted
+   */
+  public long getKeyCacheMaxSize() {
+    return keyCacheMaxSize;
+  }
+
+  /**
+   * @return the failed key fetches in a row after which key fetches fail fast, 0 to disable the circuit breaker
+   */
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold;
+  }
+
+  /**
+   * @return how long key fetches fail fast before a probe is sent to MAuth again
+   */
+  public long getCircuitBreakerOpenMillis() {
+    return circuitBreakerOpenMillis;
+  }
+
+  /**
+   * @return the maximum key fetches outstanding at a time, the others fail fast, 0 for no limit
+   */
+  public int getMaxConcurrentKeyFetches() {
+    return maxConcurrentKeyFetches;
+  }
+
+  private static List<String> getBaseUrls(Config config) {
+    List<String> baseUrls = config.hasPath(BASE_URLS_PATH) ? config.getStringList(BASE_URLS_PATH) : Collections.emptyList();
+    if (baseUrls.isEmpty()) {
+      return Collections.singletonList(config.getString(BASE_URL_PATH));
+    }
+    return Collections.unmodifiableList(new ArrayList<>(baseUrls));
+  }
+
+  private static List<UUID> getPrefetchAppUUIDs(List<String> appUUIDs) {
+    List<UUID> uuids = new ArrayList<>(appUUIDs.size());
+    for (String appUUID : appUUIDs) {
+      if (!appUUID.trim().isEmpty()) {
+        uuids.add(UUID.fromString(appUUID.trim()));
+      }
+    }
+    return Collections.unmodifiableList(uuids);
+  }
+
 }
@@ -0,0 +1,203 @@
+package com.mdsol.mauth.utils;
+
+import com.mdsol.mauth.exceptions.MAuthKeyException;
+import com.mdsol.mauth.util.MAuthKeysHelper;
+import com.mdsol.mauth.util.MAuthPublicKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Serves public keys from local files instead of MAuth, for a fixed set of client apps.
+ *
+ * The source is either a directory of {@code <app UUID>.pem} files, or a bundle file where each app UUID is on a line
+ * of its own followed by its PEM encoded public key. Lines starting with {@code #} are ignored.
+ *
+ * The keys are held in memory and replaced all at once when the source changes, which is watched with a
+ * {@link WatchService}. Keys that are not found are fetched from the fallback provider, if any.
+ */
+public class FilePublicKeyProvider implements ClientPublicKeyProvider, AutoCloseable {
+
+  public static final String PEM_EXTENSION = ".pem";
+
+  private static final Logger logger = LoggerFactory.getLogger(FilePublicKeyProvider.class);
+  private static final String PEM_BEGIN = "-----BEGIN";
+  private static final String PEM_END = "-----END";
+
+  private final Path source;
+  private final ClientPublicKeyProvider fallback;
+  private final WatchService watchService;
+  private volatile Map<UUID, PublicKey> publicKeys;
+
+  /**
+   * @param source the directory of PEM files or the bundle file
+   * @throws IOException when the source cannot be read or watched
+   */
+  public FilePublicKeyProvider(Path source) throws IOException {
+    this(source, null);
+  }
+
+  /**
+   * @param source the directory of PEM files or the bundle file
+   * @param fallback the provider of the keys that are not in the source, e.g. HttpClientPublicKeyProvider, or null
+   * @throws IOException when the source cannot be read or watched
+   */
+  public FilePublicKeyProvider(Path source, ClientPublicKeyProvider fallback) throws IOException {
+    this.source = source;
+    this.fallback = fallback;
+    this.publicKeys = load();
+    Path directory = Files.isDirectory(source) ? source : source.toAbsolutePath().getParent();
+    this.watchService = directory.getFileSystem().newWatchService();
+    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE);
+    Thread watcher = new Thread(this::watch, "mauth-public-key-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  @Override
+  public PublicKey getPublicKey(UUID appUUID) {
+    PublicKey publicKey = publicKeys.get(appUUID);
+    if (publicKey != null) {
+      return publicKey;
+    }
+    if (fallback != null) {
+      return fallback.getPublicKey(appUUID);
+    }
+    throw new MAuthKeyException("No public key for app " + appUUID + " in " + source);
+  }
+
+  /**
+   * @param appUUID the app UUID of the key
+   * @return the key of the app UUID in the source, without asking the fallback provider
+   */
+  public Optional<PublicKey> findPublicKey(UUID appUUID) {
+    return Optional.ofNullable(publicKeys.get(appUUID));
+  }
+
+  /**
+   * @return the app UUIDs with a key in the source
+   */
+  public Set<UUID> getAppUUIDs() {
+    return publicKeys.keySet();
+  }
+
+  public Path getSource() {
+    return source;
+  }
+
+  /**
+   * Read the source again and replace the keys, it is done when the source changes
+   * @throws IOException when the source cannot be read, the current keys are kept
+   */
+  public void reload() throws IOException {
+    publicKeys = load();
+  }
+
+  /**
+   * Stop watching the source, the current keys are still served
+   */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || isSourceFile((Path) event.context());
+        }
+        if (changed) {
+          try {
+            reload();
+            logger.info("Reloaded {} public keys from {}", publicKeys.size(), source);
+          } catch (IOException ex) {
+            logger.warn("Unable to reload the public keys from " + source + ", keeping the current keys", ex);
+          }
+        }
+        if (!key.reset()) {
+          logger.warn("No longer watching the public keys in {}", source);
+          return;
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException ex) {
+      // closed
+    }
+  }
+
+  private boolean isSourceFile(Path fileName) {
+    return Files.isDirectory(source)
+        ? fileName.toString().endsWith(PEM_EXTENSION)
+        : fileName.equals(source.getFileName());
+  }
+
+  private Map<UUID, PublicKey> load() throws IOException {
+    Map<UUID, PublicKey> keys = new HashMap<>();
+    if (Files.isDirectory(source)) {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(source, "*" + PEM_EXTENSION)) {
+        for (Path file : files) {
+          String fileName = file.getFileName().toString();
+          try {
+            UUID appUUID = UUID.fromString(fileName.substring(0, fileName.length() - PEM_EXTENSION.length()));
+            keys.put(appUUID, parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+          } catch (RuntimeException ex) {
+            logger.warn("Skipping the invalid public key file " + file, ex);
+          }
+        }
+      }
+    } else {
+      loadBundle(keys);
+    }
+    return Collections.unmodifiableMap(keys);
+  }
+
+  private void loadBundle(Map<UUID, PublicKey> keys) throws IOException {
+    String appUUID = null;
+    StringBuilder pem = new StringBuilder();
+    for (String line : Files.readAllLines(source, StandardCharsets.UTF_8)) {
+      String trimmed = line.trim();
+      if (pem.length() > 0 || trimmed.startsWith(PEM_BEGIN)) {
+        pem.append(trimmed).append('\n');
+        if (trimmed.startsWith(PEM_END)) {
+          try {
+            keys.put(UUID.fromString(String.valueOf(appUUID)), parse(pem.toString()));
+          } catch (RuntimeException ex) {
+            logger.warn("Skipping the invalid public key of app " + appUUID + " in " + source, ex);
+          }
+          pem.setLength(0);
+          appUUID = null;
+        }
+      } else if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+        appUUID = trimmed;
+      }
+    }
+  }
+
+  private static PublicKey parse(String pem) {
+    PublicKey publicKey = MAuthKeysHelper.getPublicKeyFromString(pem);
+    if (publicKey == null) {
+      throw new MAuthKeyException("Unable to process public key string");
+    }
+    return MAuthPublicKey.of(publicKey);
+  }
+}
@@ -0,0 +1,147 @@
+package com.mdsol.mauth.utils;
+
+import com.mdsol.mauth.AuthenticatorConfiguration;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards the public key fetches of a key provider, so that an MAuth outage does not hold a thread or a connection for
+ * every cache miss.
+ *
+ * After {@link AuthenticatorConfiguration#getCircuitBreakerFailureThreshold()} failed fetches in a row the breaker opens
+ * and fetches fail fast for {@link AuthenticatorConfiguration#getCircuitBreakerOpenMillis()}. Then a single probe is let
+ * through: the breaker closes when it succeeds and opens again when it fails.
+ *
+ * At most {@link AuthenticatorConfiguration#getMaxConcurrentKeyFetches()} fetches are outstanding at a time, the others
+ * fail fast as well.
+ *
+ * Each {@link Permit} returned by {@link #tryAcquire()} must be followed by exactly one of {@link Permit#onSuccess()},
+ * {@link Permit#onFailure()} or {@link Permit#release()}. Only the outcome of the probe closes or opens again a half open
+ * breaker, the fetches started before it opened do not.
+ */
+public class KeyFetchCircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Semaphore permits;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicLong openedAt = new AtomicLong();
+  private final AtomicBoolean open = new AtomicBoolean();
+  private final AtomicBoolean probing = new AtomicBoolean();
+
+  /**
+   * @param failureThreshold the failed fetches in a row that open the breaker, 0 to never open it
+   * @param openMillis how long the breaker stays open before a probe is let through
+   * @param maxConcurrentFetches the maximum outstanding fetches, 0 for no limit
+   */
+  public KeyFetchCircuitBreaker(int failureThreshold, long openMillis, int maxConcurrentFetches) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.permits = maxConcurrentFetches > 0 ? new Semaphore(maxConcurrentFetches) : null;
+  }
+
+  public static KeyFetchCircuitBreaker fromConfiguration(AuthenticatorConfiguration configuration) {
+    return new KeyFetchCircuitBreaker(configuration.getCircuitBreakerFailureThreshold(), configuration.getCircuitBreakerOpenMillis(),
+        configuration.getMaxConcurrentKeyFetches());
+  }
+
+  /**
+   * @return the permit to send a fetch to MAuth, or null when it should fail fast
+   */
+  public Permit tryAcquire() {
+    if (permits != null && !permits.tryAcquire()) {
+      return null;
+    }
+    if (!open.get()) {
+      return new Permit(false);
+    }
+    if (System.nanoTime() - openedAt.get() < openNanos || !probing.compareAndSet(false, true)) {
+      releasePermit();
+      return null;
+    }
+    return new Permit(true);
+  }
+
+  private void releasePermit() {
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  public State getState() {
+    if (!open.get()) {
+      return State.CLOSED;
+    }
+    return probing.get() || System.nanoTime() - openedAt.get() >= openNanos ? State.HALF_OPEN : State.OPEN;
+  }
+
+  /**
+   * A fetch let through by the breaker, the probe of a half open breaker or any fetch of a closed one
+   */
+  public final class Permit {
+
+    private final boolean probe;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private Permit(boolean probe) {
+      this.probe = probe;
+    }
+
+    public boolean isProbe() {
+      return probe;
+    }
+
+    /**
+     * MAuth answered the fetch, including when it does not know the app
+     */
+    public void onSuccess() {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (probe) {
+        consecutiveFailures.set(0);
+        open.set(false);
+        probing.set(false);
+      } else if (!open.get()) {
+        consecutiveFailures.set(0);
+      }
+      releasePermit();
+    }
+
+    /**
+     * MAuth could not be reached or failed to answer the fetch
+     */
+    public void onFailure() {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (probe) {
+        openedAt.set(System.nanoTime());
+        probing.set(false);
+      } else if (failureThreshold > 0 && !open.get() && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+        openedAt.set(System.nanoTime());
+        open.set(true);
+      }
+      releasePermit();
+    }
+
+    /**
+     * The fetch was abandoned without an answer, e.g. it was canceled. When it was the probe, another one is let through.
+     */
+    public void release() {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (probe) {
+        probing.set(false);
+      }
+      releasePermit();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.mdsol.mauth.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The base URLs of the MAuth instances keys are fetched from, ordered by their observed latency.
+ *
+ * The latency of each base URL is an exponentially weighted moving average of its responses. A failed request counts
+ * as a slow response, so that the base URL is tried after the others until it answers again. Base URLs without a
+ * response yet come first.
+ */
+public class MAuthEndpoints {
+
+  // weight of the latest response in the average
+  private static final double ALPHA = 0.3;
+  private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long MAX_FAILURE_PENALTY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final List<String> baseUrls;
+  private final AtomicLongArray latencyNanos;
+
+  /**
+   * @param baseUrls the base URLs, in the order used until their latency is known
+   */
+  public MAuthEndpoints(List<String> baseUrls) {
+    if (baseUrls.isEmpty()) {
+      throw new IllegalArgumentException("At least one MAuth base url is required");
+    }
+    this.baseUrls = Collections.unmodifiableList(new ArrayList<>(baseUrls));
+    this.latencyNanos = new AtomicLongArray(baseUrls.size());
+  }
+
+  /**
+   * @return the base URLs, the fastest first
+   */
+  public List<String> byLatency() {
+    if (baseUrls.size() == 1) {
+      return baseUrls;
+    }
+    List<Integer> indexes = new ArrayList<>(baseUrls.size());
+    for (int i = 0; i < baseUrls.size(); i++) {
+      indexes.add(i);
+    }
+    indexes.sort(Comparator.comparingLong(latencyNanos::get));
+    List<String> ordered = new ArrayList<>(baseUrls.size());
+    for (int index : indexes) {
+      ordered.add(baseUrls.get(index));
+    }
+    return ordered;
+  }
+
+  public List<String> getBaseUrls() {
+    return baseUrls;
+  }
+
+  /**
+   * @param baseUrl the base URL
+   * @return the average latency of the base URL in nanoseconds, 0 when it has not answered yet
+   */
+  public long getLatencyNanos(String baseUrl) {
+    int index = baseUrls.indexOf(baseUrl);
+    return index < 0 ? 0L : latencyNanos.get(index);
+  }
+
+  /**
+   * @param baseUrl the base URL that answered
+   * @param nanos how long it took to answer, or how long it was waited for when the request was abandoned
+   */
+  public void recordLatency(String baseUrl, long nanos) {
+    int index = baseUrls.indexOf(baseUrl);
+    if (index < 0) {
+      return;
+    }
+    long sample = Math.max(1L, nanos);
+    latencyNanos.getAndUpdate(index, current -> current == 0L ? sample : (long) (ALPHA * sample + (1 - ALPHA) * current));
+  }
+
+  /**
+   * @param baseUrl the base URL that failed to answer
+   */
+  public void recordFailure(String baseUrl) {
+    int index = baseUrls.indexOf(baseUrl);
+    if (index >= 0) {
+      latencyNanos.getAndUpdate(index,
+          current -> Math.min(MAX_FAILURE_PENALTY_NANOS, Math.max(FAILURE_PENALTY_NANOS, 2 * current)));
+    }
+  }
+}
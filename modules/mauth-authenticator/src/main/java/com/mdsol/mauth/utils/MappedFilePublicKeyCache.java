@@ -0,0 +1,265 @@
+package com.mdsol.mauth.utils;
+
+import com.mdsol.mauth.AuthenticatorConfiguration;
+import com.mdsol.mauth.util.MAuthPublicKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SharedPublicKeyCache} in a memory-mapped file, shared by the JVMs of a host without any external service.
+ *
+ * The file has a fixed number of slots, an app UUID is stored in one of the few slots following the
+ * slot of its hash. Writers lock the slot they write with a {@link FileLock}, readers do not lock and skip slots whose
+ * checksum does not match, e.g. while they are being written. File locks are held by the JVM, so use a single instance
+ * per file in a JVM: {@link #fromConfiguration(AuthenticatorConfiguration)} returns the same instance for the same file
+ * until it is closed as many times as it was returned.
+ */
+public class MappedFilePublicKeyCache implements SharedPublicKeyCache, AutoCloseable {
+
+  public static final int DEFAULT_SLOTS = 1024;
+  // large enough for the DER of a 4096 bit RSA key
+  public static final int SLOT_SIZE = 1024;
+
+  private static final Logger logger = LoggerFactory.getLogger(MappedFilePublicKeyCache.class);
+  private static final int MAGIC = 0x4d41504b;
+  private static final int HEADER_SIZE = 16;
+  private static final int MAX_PROBES = 8;
+  // checksum and key length, followed by the app UUID, fetch time, max-age and the DER of the key
+  private static final int SLOT_HEADER_SIZE = 8;
+  private static final int RECORD_SIZE = 32;
+  private static final int MAX_KEY_SIZE = SLOT_SIZE - SLOT_HEADER_SIZE - RECORD_SIZE;
+  // the instances returned by fromConfiguration, by real path
+  private static final Map<Path, MappedFilePublicKeyCache> shared = new HashMap<>();
+
+  private final Path path;
+  private final int slots;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  // guarded by shared, the times fromConfiguration returned this instance and it was not closed yet
+  private Path sharedPath;
+  private int references;
+
+  public MappedFilePublicKeyCache(Path path) throws IOException {
+    this(path, DEFAULT_SLOTS);
+  }
+
+  /**
+   * @param path the file shared by the JVMs, created when it does not exist
+   * @param slots the number of keys the file can hold, must be the same for all the JVMs sharing it
+   * @throws IOException when the file cannot be mapped
+   */
+  public MappedFilePublicKeyCache(Path path, int slots) throws IOException {
+    if (slots < 1) {
+      throw new IllegalArgumentException("Public key cache slots must be at least 1");
+    }
+    this.path = path;
+    this.slots = slots;
+    Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+      FileLock lock = channel.lock(0, HEADER_SIZE, false);
+      try {
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (buffer.getInt(0) != MAGIC) {
+          buffer.putInt(4, 1);
+          buffer.putInt(8, slots);
+          buffer.putInt(12, SLOT_SIZE);
+          buffer.putInt(0, MAGIC);
+        } else if (buffer.getInt(8) != slots || buffer.getInt(12) != SLOT_SIZE) {
+          throw new IOException("Public key cache " + path + " has " + buffer.getInt(8) + " slots, expected " + slots);
+        }
+      } finally {
+        lock.release();
+      }
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * @param configuration the authenticator configuration
+   * @return the cache at {@link AuthenticatorConfiguration#getSharedKeyCachePath()}, empty when it is not set or cannot
+   * be opened. The same instance is returned for the same file, close it once per call
+   */
+  public static Optional<MappedFilePublicKeyCache> fromConfiguration(AuthenticatorConfiguration configuration) {
+    if (!configuration.getSharedKeyCachePath().isPresent()) {
+      return Optional.empty();
+    }
+    Path path = configuration.getSharedKeyCachePath().get();
+    synchronized (shared) {
+      try {
+        MappedFilePublicKeyCache cache = shared.get(realPath(path));
+        if (cache == null) {
+          cache = new MappedFilePublicKeyCache(path, configuration.getSharedKeyCacheSlots());
+          cache.sharedPath = realPath(path);
+          shared.put(cache.sharedPath, cache);
+        } else if (cache.slots != configuration.getSharedKeyCacheSlots()) {
+          throw new IOException("Public key cache " + path + " has " + cache.slots + " slots, expected "
+              + configuration.getSharedKeyCacheSlots());
+        }
+        cache.references++;
+        return Optional.of(cache);
+      } catch (IOException | RuntimeException ex) {
+        logger.warn("Unable to open the shared public key cache " + path, ex);
+        return Optional.empty();
+      }
+    }
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  @Override
+  public Optional<PublicKeySnapshot.Entry> get(UUID appUUID) {
+    long nowMillis = System.currentTimeMillis();
+    for (int probe = 0; probe < MAX_PROBES && probe < slots; probe++) {
+      int slot = slot(appUUID, probe);
+      ByteBuffer record = read(slot);
+      if (record != null && isFor(record, appUUID)) {
+        return isExpired(record, nowMillis) ? Optional.empty() : Optional.ofNullable(toEntry(slot, record));
+      }
+    }
+    return Optional.empty();
+  }
+
+  @Override
+  public void put(PublicKeySnapshot.Entry entry) {
+    byte[] encoded = entry.getPublicKey().getEncoded();
+    if (encoded == null || encoded.length > MAX_KEY_SIZE) {
+      logger.warn("Not caching the public key of app {}, its encoding does not fit in a slot", entry.getAppUUID());
+      return;
+    }
+    int slot = findSlot(entry.getAppUUID());
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE + encoded.length)
+        .putLong(entry.getAppUUID().getMostSignificantBits())
+        .putLong(entry.getAppUUID().getLeastSignificantBits())
+        .putLong(entry.getFetchedAtMillis())
+        .putLong(entry.getMaxAgeSeconds())
+        .put(encoded);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 0, record.capacity());
+    long offset = offset(slot);
+    synchronized (this) {
+      try {
+        FileLock lock = channel.lock(offset, SLOT_SIZE, false);
+        try {
+          ByteBuffer target = buffer.duplicate();
+          target.position((int) offset);
+          target.putInt((int) crc.getValue()).putInt(encoded.length).put(record.array());
+        } finally {
+          lock.release();
+        }
+      } catch (IOException ex) {
+        logger.warn("Unable to write to the public key cache " + path, ex);
+      }
+    }
+  }
+
+  /**
+   * Close the file, once the instance is closed as many times as {@link #fromConfiguration(AuthenticatorConfiguration)}
+   * returned it.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (shared) {
+      if (sharedPath != null) {
+        if (--references > 0) {
+          return;
+        }
+        shared.remove(sharedPath);
+        sharedPath = null;
+      }
+    }
+    channel.close();
+  }
+
+  // the file exists once it is mapped
+  private static Path realPath(Path path) throws IOException {
+    return Files.exists(path) ? path.toRealPath() : path.toAbsolutePath().normalize();
+  }
+
+  // the slot of the app UUID, else the first free or expired one, else the slot of its hash
+  private int findSlot(UUID appUUID) {
+    long nowMillis = System.currentTimeMillis();
+    int free = -1;
+    for (int probe = 0; probe < MAX_PROBES && probe < slots; probe++) {
+      int slot = slot(appUUID, probe);
+      ByteBuffer record = read(slot);
+      if (record != null && isFor(record, appUUID)) {
+        return slot;
+      }
+      if (free < 0 && (record == null || isExpired(record, nowMillis))) {
+        free = slot;
+      }
+    }
+    return free >= 0 ? free : slot(appUUID, 0);
+  }
+
+  private int slot(UUID appUUID, int probe) {
+    return Math.floorMod(appUUID.hashCode() + probe, slots);
+  }
+
+  private long offset(int slot) {
+    return HEADER_SIZE + (long) slot * SLOT_SIZE;
+  }
+
+  // the record of a slot, null when it is empty or being written
+  private ByteBuffer read(int slot) {
+    ByteBuffer source = buffer.duplicate();
+    source.position((int) offset(slot));
+    int checksum = source.getInt();
+    int keyLength = source.getInt();
+    if (keyLength <= 0 || keyLength > MAX_KEY_SIZE) {
+      return null;
+    }
+    byte[] record = new byte[RECORD_SIZE + keyLength];
+    source.get(record);
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, record.length);
+    return (int) crc.getValue() == checksum ? ByteBuffer.wrap(record) : null;
+  }
+
+  private static boolean isFor(ByteBuffer record, UUID appUUID) {
+    return record.getLong(0) == appUUID.getMostSignificantBits() && record.getLong(8) == appUUID.getLeastSignificantBits();
+  }
+
+  private static boolean isExpired(ByteBuffer record, long nowMillis) {
+    return nowMillis - record.getLong(16) >= TimeUnit.SECONDS.toMillis(record.getLong(24));
+  }
+
+  private PublicKeySnapshot.Entry toEntry(int slot, ByteBuffer record) {
+    try {
+      byte[] encoded = Arrays.copyOfRange(record.array(), RECORD_SIZE, record.capacity());
+      PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+      return new PublicKeySnapshot.Entry(new UUID(record.getLong(0), record.getLong(8)), MAuthPublicKey.of(publicKey),
+          record.getLong(16), record.getLong(24));
+    } catch (GeneralSecurityException ex) {
+      logger.warn("Skipping an invalid public key in slot " + slot + " of " + path, ex);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.mdsol.mauth.utils;
+
+import com.mdsol.mauth.util.MAuthPublicKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Snapshot of cached public keys in a local file, so that a restarted service starts with the keys it had.
+ *
+ * The file has one line per key: the app UUID, the fetch time in epoch milliseconds, the max-age in seconds and the
+ * base64 encoded DER of the key, separated by tabs. It is replaced atomically when written.
+ */
+public class PublicKeySnapshot {
+
+  private static final Logger logger = LoggerFactory.getLogger(PublicKeySnapshot.class);
+  private static final String SEPARATOR = "\t";
+
+  private final Path path;
+
+  public PublicKeySnapshot(Path path) {
+    this.path = path;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the keys in the snapshot, empty when there is no snapshot. Lines that cannot be read are skipped.
+   */
+  public List<Entry> read() {
+    List<Entry> entries = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+      KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          String[] fields = line.split(SEPARATOR);
+          PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(fields[3])));
+          entries.add(new Entry(UUID.fromString(fields[0]), MAuthPublicKey.of(publicKey), Long.parseLong(fields[1]),
+              Long.parseLong(fields[2])));
+        } catch (RuntimeException | GeneralSecurityException ex) {
+          logger.warn("Skipping an invalid public key snapshot entry in " + path, ex);
+        }
+      }
+    } catch (NoSuchFileException ex) {
+      logger.debug("No public key snapshot at {}", path);
+    } catch (IOException | GeneralSecurityException ex) {
+      logger.warn("Unable to read the public key snapshot " + path, ex);
+    }
+    return entries;
+  }
+
+  /**
+   * Replace the snapshot with the given keys
+   * @param entries the keys to keep
+   * @throws IOException when the snapshot cannot be written
+   */
+  public void write(Collection<Entry> entries) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.US_ASCII)) {
+        for (Entry entry : entries) {
+          writer.write(entry.getAppUUID() + SEPARATOR + entry.getFetchedAtMillis() + SEPARATOR + entry.getMaxAgeSeconds()
+              + SEPARATOR + Base64.getEncoder().encodeToString(entry.getPublicKey().getEncoded()));
+          writer.newLine();
+        }
+      }
+      try {
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  public static class Entry {
+    private final UUID appUUID;
+    private final PublicKey publicKey;
+    private final long fetchedAtMillis;
+    private final long maxAgeSeconds;
+
+    /**
+     * @param appUUID the app UUID of the key
+     * @param publicKey the public key
+     * @param fetchedAtMillis when the key was fetched from MAuth, in epoch milliseconds
+     * @param maxAgeSeconds how long the key can be cached from when it was fetched
+     */
+    public Entry(UUID appUUID, PublicKey publicKey, long fetchedAtMillis, long maxAgeSeconds) {
+      this.appUUID = appUUID;
+      this.publicKey = publicKey;
+      this.fetchedAtMillis = fetchedAtMillis;
+      this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    public UUID getAppUUID() {
+      return appUUID;
+    }
+
+    public PublicKey getPublicKey() {
+      return publicKey;
+    }
+
+    public long getFetchedAtMillis() {
+      return fetchedAtMillis;
+    }
+
+    public long getMaxAgeSeconds() {
+      return maxAgeSeconds;
+    }
+
+    /**
+     * @param nowMillis the current time in epoch milliseconds
+     * @return how long ago the key was fetched, in milliseconds
+     */
+    public long getAgeMillis(long nowMillis) {
+      return Math.max(0L, nowMillis - fetchedAtMillis);
+    }
+  }
+}
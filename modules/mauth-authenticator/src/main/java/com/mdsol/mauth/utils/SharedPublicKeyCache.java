@@ -0,0 +1,26 @@
+package com.mdsol.mauth.utils;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Second level public key cache shared by the key providers of several JVMs, so that a key fetched from MAuth by one
+ * replica is reused by the others instead of fetched again.
+ *
+ * The key providers keep their own in-process cache in front of it, and consult it before fetching a key from MAuth.
+ * Implementations must be thread safe, and should report their own failures as a miss rather than throw.
+ */
+public interface SharedPublicKeyCache {
+
+  /**
+   * @param appUUID the app UUID of the key
+   * @return the key cached for the app UUID, empty when there is none or it is past its max-age
+   */
+  Optional<PublicKeySnapshot.Entry> get(UUID appUUID);
+
+  /**
+   * Cache a key fetched from MAuth
+   * @param entry the key and when it was fetched
+   */
+  void put(PublicKeySnapshot.Entry entry);
+}
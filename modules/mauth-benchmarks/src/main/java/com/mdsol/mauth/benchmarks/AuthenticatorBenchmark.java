@@ -0,0 +1,88 @@
+package com.mdsol.mauth.benchmarks;
+
+import com.mdsol.mauth.DefaultSigner;
+import com.mdsol.mauth.MAuthRequest;
+import com.mdsol.mauth.MAuthVersion;
+import com.mdsol.mauth.RequestAuthenticator;
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.PayloadType;
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.QueryComplexity;
+import com.mdsol.mauth.util.MAuthPublicKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link RequestAuthenticator#authenticate(MAuthRequest)} for requests signed with V1 or V2,
+ * with the public key already available (no key provider I/O).
+ *
+ * {@code cachedKeyHandle} compares a plain JCA key with the {@link MAuthPublicKey} handed out by the key providers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+public class AuthenticatorBenchmark {
+
+  @Param({"MWS", "MWSV2"})
+  public MAuthVersion version;
+
+  @Param({"0", "1024", "65536", "1048576", "52428800"})
+  public int bodySize;
+
+  @Param({"BYTES", "STREAM"})
+  public PayloadType payloadType;
+
+  @Param({"NONE", "SIMPLE", "COMPLEX"})
+  public QueryComplexity queryComplexity;
+
+  @Param({"false", "true"})
+  public boolean cachedKeyHandle;
+
+  private RequestAuthenticator authenticator;
+  private Map<String, String> headers;
+  private byte[] body;
+  private String query;
+
+  @Setup
+  public void setUp() {
+    body = BenchmarkFixtures.body(bodySize);
+    query = queryComplexity.query();
+    headers = new DefaultSigner(BenchmarkFixtures.APP_UUID, BenchmarkFixtures.PRIVATE_KEY,
+        BenchmarkFixtures.FIXED_TIME_PROVIDER, Collections.singletonList(version))
+        .generateRequestHeaders(BenchmarkFixtures.HTTP_METHOD, BenchmarkFixtures.RESOURCE_PATH, body, query);
+    PublicKey publicKey = cachedKeyHandle ? MAuthPublicKey.of(BenchmarkFixtures.PUBLIC_KEY) : BenchmarkFixtures.PUBLIC_KEY;
+    authenticator = new RequestAuthenticator(appUUID -> publicKey, 300L,
+        BenchmarkFixtures.FIXED_TIME_PROVIDER);
+  }
+
+  @Benchmark
+  public boolean authenticate() {
+    MAuthRequest.Builder builder = MAuthRequest.Builder.get()
+        .withHttpMethod(BenchmarkFixtures.HTTP_METHOD)
+        .withResourcePath(BenchmarkFixtures.RESOURCE_PATH)
+        .withQueryParameters(query)
+        .withMauthHeaders(headers);
+    if (payloadType == PayloadType.STREAM) {
+      builder.withBodyInputStream(new ByteArrayInputStream(body));
+    } else {
+      builder.withMessagePayload(body);
+    }
+    return authenticator.authenticate(builder.build());
+  }
+}
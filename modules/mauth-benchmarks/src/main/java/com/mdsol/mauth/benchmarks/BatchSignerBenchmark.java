@@ -0,0 +1,79 @@
+package com.mdsol.mauth.benchmarks;
+
+import com.mdsol.mauth.DefaultSigner;
+import com.mdsol.mauth.SignableRequest;
+import com.mdsol.mauth.SignerConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to sign a batch of distinct requests with V1 and V2, one by one on the calling thread and in parallel with
+ * {@link DefaultSigner#generateRequestHeaders(List, ForkJoinPool)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+public class BatchSignerBenchmark {
+
+  @Param({"100", "1000"})
+  public int batchSize;
+
+  // 0 for the number of available processors
+  @Param({"0"})
+  public int parallelism;
+
+  private DefaultSigner signer;
+  private List<SignableRequest> requests;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp() {
+    signer = new DefaultSigner(BenchmarkFixtures.APP_UUID, BenchmarkFixtures.PRIVATE_KEY,
+        BenchmarkFixtures.FIXED_TIME_PROVIDER, SignerConfiguration.ALL_SIGN_VERSIONS);
+    requests = new ArrayList<>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      requests.add(new SignableRequest(BenchmarkFixtures.HTTP_METHOD, BenchmarkFixtures.RESOURCE_PATH + "/" + i,
+          BenchmarkFixtures.body(1024), "page=" + i));
+    }
+    pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public List<Map<String, String>> sequential() {
+    List<Map<String, String>> headers = new ArrayList<>(requests.size());
+    for (SignableRequest request : requests) {
+      headers.add(signer.generateRequestHeaders(request.getHttpVerb(), request.getRequestPath(), request.getRequestPayload(),
+          request.getQueryParameters()));
+    }
+    return headers;
+  }
+
+  @Benchmark
+  public List<Map<String, String>> parallel() {
+    return signer.generateRequestHeaders(requests, pool);
+  }
+}
@@ -0,0 +1,98 @@
+package com.mdsol.mauth.benchmarks;
+
+import com.mdsol.mauth.test.utils.TestFixtures;
+import com.mdsol.mauth.util.EpochTimeProvider;
+import com.mdsol.mauth.util.MAuthKeysHelper;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Shared inputs for the benchmarks: keys, request bodies and query strings of increasing complexity.
+ */
+public final class BenchmarkFixtures {
+
+  static {
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  static final UUID APP_UUID = UUID.fromString(TestFixtures.APP_UUID_1);
+  static final PrivateKey PRIVATE_KEY = MAuthKeysHelper.getPrivateKeyFromString(TestFixtures.PRIVATE_KEY_1);
+  static final PublicKey PUBLIC_KEY = MAuthKeysHelper.getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1);
+  static final long EPOCH_TIME = Long.parseLong(TestFixtures.EPOCH_TIME);
+  static final EpochTimeProvider FIXED_TIME_PROVIDER = () -> EPOCH_TIME;
+
+  static final String HTTP_METHOD = "POST";
+  static final String RESOURCE_PATH = "/v1/studies/3fa85f64-5717-4562-b3fc-2c963f66afa6/subjects";
+
+  private BenchmarkFixtures() {
+  }
+
+  /**
+   * Kinds of request payload handed to the signer and the authenticator
+   */
+  public enum PayloadType {
+    BYTES,
+    STREAM
+  }
+
+  /**
+   * Query strings of increasing size, from no parameters to a search style request with 60 parameters
+   */
+  public enum QueryComplexity {
+    NONE(""),
+    SIMPLE("key1=value1&key2=value2"),
+    ENCODED(TestFixtures.REQUEST_QUERY_PARAMETERS_V2),
+    COMPLEX(searchQuery(60));
+
+    private final String query;
+
+    QueryComplexity(String query) {
+      this.query = query;
+    }
+
+    String query() {
+      return query;
+    }
+  }
+
+  /**
+   * Resource paths exercising the different branches of path normalization
+   */
+  public enum PathComplexity {
+    PLAIN(RESOURCE_PATH),
+    DOT_SEGMENTS("/v1/./studies//3fa85f64-5717-4562-b3fc-2c963f66afa6/../subjects/./"),
+    PERCENT_ENCODED("/v1/studies/%cf%80/subjects/%e2%88%9e/%2a%80");
+
+    private final String path;
+
+    PathComplexity(String path) {
+      this.path = path;
+    }
+
+    String path() {
+      return path;
+    }
+  }
+
+  static byte[] body(int size) {
+    byte[] body = new byte[size];
+    new Random(size).nextBytes(body);
+    return body;
+  }
+
+  private static String searchQuery(int parameters) {
+    StringBuilder query = new StringBuilder();
+    for (int i = parameters; i > 0; i--) {
+      if (query.length() > 0) {
+        query.append('&');
+      }
+      query.append("filter%5B").append(i).append("%5D=").append(i % 3 == 0 ? "caf%C3%A9+au+lait" : "value-" + i);
+    }
+    return query.toString();
+  }
+}
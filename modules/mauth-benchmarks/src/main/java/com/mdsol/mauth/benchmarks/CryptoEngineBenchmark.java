@@ -0,0 +1,72 @@
+package com.mdsol.mauth.benchmarks;
+
+import com.mdsol.mauth.util.MAuthCryptoEngines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of looking up a JCA engine per call compared to reusing the per-thread engines of {@link MAuthCryptoEngines}.
+ *
+ * The digest input is the size of a typical V2 string to sign, so the lookup overhead is not hidden by hashing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+public class CryptoEngineBenchmark {
+
+  private byte[] stringToSign;
+  private byte[] signature;
+
+  @Setup
+  public void setUp() throws Exception {
+    stringToSign = (BenchmarkFixtures.HTTP_METHOD + "\n" + BenchmarkFixtures.RESOURCE_PATH + "\n"
+        + "cf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e"
+        + "\n" + BenchmarkFixtures.APP_UUID + "\n" + BenchmarkFixtures.EPOCH_TIME + "\n").getBytes(StandardCharsets.UTF_8);
+    Signature signer = Signature.getInstance("SHA512withRSA");
+    signer.initSign(BenchmarkFixtures.PRIVATE_KEY);
+    signer.update(stringToSign);
+    signature = signer.sign();
+  }
+
+  @Benchmark
+  public byte[] digestGetInstance() throws Exception {
+    return MessageDigest.getInstance("SHA-512").digest(stringToSign);
+  }
+
+  @Benchmark
+  public byte[] digestPooled() throws Exception {
+    return MAuthCryptoEngines.sha512Digest().digest(stringToSign);
+  }
+
+  @Benchmark
+  public boolean verifyGetInstance() throws Exception {
+    Signature verifier = Signature.getInstance("SHA512withRSA");
+    verifier.initVerify(BenchmarkFixtures.PUBLIC_KEY);
+    verifier.update(stringToSign);
+    return verifier.verify(signature);
+  }
+
+  @Benchmark
+  public boolean verifyPooled() throws Exception {
+    Signature verifier = MAuthCryptoEngines.sha512RsaSignature();
+    verifier.initVerify(BenchmarkFixtures.PUBLIC_KEY);
+    verifier.update(stringToSign);
+    return verifier.verify(signature);
+  }
+}
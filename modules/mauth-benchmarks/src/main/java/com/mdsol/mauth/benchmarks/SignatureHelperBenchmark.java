@@ -0,0 +1,113 @@
+package com.mdsol.mauth.benchmarks;
+
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.PathComplexity;
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.PayloadType;
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.QueryComplexity;
+import com.mdsol.mauth.util.MAuthSignatureHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the individual building blocks of {@link MAuthSignatureHelper}.
+ *
+ * Each nested state only carries the parameters relevant to its benchmarks so that the
+ * parameter matrix stays small, e.g. path normalization is not repeated for every body size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+public class SignatureHelperBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class StringToSignState {
+    @Param({"0", "1024", "65536", "1048576", "52428800"})
+    public int bodySize;
+
+    @Param({"BYTES", "STREAM"})
+    public PayloadType payloadType;
+
+    @Param({"NONE", "SIMPLE", "COMPLEX"})
+    public QueryComplexity queryComplexity;
+
+    byte[] body;
+
+    @Setup
+    public void setUp() {
+      body = BenchmarkFixtures.body(bodySize);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class PathState {
+    @Param({"PLAIN", "DOT_SEGMENTS", "PERCENT_ENCODED"})
+    public PathComplexity pathComplexity;
+  }
+
+  @State(Scope.Benchmark)
+  public static class QueryState {
+    @Param({"NONE", "SIMPLE", "ENCODED", "COMPLEX"})
+    public QueryComplexity queryComplexity;
+  }
+
+  @State(Scope.Benchmark)
+  public static class SignatureState {
+    String stringToSign;
+    String signatureV1;
+    String signatureV2;
+
+    @Setup
+    public void setUp() throws Exception {
+      stringToSign = MAuthSignatureHelper.generateStringToSignV2(BenchmarkFixtures.APP_UUID,
+          BenchmarkFixtures.HTTP_METHOD, BenchmarkFixtures.RESOURCE_PATH, QueryComplexity.SIMPLE.query(),
+          BenchmarkFixtures.body(1024), String.valueOf(BenchmarkFixtures.EPOCH_TIME));
+      signatureV1 = MAuthSignatureHelper.encryptSignature(BenchmarkFixtures.PRIVATE_KEY, stringToSign);
+      signatureV2 = MAuthSignatureHelper.encryptSignatureRSA(BenchmarkFixtures.PRIVATE_KEY, stringToSign);
+    }
+  }
+
+  @Benchmark
+  public String generateStringToSignV2(StringToSignState state) {
+    String epochTime = String.valueOf(BenchmarkFixtures.EPOCH_TIME);
+    String query = state.queryComplexity.query();
+    if (state.payloadType == PayloadType.STREAM) {
+      return MAuthSignatureHelper.generateStringToSignV2(BenchmarkFixtures.APP_UUID, BenchmarkFixtures.HTTP_METHOD,
+          BenchmarkFixtures.RESOURCE_PATH, query, new ByteArrayInputStream(state.body), epochTime);
+    }
+    return MAuthSignatureHelper.generateStringToSignV2(BenchmarkFixtures.APP_UUID, BenchmarkFixtures.HTTP_METHOD,
+        BenchmarkFixtures.RESOURCE_PATH, query, state.body, epochTime);
+  }
+
+  @Benchmark
+  public String normalizePath(PathState state) {
+    return MAuthSignatureHelper.normalizePath(state.pathComplexity.path());
+  }
+
+  @Benchmark
+  public String generateEncryptedQueryParams(QueryState state) {
+    return MAuthSignatureHelper.generateEncryptedQueryParams(state.queryComplexity.query());
+  }
+
+  @Benchmark
+  public boolean verifyRSA(SignatureState state) throws Exception {
+    return MAuthSignatureHelper.verifyRSA(state.stringToSign, state.signatureV2, BenchmarkFixtures.PUBLIC_KEY);
+  }
+
+  @Benchmark
+  public byte[] decryptSignature(SignatureState state) {
+    return MAuthSignatureHelper.decryptSignature(BenchmarkFixtures.PUBLIC_KEY, state.signatureV1);
+  }
+}
@@ -0,0 +1,87 @@
+package com.mdsol.mauth.benchmarks;
+
+import com.mdsol.mauth.DefaultSigner;
+import com.mdsol.mauth.MAuthVersion;
+import com.mdsol.mauth.SignerConfiguration;
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.PayloadType;
+import com.mdsol.mauth.benchmarks.BenchmarkFixtures.QueryComplexity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link DefaultSigner#generateRequestHeaders} for V1, V2 and dual (V1 and V2) signing.
+ *
+ * Note that for {@code InputStream} payloads the signer only produces V2 headers when V2 is enabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+public class SignerBenchmark {
+
+  public enum SignVersions {
+    V1(Collections.singletonList(MAuthVersion.MWS)),
+    V2(Collections.singletonList(MAuthVersion.MWSV2)),
+    V1_V2(SignerConfiguration.ALL_SIGN_VERSIONS);
+
+    private final List<MAuthVersion> versions;
+
+    SignVersions(List<MAuthVersion> versions) {
+      this.versions = versions;
+    }
+  }
+
+  @Param({"V1", "V2", "V1_V2"})
+  public SignVersions signVersions;
+
+  @Param({"0", "1024", "65536", "1048576", "52428800"})
+  public int bodySize;
+
+  @Param({"BYTES", "STREAM"})
+  public PayloadType payloadType;
+
+  @Param({"NONE", "SIMPLE", "COMPLEX"})
+  public QueryComplexity queryComplexity;
+
+  // identical requests within the same second, the fixed time provider makes every call after the first a hit
+  @Param({"0"})
+  public int signatureCacheSize;
+
+  private DefaultSigner signer;
+  private byte[] body;
+  private String query;
+
+  @Setup
+  public void setUp() {
+    signer = new DefaultSigner(BenchmarkFixtures.APP_UUID, BenchmarkFixtures.PRIVATE_KEY,
+        BenchmarkFixtures.FIXED_TIME_PROVIDER, signVersions.versions, signatureCacheSize);
+    body = BenchmarkFixtures.body(bodySize);
+    query = queryComplexity.query();
+  }
+
+  @Benchmark
+  public Map<String, String> generateRequestHeaders() {
+    if (payloadType == PayloadType.STREAM) {
+      return signer.generateRequestHeaders(BenchmarkFixtures.HTTP_METHOD, BenchmarkFixtures.RESOURCE_PATH,
+          new ByteArrayInputStream(body), query);
+    }
+    return signer.generateRequestHeaders(BenchmarkFixtures.HTTP_METHOD, BenchmarkFixtures.RESOURCE_PATH, body, query);
+  }
+}
@@ -29,6 +29,7 @@ public class MAuthRequest {
   public static final String MCC_TIME_HEADER_NAME = "mcc-time";
   public static final String MCC_AUTHENTICATION_HEADER_NAME = "mcc-authentication";
   private static final String VALIDATION_EXCEPTION_MESSAGE_TEMPLATE = "%s cannot be null or empty.";
+  private static final byte[] EMPTY_PAYLOAD = new byte[0];
 
   private final UUID appUUID;
   private final String requestSignature;
@@ -41,6 +42,7 @@ public class MAuthRequest {
   private String xmwsSignature = null;
   private String xmwsTime = null;
   private InputStream bodyInputStream = null;
+  private String bodyDigest = null;
 
   /**
    * Create a Mauth request
@@ -129,25 +131,18 @@ public class MAuthRequest {
     this.queryParameters = queryParameters;
     this.mauthVersion = MAuthHeadersHelper.getMauthVersion(authenticationHeaderValue);
 
-    // we always use inputStream for Auth,
-    // wrap byte array in ByteArrayInputStream if bodyInputStream wasn't provided explicitly
+    // the byte array is wrapped in a ByteArrayInputStream when it is read if bodyInputStream wasn't provided explicitly
     if (bodyInputStream != null && messagePayload != null) {
       throw new IllegalArgumentException("Only one of bodyInputStream and messagePayload should be provided.");
     }
 
     if (messagePayload == null && bodyInputStream == null) {
       // Set payload to empty byte[]
-      messagePayload = new byte[] {};
+      messagePayload = EMPTY_PAYLOAD;
     }
 
-    if (messagePayload != null) {
-      // Use our body bytes as inputStream
-      this.messagePayload = messagePayload;
-      this.bodyInputStream = new ByteArrayInputStream(messagePayload);
-    } else {
-      this.messagePayload = null;
-      this.bodyInputStream = bodyInputStream;
-    }
+    this.messagePayload = messagePayload;
+    this.bodyInputStream = bodyInputStream;
   }
 
   public UUID getAppUUID() {
@@ -201,10 +196,25 @@ public class MAuthRequest {
     return mauthVersion;
   }
 
+  /**
+   * @return the body stream it was created with, or else a new stream over the message payload for each call, so that
+   *         reading the body does not change the request
+   */
   public InputStream getBodyInputStream() {
+    if (bodyInputStream == null && messagePayload != null) {
+      return new ByteArrayInputStream(messagePayload);
+    }
     return bodyInputStream;
   }
 
+  /**
+   * @return the hex encoded SHA-512 digest of the body when only the digest is available, e.g. it was computed while the
+   *         body was streamed, otherwise null
+   */
+  public String getBodyDigest() {
+    return bodyDigest;
+  }
+
   private void validateNotBlank(String field, String fieldNameInExceptionMessage) {
     if (StringUtils.isBlank(field)) {
       throw new IllegalArgumentException(
@@ -228,6 +238,7 @@ public class MAuthRequest {
     private String queryParameters;
     private TreeMap<String, String> mauthHeaders = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
     private InputStream bodyInputStream = null;
+    private String bodyDigest = null;
 
     public static Builder get() {
       return new Builder();
@@ -268,6 +279,17 @@ public class MAuthRequest {
       return this;
     }
 
+    /**
+     * Set the digest of the body instead of the body, for Mauth V2 only. The V1 fallback is not available then.
+     * @param bodyDigest the hex encoded SHA-512 digest of the request body
+     *
+     * @return Builder
+     */
+    public Builder withBodyDigest(String bodyDigest) {
+      this.bodyDigest = bodyDigest;
+      return this;
+    }
+
     /**
      * Set Mauth headers (it may include the both sets of Mauth V1 and V2)
      * @param mauthHeaders the request headers for Mauth, such as
@@ -300,9 +322,22 @@ public class MAuthRequest {
         }
       }
 
+      if (bodyDigest != null && (messagePayload != null || bodyInputStream != null)) {
+        throw new IllegalArgumentException("Only one of bodyDigest, bodyInputStream and messagePayload should be provided.");
+      }
+
       MAuthRequest mAuthRequest = new MAuthRequest(authenticationHeaderValue, messagePayload,
           bodyInputStream, httpMethod, timeHeaderValue, resourcePath, queryParameters);
 
+      if (bodyDigest != null) {
+        if (!mAuthRequest.getMauthVersion().equals(MAuthVersion.MWSV2)) {
+          throw new IllegalArgumentException("The body digest can only be used with Mauth V2.");
+        }
+        mAuthRequest.bodyDigest = bodyDigest;
+        mAuthRequest.messagePayload = null;
+        mAuthRequest.bodyInputStream = null;
+      }
+
       if (mAuthRequest.getMauthVersion().equals(MAuthVersion.MWSV2)) {
         mAuthRequest.setXmwsSignature(mauthHeaders.get(X_MWS_AUTHENTICATION_HEADER_NAME));
         mAuthRequest.setXmwsTime(mauthHeaders.get(X_MWS_TIME_HEADER_NAME));
@@ -2,6 +2,9 @@ package com.mdsol.mauth.util;
 
 import com.mdsol.mauth.exceptions.MAuthKeyException;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.util.PrivateKeyFactory;
+import org.bouncycastle.crypto.util.PublicKeyFactory;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
@@ -40,4 +43,31 @@ public class MAuthKeysHelper {
     }
     return pk;
   }
+
+  /**
+   * Convert a private key to BouncyCastle key parameters once, so signing does not have to
+   * re-encode and re-parse the key for every request
+   * @param privateKey the private key, e.g. from {@link #getPrivateKeyFromString(String)}
+   * @return the key parameters, {@code RSAPrivateCrtKeyParameters} for RSA keys
+   */
+  public static AsymmetricKeyParameter getPrivateKeyParameters(final PrivateKey privateKey) {
+    try {
+      return PrivateKeyFactory.createKey(privateKey.getEncoded());
+    } catch (IOException | RuntimeException ex) {
+      throw new MAuthKeyException("Unable to process private key", ex);
+    }
+  }
+
+  /**
+   * Get the BouncyCastle key parameters of a public key, reusing the ones cached by {@link MAuthPublicKey}
+   * @param publicKey the public key of a client application
+   * @return the key parameters, {@code RSAKeyParameters} for RSA keys
+   * @throws IOException when the encoded key cannot be parsed
+   */
+  public static AsymmetricKeyParameter getPublicKeyParameters(final PublicKey publicKey) throws IOException {
+    if (publicKey instanceof MAuthPublicKey) {
+      return ((MAuthPublicKey) publicKey).getKeyParameters();
+    }
+    return PublicKeyFactory.createKey(publicKey.getEncoded());
+  }
 }
@@ -0,0 +1,122 @@
+package com.mdsol.mauth.util;
+
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * RSA public key that carries verification-ready forms of itself, for keys that are cached and used to
+ * authenticate many requests.
+ *
+ * V1 decrypts signatures with BouncyCastle, which needs the key as {@link RSAKeyParameters}, and V2 verifies with a
+ * JCA {@code Signature}, which translates foreign keys into its own provider's key class on every {@code initVerify}.
+ * Both conversions are done once here instead of for every request. The key behaves like the RSA public key it wraps,
+ * including {@code equals} and {@code hashCode}, and serializes as that key.
+ */
+public final class MAuthPublicKey implements RSAPublicKey {
+
+  private static final long serialVersionUID = 1L;
+  private static final Logger logger = LoggerFactory.getLogger(MAuthPublicKey.class);
+
+  private final RSAPublicKey publicKey;
+  private final transient RSAKeyParameters keyParameters;
+  private final transient PublicKey verificationKey;
+
+  private MAuthPublicKey(RSAPublicKey publicKey) {
+    this.publicKey = publicKey;
+    this.keyParameters = new RSAKeyParameters(false, publicKey.getModulus(), publicKey.getPublicExponent());
+    this.verificationKey = translate(publicKey);
+  }
+
+  /**
+   * Wrap a public key so the verification-ready forms are computed once
+   * @param publicKey the public key of a client application
+   * @return the wrapped key for RSA keys, otherwise the key itself
+   */
+  public static PublicKey of(PublicKey publicKey) {
+    if (publicKey instanceof RSAPublicKey && !(publicKey instanceof MAuthPublicKey)) {
+      return new MAuthPublicKey((RSAPublicKey) publicKey);
+    }
+    return publicKey;
+  }
+
+  /**
+   * @return the key as BouncyCastle parameters, used for V1 signature decryption
+   */
+  public RSAKeyParameters getKeyParameters() {
+    return keyParameters;
+  }
+
+  /**
+   * @return the key translated for the default RSA provider, used for V2 signature verification
+   */
+  public PublicKey getVerificationKey() {
+    return verificationKey;
+  }
+
+  @Override
+  public BigInteger getModulus() {
+    return publicKey.getModulus();
+  }
+
+  @Override
+  public BigInteger getPublicExponent() {
+    return publicKey.getPublicExponent();
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return publicKey.getAlgorithm();
+  }
+
+  @Override
+  public String getFormat() {
+    return publicKey.getFormat();
+  }
+
+  @Override
+  public byte[] getEncoded() {
+    return publicKey.getEncoded();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof RSAPublicKey)) {
+      return false;
+    }
+    RSAPublicKey other = (RSAPublicKey) o;
+    return getModulus().equals(other.getModulus()) && getPublicExponent().equals(other.getPublicExponent());
+  }
+
+  @Override
+  public int hashCode() {
+    return getModulus().hashCode() ^ getPublicExponent().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return publicKey.toString();
+  }
+
+  private Object writeReplace() {
+    return publicKey;
+  }
+
+  private static PublicKey translate(RSAPublicKey publicKey) {
+    try {
+      return (PublicKey) KeyFactory.getInstance("RSA").translateKey(publicKey);
+    } catch (GeneralSecurityException ex) {
+      logger.warn("Unable to translate the public key for the default RSA provider, using it as is", ex);
+      return publicKey;
+    }
+  }
+}
@@ -4,37 +4,28 @@ import com.mdsol.mauth.MAuthRequest;
 import com.mdsol.mauth.exceptions.MAuthSigningException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.lang3.tuple.Pair;
 import org.bouncycastle.crypto.CryptoException;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.encodings.PKCS1Encoding;
-import org.bouncycastle.crypto.engines.RSAEngine;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 import org.bouncycastle.crypto.util.PrivateKeyFactory;
-import org.bouncycastle.crypto.util.PublicKeyFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
 import java.security.*;
-import java.util.Arrays;
-import java.util.regex.*;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 public class MAuthSignatureHelper {
 
   private static final Logger logger = LoggerFactory.getLogger(MAuthSignatureHelper.class);
-  private static final Pattern PATTERN_HEX_LOWCASE = Pattern.compile("%[a-f0-9]{2}");
 
   /**
    * Generate string_to_sign for Mauth V1 protocol
@@ -75,18 +66,18 @@ public class MAuthSignatureHelper {
    * @return byte[]
    *   httpMethod + "\n" + resourceUrl + "\n" + requestBody + "\n" + app_uuid + "\n" + epochTime
    *
-   * @throws IOException When failed to write to ByteArrayOutputStream
+   * @throws IOException never, kept for compatibility
    */
   @Deprecated
   public static byte[] generateUnencryptedSignature(UUID appUUID, String httpMethod, String resourceUrl, byte[] requestBody, String epochTime) throws IOException {
     logger.debug("Generating byte[] to sign for V1");
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    String part1 = httpMethod + "\n" + resourceUrl + "\n";
-    String part2 =  "\n" + appUUID.toString() + "\n" + epochTime;
-    baos.write(part1.getBytes(StandardCharsets.UTF_8));
-    baos.write(requestBody);
-    baos.write(part2.getBytes(StandardCharsets.UTF_8));
-    return baos.toByteArray();
+    byte[] part1 = (httpMethod + "\n" + resourceUrl + "\n").getBytes(StandardCharsets.UTF_8);
+    byte[] part2 = ("\n" + appUUID.toString() + "\n" + epochTime).getBytes(StandardCharsets.UTF_8);
+    byte[] unencryptedSignature = new byte[part1.length + requestBody.length + part2.length];
+    System.arraycopy(part1, 0, unencryptedSignature, 0, part1.length);
+    System.arraycopy(requestBody, 0, unencryptedSignature, part1.length, requestBody.length);
+    System.arraycopy(part2, 0, unencryptedSignature, part1.length + requestBody.length, part2.length);
+    return unencryptedSignature;
   }
 
   @Deprecated
@@ -158,7 +149,15 @@ public class MAuthSignatureHelper {
   public static String generateStringToSignV2(MAuthRequest mAuthRequest) throws MAuthSigningException{
     logger.debug("Generating String to sign for V2");
     String epochTime = String.valueOf(mAuthRequest.getRequestTime());
-    String bodyDigest = getHexEncodedDigestedString(mAuthRequest.getBodyInputStream());
+    String bodyDigest;
+    if (mAuthRequest.getBodyDigest() != null) {
+      bodyDigest = mAuthRequest.getBodyDigest();
+    } else if (mAuthRequest.getMessagePayload() != null) {
+      // the digest of an empty payload is not computed again
+      bodyDigest = getHexEncodedDigestedString(mAuthRequest.getMessagePayload());
+    } else {
+      bodyDigest = getHexEncodedDigestedString(mAuthRequest.getBodyInputStream());
+    }
     return stringToSignV2(mAuthRequest.getAppUUID(), mAuthRequest.getHttpMethod(),
         mAuthRequest.getResourcePath(), mAuthRequest.getQueryParameters(), bodyDigest, epochTime);
    }
@@ -228,12 +227,53 @@ public class MAuthSignatureHelper {
     return encryptSignaturePKCS1(privateKey, hexEncodedString);
   }
 
+  /**
+   * Generate base64 encoded signature for Mauth V1 protocol
+   *
+   * @deprecated
+   *   This is used for Mauth V1 protocol,
+   *   replaced by {@link #encryptSignatureRSA(PrivateKey privateKey, String unencryptedString)} for Mauth V2 protocol
+   *
+   * @param privateKeyParameters the private key parameters from {@link MAuthKeysHelper#getPrivateKeyParameters(PrivateKey)}
+   * @param unencryptedData the bytes array be signed
+   * @return String of Base64 decode the digital signature
+   * @throws CryptoException
+   */
+  @Deprecated
+  public static String encryptSignature(AsymmetricKeyParameter privateKeyParameters, byte[] unencryptedData) throws CryptoException {
+    String hexEncodedString = getHexEncodedDigestedString(unencryptedData);
+    return encryptSignaturePKCS1(privateKeyParameters, hexEncodedString);
+  }
+
+  /**
+   * Generate base64 encoded signature for Mauth V1 protocol
+   *
+   * @deprecated
+   *   This is used for Mauth V1 protocol,
+   *   replaced by {@link #encryptSignatureRSA(PrivateKey privateKey, String unencryptedString)} for Mauth V2 protocol
+   *
+   * @param privateKeyParameters the private key parameters from {@link MAuthKeysHelper#getPrivateKeyParameters(PrivateKey)}
+   * @param inputStream the input stream be signed
+   * @return String of Base64 decode the digital signature
+   * @throws CryptoException
+   */
+  @Deprecated
+  public static String encryptSignature(AsymmetricKeyParameter privateKeyParameters, InputStream inputStream) throws CryptoException {
+    String hexEncodedString = getHexEncodedDigestedString(inputStream);
+    return encryptSignaturePKCS1(privateKeyParameters, hexEncodedString);
+  }
+
   @Deprecated
   private static String encryptSignaturePKCS1(PrivateKey privateKey, String hexEncodedString) throws IOException, CryptoException {
-    PKCS1Encoding encryptEngine = new PKCS1Encoding(new RSAEngine());
-    encryptEngine.init(true, PrivateKeyFactory.createKey(privateKey.getEncoded()));
-    byte[] encryptedStringBytes = encryptEngine.processBlock(hexEncodedString.getBytes(), 0, hexEncodedString.getBytes().length);
-    return new String(Base64.encodeBase64(encryptedStringBytes), StandardCharsets.UTF_8);
+    return encryptSignaturePKCS1(PrivateKeyFactory.createKey(privateKey.getEncoded()), hexEncodedString);
+  }
+
+  @Deprecated
+  private static String encryptSignaturePKCS1(AsymmetricKeyParameter privateKeyParameters, String hexEncodedString) throws CryptoException {
+    PKCS1Encoding encryptEngine = MAuthCryptoEngines.pkcs1RsaEncoding();
+    encryptEngine.init(true, privateKeyParameters);
+    StringToSignEncoder encoder = StringToSignEncoder.get().append(hexEncodedString);
+    return encoder.encodeBase64(encoder.processBlock(encryptEngine));
   }
 
   /**
@@ -255,8 +295,8 @@ public class MAuthSignatureHelper {
       byte[] decodedSignature = Base64.decodeBase64(encryptedSignature);
 
       // Decrypt the signature with public key from requesting application
-      PKCS1Encoding decryptEngine = new PKCS1Encoding(new RSAEngine());
-      decryptEngine.init(false, PublicKeyFactory.createKey(publicKey.getEncoded()));
+      PKCS1Encoding decryptEngine = MAuthCryptoEngines.pkcs1RsaEncoding();
+      decryptEngine.init(false, MAuthKeysHelper.getPublicKeyParameters(publicKey));
       byte[] decryptedSignature;
       decryptedSignature = decryptEngine.processBlock(decodedSignature, 0, decodedSignature.length);
 
@@ -274,9 +314,12 @@ public class MAuthSignatureHelper {
   }
 
   public static String getHexEncodedDigestedString(byte[] unencryptedData) {
+    if (unencryptedData.length == 0) {
+      return StringToSignEncoder.EMPTY_BODY_DIGEST;
+    }
     try {
       // Get digest
-      MessageDigest md = MessageDigest.getInstance("SHA-512");
+      MessageDigest md = MAuthCryptoEngines.sha512Digest();
       byte[] digestedString = md.digest(unencryptedData);
       // Convert to hex
       return Hex.encodeHexString(digestedString);
@@ -290,10 +333,9 @@ public class MAuthSignatureHelper {
   public static String getHexEncodedDigestedString(InputStream inputStream) {
     try {
       // Get digest
-      MessageDigest md = MessageDigest.getInstance("SHA-512");
-      try (DigestInputStream dis = new DigestInputStream(inputStream, md)) {
-        while (dis.read() != -1) {
-        }
+      MessageDigest md = MAuthCryptoEngines.sha512Digest();
+      try (InputStream is = inputStream) {
+        MAuthDigestHelper.update(md, is);
         byte[] digestedBytes = md.digest();
         return Hex.encodeHexString(digestedBytes);
       } catch (IOException e) {
@@ -309,68 +351,52 @@ public class MAuthSignatureHelper {
   }
 
   /**
-   * generate the query parameters for Mauth V2
-   * @param encodedQuery the encoded query string
-   * @return the sorted-encoded string
-   *
-   * See https://learn.mdsol.com/display/CA/Building+an+mAuth-Authenticated+API
+   * Digest the bytes between the buffer's position and limit, the buffer itself is left untouched
+   * @param byteBuffer heap, direct or read-only buffer
+   * @return the hex encoded SHA-512 digest
    */
-  public static String generateEncryptedQueryParams(String encodedQuery) {
-
-    if (encodedQuery == null || encodedQuery.isEmpty())
-      return "";
-
-    return Arrays.stream(encodedQuery.split("&"))
-        .filter(s -> !s.isEmpty())
-        .map(keyValStr -> {
-          String[] split = keyValStr.split("=");
-          String key = split[0];
-          String value = split.length > 1 ? split[1] : "";
-          return Pair.of(urlDecodeValue(key), urlDecodeValue(value));
-        })
-        .sorted()
-        .map(keyVal -> urlEncodeValue(keyVal.getKey()) + "=" + urlEncodeValue(keyVal.getValue()))
-        .collect(Collectors.joining("&"));
+  public static String getHexEncodedDigestedString(ByteBuffer byteBuffer) {
+    try {
+      MessageDigest md = MAuthCryptoEngines.sha512Digest();
+      MAuthDigestHelper.update(md, byteBuffer);
+      return Hex.encodeHexString(md.digest());
+    } catch (NoSuchAlgorithmException ex) {
+      final String message = "Invalid algorithm or security provider.";
+      logger.error(message, ex);
+      throw new MAuthSigningException(message, ex);
+    }
   }
 
   /**
-   * encode a string using `UTF-8` encoding scheme
-   * @param value
-   * @return the encoded String
-   *
-   * See https://stackoverflow.com/questions/13060034/what-is-correct-oauth-percent-encoding
+   * Digest all remaining bytes of a blocking channel, the channel is not closed
+   * @param channel the channel to read until the end, e.g. a FileChannel of an uploaded body
+   * @return the hex encoded SHA-512 digest
    */
-  private static String urlEncodeValue(String value) {
-    if (value == null ||  value.isEmpty())
-      return value;
-
+  public static String getHexEncodedDigestedString(ReadableByteChannel channel) {
     try {
-      String encodedValue = URLEncoder.encode(value, StandardCharsets.UTF_8.toString());
-      // OAuth encodes some characters differently
-      encodedValue = encodedValue.replace("+", "%20").replace("%7E", "~").replace("*", "%2A");
-      return encodedValue;
-    } catch (UnsupportedEncodingException ex) {
-      throw new RuntimeException(ex.getCause());
+      MessageDigest md = MAuthCryptoEngines.sha512Digest();
+      MAuthDigestHelper.update(md, channel);
+      return Hex.encodeHexString(md.digest());
+    } catch (IOException e) {
+      final String message = "Invalid ReadableByteChannel.";
+      logger.error(message, e);
+      throw new MAuthSigningException(message, e);
+    } catch (NoSuchAlgorithmException ex) {
+      final String message = "Invalid algorithm or security provider.";
+      logger.error(message, ex);
+      throw new MAuthSigningException(message, ex);
     }
   }
 
   /**
-   * decode a string using `UTF-8` scheme
-   * @param encodedValue
-   * @return the decoded String
+   * generate the query parameters for Mauth V2
+   * @param encodedQuery the encoded query string
+   * @return the sorted-encoded string
    *
-   * See https://docs.oracle.com/javase/8/docs/api/java/net/URLDecoder.html
+   * See https://learn.mdsol.com/display/CA/Building+an+mAuth-Authenticated+API
    */
-  private static String urlDecodeValue(String encodedValue) {
-    if (encodedValue == null || encodedValue.isEmpty())
-      return encodedValue;
-
-    try {
-      String data = encodedValue.replaceAll("%(?![0-9a-fA-F]{2})", "%25").replaceAll("\\+", " ");
-      return URLDecoder.decode(data, StandardCharsets.UTF_8.toString());
-    } catch (UnsupportedEncodingException ex) {
-      throw new RuntimeException(ex.getCause());
-    }
+  public static String generateEncryptedQueryParams(String encodedQuery) {
+    return QueryStringCanonicalizer.canonicalize(encodedQuery);
   }
 
   /**
@@ -379,23 +405,7 @@ public class MAuthSignatureHelper {
    * @return the normalized string of path
    */
   public static String normalizePath(String encodedPath) {
-    if (encodedPath == null || encodedPath.isEmpty())
-      return "";
-
-    //Normalize percent encoding to uppercase i.e. %cf%80 => %CF%80
-    Matcher matcher = PATTERN_HEX_LOWCASE.matcher(encodedPath);
-    StringBuffer result = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(result, matcher.group().toUpperCase());
-    }
-    matcher.appendTail(result);
-
-    String normalizedPath = Paths.get(result.toString()).normalize().toString();
-    if(!normalizedPath.endsWith("/") &&
-        (encodedPath.endsWith("/") || encodedPath.endsWith("/.")|| encodedPath.endsWith("/.."))) {
-      normalizedPath = normalizedPath.concat("/");
-    }
-    return normalizedPath;
+    return PathNormalizer.normalize(encodedPath);
   }
 
   /**
@@ -409,10 +419,11 @@ public class MAuthSignatureHelper {
    */
   public static String encryptSignatureRSA(PrivateKey privateKey, String unencryptedString)
       throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
-    Signature signature = Signature.getInstance("SHA512WithRSA");
+    Signature signature = MAuthCryptoEngines.sha512RsaSignature();
     signature.initSign(privateKey);
-    signature.update(unencryptedString.getBytes(StandardCharsets.UTF_8));
-    return new String(Base64.encodeBase64(signature.sign()), StandardCharsets.UTF_8);
+    StringToSignEncoder encoder = StringToSignEncoder.get().append(unencryptedString);
+    encoder.update(signature);
+    return encoder.encodeBase64(signature.sign());
   }
 
   /**
@@ -424,9 +435,9 @@ public class MAuthSignatureHelper {
    * @throws Exception
    */
   public static boolean verifyRSA(String plainText, String signature, PublicKey publicKey) throws Exception {
-    Signature publicSignature = Signature.getInstance("SHA512withRSA");
-    publicSignature.initVerify(publicKey);
-    publicSignature.update(plainText.getBytes(StandardCharsets.UTF_8));
+    Signature publicSignature = MAuthCryptoEngines.sha512RsaSignature();
+    publicSignature.initVerify(publicKey instanceof MAuthPublicKey ? ((MAuthPublicKey) publicKey).getVerificationKey() : publicKey);
+    StringToSignEncoder.get().append(plainText).update(publicSignature);
     byte[] signatureBytes = Base64.decodeBase64(signature.getBytes());
     return publicSignature.verify(signatureBytes);
   }
@@ -0,0 +1,112 @@
+package com.mdsol.mauth.util;
+
+/**
+ * Single pass, in-memory normalization of the URL path used in the MAuth V2 string to sign.
+ *
+ * The output is identical to the original regex and {@code Paths.get(path).normalize()} based implementation
+ * on a Unix file system:
+ * <ul>
+ *   <li>percent-encodings made of lowercase hex digits are uppercased, e.g. {@code %cf%80} to {@code %CF%80}</li>
+ *   <li>empty and {@code .} segments are removed and {@code ..} removes the preceding segment,
+ *   leading {@code ..} segments are dropped for absolute paths and kept for relative ones</li>
+ *   <li>a trailing {@code /} is kept, and added when the path ends with {@code /.} or {@code /..}</li>
+ * </ul>
+ * Unlike the file system based implementation it does not depend on the host's path encoding, so non-ASCII
+ * characters are always preserved, and it does not reject paths containing a NUL character.
+ */
+final class PathNormalizer {
+
+  private PathNormalizer() {
+  }
+
+  static String normalize(String encodedPath) {
+    if (encodedPath == null || encodedPath.isEmpty()) {
+      return "";
+    }
+
+    int length = encodedPath.length();
+    boolean absolute = encodedPath.charAt(0) == '/';
+    // kept segments joined with '/', with a leading '/' for absolute paths
+    char[] out = new char[length + 2];
+    int outLength = 0;
+    // end of the leading ".." segments of a relative path, which can not be removed
+    int floor = 0;
+
+    int start = 0;
+    while (start < length) {
+      int end = encodedPath.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      int segmentLength = end - start;
+      if (segmentLength == 0 || (segmentLength == 1 && encodedPath.charAt(start) == '.')) {
+        // empty or current directory segment
+      } else if (segmentLength == 2 && encodedPath.charAt(start) == '.' && encodedPath.charAt(start + 1) == '.') {
+        if (outLength > floor) {
+          int slash = outLength - 1;
+          while (slash >= floor && out[slash] != '/') {
+            slash--;
+          }
+          outLength = Math.max(slash, floor);
+        } else if (!absolute) {
+          if (outLength > 0) {
+            out[outLength++] = '/';
+          }
+          out[outLength++] = '.';
+          out[outLength++] = '.';
+          floor = outLength;
+        }
+      } else {
+        if (absolute || outLength > 0) {
+          out[outLength++] = '/';
+        }
+        outLength = appendSegment(encodedPath, start, end, out, outLength);
+      }
+      start = end + 1;
+    }
+
+    if (absolute && outLength == 0) {
+      out[outLength++] = '/';
+    }
+    if ((outLength == 0 || out[outLength - 1] != '/')
+        && (encodedPath.endsWith("/") || encodedPath.endsWith("/.") || encodedPath.endsWith("/.."))) {
+      out[outLength++] = '/';
+    }
+
+    return isUnchanged(encodedPath, out, outLength) ? encodedPath : new String(out, 0, outLength);
+  }
+
+  // Copy a segment, uppercasing the hex digits of percent-encodings made of [a-f0-9] only
+  private static int appendSegment(String path, int start, int end, char[] out, int outLength) {
+    int i = start;
+    while (i < end) {
+      char c = path.charAt(i);
+      if (c == '%' && i + 2 < end && isLowercaseHex(path.charAt(i + 1)) && isLowercaseHex(path.charAt(i + 2))) {
+        out[outLength++] = '%';
+        out[outLength++] = Character.toUpperCase(path.charAt(i + 1));
+        out[outLength++] = Character.toUpperCase(path.charAt(i + 2));
+        i += 3;
+      } else {
+        out[outLength++] = c;
+        i++;
+      }
+    }
+    return outLength;
+  }
+
+  private static boolean isLowercaseHex(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+  }
+
+  private static boolean isUnchanged(String path, char[] out, int outLength) {
+    if (outLength != path.length()) {
+      return false;
+    }
+    for (int i = 0; i < outLength; i++) {
+      if (out[i] != path.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,305 @@
+package com.mdsol.mauth.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass implementation of the MAuth V2 query string canonicalization:
+ * split on {@code &} and {@code =}, percent-decode, sort by key then value and percent-encode again.
+ *
+ * The output is identical to the original {@code split}/{@code URLDecoder}/{@code URLEncoder} based implementation,
+ * including its edge cases:
+ * <ul>
+ *   <li>the value is the text between the first and the second {@code =} of a parameter</li>
+ *   <li>{@code +} decodes to a space and a {@code %} not followed by two hex digits decodes to itself</li>
+ *   <li>percent-encoded bytes are decoded as UTF-8, malformed sequences become U+FFFD</li>
+ *   <li>keys and values are compared with {@link String#compareTo(String)}</li>
+ *   <li>everything but {@code A-Z a-z 0-9 - _ . ~} is encoded as uppercase UTF-8 percent escapes,
+ *   unpaired surrogates as {@code %3F}</li>
+ * </ul>
+ */
+final class QueryStringCanonicalizer {
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<DecodeBuffers> DECODE_BUFFERS = ThreadLocal.withInitial(DecodeBuffers::new);
+
+  private QueryStringCanonicalizer() {
+  }
+
+  static String canonicalize(String query) {
+    if (query == null || query.isEmpty()) {
+      return "";
+    }
+
+    // keys and values interleaved: key at 2 * i, value at 2 * i + 1
+    String[] params = new String[16];
+    int count = 0;
+    int length = query.length();
+    int start = 0;
+    while (start < length) {
+      int end = query.indexOf('&', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        if (2 * count + 2 > params.length) {
+          String[] grown = new String[params.length * 2];
+          System.arraycopy(params, 0, grown, 0, 2 * count);
+          params = grown;
+        }
+        int keyEnd = indexOf(query, '=', start, end);
+        if (keyEnd < 0) {
+          params[2 * count] = decode(query, start, end);
+          params[2 * count + 1] = "";
+        } else {
+          int valueEnd = indexOf(query, '=', keyEnd + 1, end);
+          params[2 * count] = decode(query, start, keyEnd);
+          params[2 * count + 1] = decode(query, keyEnd + 1, valueEnd < 0 ? end : valueEnd);
+        }
+        count++;
+      }
+      start = end + 1;
+    }
+    if (count == 0) {
+      return "";
+    }
+
+    sort(params, count);
+
+    StringBuilder canonical = new StringBuilder(length + (length >> 2));
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        canonical.append('&');
+      }
+      encode(canonical, params[2 * i]);
+      canonical.append('=');
+      encode(canonical, params[2 * i + 1]);
+    }
+    return canonical.toString();
+  }
+
+  private static int indexOf(String s, char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String decode(String s, int from, int to) {
+    int i = from;
+    while (i < to && s.charAt(i) != '%' && s.charAt(i) != '+') {
+      i++;
+    }
+    if (i == to) {
+      return s.substring(from, to);
+    }
+
+    DecodeBuffers buffers = DECODE_BUFFERS.get();
+    char[] chars = buffers.chars(to - from);
+    byte[] bytes = buffers.bytes(to - from);
+    s.getChars(from, i, chars, 0);
+    int charCount = i - from;
+    while (i < to) {
+      char c = s.charAt(i);
+      if (c == '%') {
+        int byteCount = 0;
+        while (i < to && s.charAt(i) == '%') {
+          int high = i + 2 < to ? hexValue(s.charAt(i + 1)) : -1;
+          int low = high >= 0 ? hexValue(s.charAt(i + 2)) : -1;
+          if (low >= 0) {
+            bytes[byteCount++] = (byte) ((high << 4) | low);
+            i += 3;
+          } else {
+            bytes[byteCount++] = '%';
+            i++;
+          }
+        }
+        charCount = decodeUtf8(bytes, byteCount, chars, charCount);
+      } else {
+        chars[charCount++] = c == '+' ? ' ' : c;
+        i++;
+      }
+    }
+    return new String(chars, 0, charCount);
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    } else if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+
+  // Decode well-formed UTF-8 by hand, leave malformed input to the JDK so the replacement characters are the same
+  private static int decodeUtf8(byte[] bytes, int byteCount, char[] chars, int charCount) {
+    int start = charCount;
+    int i = 0;
+    while (i < byteCount) {
+      int b0 = bytes[i] & 0xFF;
+      if (b0 < 0x80) {
+        chars[charCount++] = (char) b0;
+        i++;
+      } else if (b0 >= 0xC2 && b0 <= 0xDF && i + 1 < byteCount && isContinuation(bytes[i + 1])) {
+        chars[charCount++] = (char) (((b0 & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+        i += 2;
+      } else if (b0 >= 0xE0 && b0 <= 0xEF && i + 2 < byteCount && isValidSecondByte(b0, bytes[i + 1] & 0xFF)
+          && isContinuation(bytes[i + 2])) {
+        chars[charCount++] = (char) (((b0 & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+        i += 3;
+      } else if (b0 >= 0xF0 && b0 <= 0xF4 && i + 3 < byteCount && isValidSecondByte(b0, bytes[i + 1] & 0xFF)
+          && isContinuation(bytes[i + 2]) && isContinuation(bytes[i + 3])) {
+        int codePoint = ((b0 & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12) | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+        chars[charCount++] = Character.highSurrogate(codePoint);
+        chars[charCount++] = Character.lowSurrogate(codePoint);
+        i += 4;
+      } else {
+        String decoded = new String(bytes, 0, byteCount, StandardCharsets.UTF_8);
+        decoded.getChars(0, decoded.length(), chars, start);
+        return start + decoded.length();
+      }
+    }
+    return charCount;
+  }
+
+  private static boolean isContinuation(byte b) {
+    return (b & 0xC0) == 0x80;
+  }
+
+  // Excludes overlong encodings, UTF-16 surrogates and code points above U+10FFFF
+  private static boolean isValidSecondByte(int b0, int b1) {
+    switch (b0) {
+      case 0xE0:
+        return b1 >= 0xA0 && b1 <= 0xBF;
+      case 0xED:
+        return b1 >= 0x80 && b1 <= 0x9F;
+      case 0xF0:
+        return b1 >= 0x90 && b1 <= 0xBF;
+      case 0xF4:
+        return b1 >= 0x80 && b1 <= 0x8F;
+      default:
+        return b1 >= 0x80 && b1 <= 0xBF;
+    }
+  }
+
+  private static void encode(StringBuilder out, String value) {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '_' || c == '.' || c == '~') {
+        out.append(c);
+      } else if (c < 0x80) {
+        appendEscaped(out, c);
+      } else if (c < 0x800) {
+        appendEscaped(out, 0xC0 | (c >> 6));
+        appendEscaped(out, 0x80 | (c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          appendEscaped(out, 0xF0 | (codePoint >> 18));
+          appendEscaped(out, 0x80 | ((codePoint >> 12) & 0x3F));
+          appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+          appendEscaped(out, 0x80 | (codePoint & 0x3F));
+        } else {
+          // unpaired surrogates are replaced with '?' by the UTF-8 encoder
+          appendEscaped(out, '?');
+        }
+      } else {
+        appendEscaped(out, 0xE0 | (c >> 12));
+        appendEscaped(out, 0x80 | ((c >> 6) & 0x3F));
+        appendEscaped(out, 0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private static void appendEscaped(StringBuilder out, int b) {
+    out.append('%').append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+  }
+
+  private static void sort(String[] params, int count) {
+    if (count <= INSERTION_SORT_THRESHOLD) {
+      insertionSort(params, 0, count);
+    } else {
+      mergeSort(params.clone(), params, 0, count);
+    }
+  }
+
+  // src and dest hold the same pairs in [low, high) on entry, the sorted pairs end up in dest
+  private static void mergeSort(String[] src, String[] dest, int low, int high) {
+    if (high - low <= INSERTION_SORT_THRESHOLD) {
+      insertionSort(dest, low, high);
+      return;
+    }
+    int mid = (low + high) >>> 1;
+    mergeSort(dest, src, low, mid);
+    mergeSort(dest, src, mid, high);
+    if (compare(src, mid - 1, src, mid) <= 0) {
+      System.arraycopy(src, 2 * low, dest, 2 * low, 2 * (high - low));
+      return;
+    }
+    for (int i = low, p = low, q = mid; i < high; i++) {
+      int from = q >= high || (p < mid && compare(src, p, src, q) <= 0) ? p++ : q++;
+      dest[2 * i] = src[2 * from];
+      dest[2 * i + 1] = src[2 * from + 1];
+    }
+  }
+
+  private static void insertionSort(String[] params, int low, int high) {
+    for (int i = low + 1; i < high; i++) {
+      String key = params[2 * i];
+      String value = params[2 * i + 1];
+      int j = i - 1;
+      while (j >= low && compare(params[2 * j], params[2 * j + 1], key, value) > 0) {
+        params[2 * j + 2] = params[2 * j];
+        params[2 * j + 3] = params[2 * j + 1];
+        j--;
+      }
+      params[2 * j + 2] = key;
+      params[2 * j + 3] = value;
+    }
+  }
+
+  private static int compare(String[] a, int i, String[] b, int j) {
+    return compare(a[2 * i], a[2 * i + 1], b[2 * j], b[2 * j + 1]);
+  }
+
+  private static int compare(String key1, String value1, String key2, String value2) {
+    int result = key1.compareTo(key2);
+    return result != 0 ? result : value1.compareTo(value2);
+  }
+
+  private static final class DecodeBuffers {
+    private char[] chars = new char[256];
+    private byte[] bytes = new byte[256];
+
+    char[] chars(int size) {
+      if (size <= chars.length) {
+        return chars;
+      }
+      char[] buffer = new char[size];
+      if (size <= MAX_RETAINED_BUFFER_SIZE) {
+        chars = buffer;
+      }
+      return buffer;
+    }
+
+    byte[] bytes(int size) {
+      if (size <= bytes.length) {
+        return bytes;
+      }
+      byte[] buffer = new byte[size];
+      if (size <= MAX_RETAINED_BUFFER_SIZE) {
+        bytes = buffer;
+      }
+      return buffer;
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.mdsol.mauth.util;
+
+import org.bouncycastle.crypto.AsymmetricBlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Per-thread buffer the components of a string to sign are encoded into, and fed from to a {@link Signature},
+ * {@link MessageDigest} or block cipher. Signing with it does not build the string to sign, copy the request body or
+ * go through intermediate strings for the hex encoded body digest.
+ *
+ * {@link #get()} resets and returns the encoder of the current thread, so it must not be held on to after the
+ * signature is generated or verified.
+ */
+public final class StringToSignEncoder {
+
+  /** Hex encoded SHA-512 digest of an empty request body */
+  public static final String EMPTY_BODY_DIGEST =
+      "cf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e";
+
+  private static final byte[] EMPTY_BODY_DIGEST_BYTES = EMPTY_BODY_DIGEST.getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] BASE64_DIGITS =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+  private static final int SHA512_DIGEST_LENGTH = 64;
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<StringToSignEncoder> ENCODERS = ThreadLocal.withInitial(StringToSignEncoder::new);
+
+  private final byte[] digest = new byte[SHA512_DIGEST_LENGTH];
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private byte[] base64Buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int length;
+
+  private StringToSignEncoder() {
+  }
+
+  /**
+   * @return the empty encoder of the current thread
+   */
+  public static StringToSignEncoder get() {
+    return ENCODERS.get().reset();
+  }
+
+  /**
+   * Discard the encoded bytes, e.g. to encode the next part of a string to sign that has a body in the middle
+   * @return this encoder
+   */
+  public StringToSignEncoder reset() {
+    if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+      buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+    length = 0;
+    return this;
+  }
+
+  /**
+   * Append a string encoded as UTF-8, unpaired surrogates are encoded as {@code ?} like {@link String#getBytes}
+   * @param value the string to append
+   * @return this encoder
+   */
+  public StringToSignEncoder append(String value) {
+    int valueLength = value.length();
+    ensureCapacity(valueLength * 3);
+    byte[] bytes = buffer;
+    int position = length;
+    for (int i = 0; i < valueLength; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        bytes[position++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[position++] = (byte) (0xC0 | (c >> 6));
+        bytes[position++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < valueLength && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+          bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+          bytes[position++] = '?';
+        }
+      } else {
+        bytes[position++] = (byte) (0xE0 | (c >> 12));
+        bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        bytes[position++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    length = position;
+    return this;
+  }
+
+  /**
+   * Append a string encoded as ISO-8859-1, characters outside of it are encoded as {@code ?} like {@link String#getBytes}
+   * @param value the string to append
+   * @return this encoder
+   */
+  public StringToSignEncoder appendLatin1(String value) {
+    int valueLength = value.length();
+    ensureCapacity(valueLength);
+    for (int i = 0; i < valueLength; i++) {
+      char c = value.charAt(i);
+      if (Character.isHighSurrogate(c) && i + 1 < valueLength && Character.isLowSurrogate(value.charAt(i + 1))) {
+        // a surrogate pair is a single unmappable character
+        i++;
+      }
+      buffer[length++] = c <= 0xFF ? (byte) c : (byte) '?';
+    }
+    return this;
+  }
+
+  /**
+   * @param c an ASCII character, e.g. the new line separating the components
+   * @return this encoder
+   */
+  public StringToSignEncoder append(char c) {
+    ensureCapacity(1);
+    buffer[length++] = (byte) c;
+    return this;
+  }
+
+  /**
+   * @param value a number appended in decimal, e.g. the request time
+   * @return this encoder
+   */
+  public StringToSignEncoder append(long value) {
+    if (value < 0) {
+      return append(String.valueOf(value));
+    }
+    int digits = 1;
+    for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+      digits++;
+    }
+    ensureCapacity(digits);
+    long remaining = value;
+    for (int i = length + digits - 1; i >= length; i--) {
+      buffer[i] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    length += digits;
+    return this;
+  }
+
+  /**
+   * @param bytes already encoded bytes, e.g. a cached app UUID
+   * @return this encoder
+   */
+  public StringToSignEncoder append(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, length, bytes.length);
+    length += bytes.length;
+    return this;
+  }
+
+  /**
+   * Append the hex encoded SHA-512 digest of a request body
+   * @param body the request body, digested in place
+   * @return this encoder
+   * @throws GeneralSecurityException when SHA-512 is not available
+   */
+  public StringToSignEncoder appendBodyDigest(byte[] body) throws GeneralSecurityException {
+    if (body == null || body.length == 0) {
+      return append(EMPTY_BODY_DIGEST_BYTES);
+    }
+    MessageDigest md = MAuthCryptoEngines.sha512Digest();
+    md.update(body);
+    return appendDigest(md);
+  }
+
+  /**
+   * Append the hex encoded SHA-512 digest of a request body
+   * @param body the request body, read until the end but not closed
+   * @return this encoder
+   * @throws IOException when reading the body fails
+   * @throws GeneralSecurityException when SHA-512 is not available
+   */
+  public StringToSignEncoder appendBodyDigest(InputStream body) throws IOException, GeneralSecurityException {
+    MessageDigest md = MAuthCryptoEngines.sha512Digest();
+    MAuthDigestHelper.update(md, body);
+    return appendDigest(md);
+  }
+
+  /**
+   * Complete a SHA-512 digest and append it hex encoded
+   * @param md a SHA-512 digest
+   * @return this encoder
+   * @throws GeneralSecurityException when the digest is not SHA-512
+   */
+  public StringToSignEncoder appendDigest(MessageDigest md) throws GeneralSecurityException {
+    int digestLength = md.digest(digest, 0, SHA512_DIGEST_LENGTH);
+    ensureCapacity(digestLength * 2);
+    for (int i = 0; i < digestLength; i++) {
+      buffer[length++] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+      buffer[length++] = HEX_DIGITS[digest[i] & 0x0F];
+    }
+    return this;
+  }
+
+  /**
+   * @param md the digest to update with the encoded bytes
+   */
+  public void update(MessageDigest md) {
+    md.update(buffer, 0, length);
+  }
+
+  /**
+   * @param signature the signature to update with the encoded bytes
+   * @throws SignatureException when the signature is not initialized
+   */
+  public void update(Signature signature) throws SignatureException {
+    signature.update(buffer, 0, length);
+  }
+
+  /**
+   * @param engine an initialized block cipher, e.g. PKCS#1 for V1 signatures
+   * @return the encoded bytes processed by the cipher
+   * @throws InvalidCipherTextException when the encoded bytes can not be processed
+   */
+  public byte[] processBlock(AsymmetricBlockCipher engine) throws InvalidCipherTextException {
+    return engine.processBlock(buffer, 0, length);
+  }
+
+  /**
+   * Base64 encode a signature, with padding and without line breaks
+   * @param bytes the signature
+   * @return the Base64 encoded signature
+   */
+  public String encodeBase64(byte[] bytes) {
+    int encodedLength = 4 * ((bytes.length + 2) / 3);
+    if (base64Buffer.length < encodedLength) {
+      base64Buffer = new byte[encodedLength];
+    }
+    byte[] out = base64Buffer;
+    int position = 0;
+    int i = 0;
+    for (int end = bytes.length - bytes.length % 3; i < end; i += 3) {
+      int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+      out[position++] = BASE64_DIGITS[bits >>> 18];
+      out[position++] = BASE64_DIGITS[(bits >>> 12) & 0x3F];
+      out[position++] = BASE64_DIGITS[(bits >>> 6) & 0x3F];
+      out[position++] = BASE64_DIGITS[bits & 0x3F];
+    }
+    if (i < bytes.length) {
+      int bits = (bytes[i] & 0xFF) << 16 | (i + 1 < bytes.length ? (bytes[i + 1] & 0xFF) << 8 : 0);
+      out[position++] = BASE64_DIGITS[bits >>> 18];
+      out[position++] = BASE64_DIGITS[(bits >>> 12) & 0x3F];
+      out[position++] = i + 1 < bytes.length ? BASE64_DIGITS[(bits >>> 6) & 0x3F] : (byte) '=';
+      out[position++] = '=';
+    }
+    if (base64Buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+      base64Buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+    return new String(out, 0, position, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @return the encoded bytes as a UTF-8 string, for logging and tests
+   */
+  @Override
+  public String toString() {
+    return new String(buffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra > buffer.length) {
+      byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+      System.arraycopy(buffer, 0, grown, 0, length);
+      buffer = grown;
+    }
+  }
+}
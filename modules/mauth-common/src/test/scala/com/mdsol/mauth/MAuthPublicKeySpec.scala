@@ -0,0 +1,57 @@
+package com.mdsol.mauth
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, ObjectInputStream, ObjectOutputStream}
+import java.security.Security
+
+import com.mdsol.mauth.test.utils.TestFixtures
+import com.mdsol.mauth.util.MAuthKeysHelper.{getPrivateKeyFromString, getPublicKeyFromString}
+import com.mdsol.mauth.util.{MAuthPublicKey, MAuthSignatureHelper}
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class MAuthPublicKeySpec extends AnyFlatSpec with Matchers {
+
+  Security.addProvider(new BouncyCastleProvider)
+
+  private val publicKey = getPublicKeyFromString(TestFixtures.PUBLIC_KEY_1)
+  private val privateKey = getPrivateKeyFromString(TestFixtures.PRIVATE_KEY_1)
+
+  behavior of "MAuthPublicKey"
+
+  it should "be equal to the key it wraps in both directions" in {
+    val wrapped = MAuthPublicKey.of(publicKey)
+    wrapped shouldBe a[MAuthPublicKey]
+    wrapped shouldBe publicKey
+    publicKey shouldBe wrapped
+    wrapped.hashCode shouldBe publicKey.hashCode
+    wrapped.getEncoded shouldBe publicKey.getEncoded
+  }
+
+  it should "not wrap a key twice" in {
+    val wrapped = MAuthPublicKey.of(publicKey)
+    MAuthPublicKey.of(wrapped) should be theSameInstanceAs wrapped
+  }
+
+  it should "serialize as the key it wraps" in {
+    val bytes = new ByteArrayOutputStream()
+    val out = new ObjectOutputStream(bytes)
+    out.writeObject(MAuthPublicKey.of(publicKey))
+    out.close()
+    val deserialized = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray)).readObject()
+    deserialized.getClass shouldBe publicKey.getClass
+    deserialized shouldBe publicKey
+  }
+
+  it should "verify V1 and V2 signatures" in {
+    val wrapped = MAuthPublicKey.of(publicKey)
+    val testString = "Hello world"
+
+    val signatureV1 = MAuthSignatureHelper.encryptSignature(privateKey, testString)
+    MAuthSignatureHelper.decryptSignature(wrapped, signatureV1) shouldBe MAuthSignatureHelper.decryptSignature(publicKey, signatureV1)
+
+    val signatureV2 = MAuthSignatureHelper.encryptSignatureRSA(privateKey, testString)
+    MAuthSignatureHelper.verifyRSA(testString, signatureV2, wrapped) shouldBe true
+    MAuthSignatureHelper.verifyRSA("Hello world!", signatureV2, wrapped) shouldBe false
+  }
+}
@@ -3,6 +3,7 @@ package com.mdsol.mauth
 import java.nio.charset.StandardCharsets
 import java.util.UUID
 
+import com.mdsol.mauth.util.MAuthSignatureHelper
 import org.scalatest.flatspec.AnyFlatSpec
 import org.scalatest.matchers.should.Matchers
 
@@ -297,4 +298,71 @@ class MAuthRequestSpec extends AnyFlatSpec with Matchers {
     expectedException.getMessage shouldBe "Only one of bodyInputStream and messagePayload should be provided."
   }
 
+  it should "correctly create MAuthRequest for V2 with the body digest only" in {
+    val bodyDigest = MAuthSignatureHelper.getHexEncodedDigestedString(CLIENT_REQUEST_PAYLOAD)
+    val request = MAuthRequest.Builder
+      .get()
+      .withMauthHeaders(CLIENT_REQUEST_HEADERS)
+      .withHttpMethod(CLIENT_REQUEST_METHOD)
+      .withBodyDigest(bodyDigest)
+      .withResourcePath(CLIENT_REQUEST_PATH)
+      .build()
+
+    request.getBodyDigest shouldBe bodyDigest
+    request.getMessagePayload shouldBe null
+    request.getBodyInputStream shouldBe null
+    MAuthSignatureHelper.generateStringToSignV2(request) shouldBe MAuthSignatureHelper.generateStringToSignV2(
+      UUID.fromString(CLIENT_APP_UUID),
+      CLIENT_REQUEST_METHOD,
+      CLIENT_REQUEST_PATH,
+      "",
+      CLIENT_REQUEST_PAYLOAD,
+      CLIENT_REQUEST_TIME_HEADER_V2
+    )
+  }
+
+  it should "digest a byte array payload for V2 the same as a stream of it" in {
+    def stringToSign(payload: Array[Byte], streamed: Boolean): String = {
+      val builder = MAuthRequest.Builder
+        .get()
+        .withMauthHeaders(CLIENT_REQUEST_HEADERS_V2)
+        .withHttpMethod(CLIENT_REQUEST_METHOD)
+        .withResourcePath(CLIENT_REQUEST_PATH)
+      val request =
+        if (streamed) builder.withBodyInputStream(new java.io.ByteArrayInputStream(payload)).build()
+        else builder.withMessagePayload(payload).build()
+      MAuthSignatureHelper.generateStringToSignV2(request)
+    }
+
+    for (payload <- Seq(CLIENT_REQUEST_PAYLOAD, Array[Byte]()))
+      stringToSign(payload, streamed = false) shouldBe stringToSign(payload, streamed = true)
+  }
+
+  it should "read a byte array payload from a new stream each time" in {
+    val request = MAuthRequest.Builder
+      .get()
+      .withAuthenticationHeaderValue(CLIENT_REQUEST_AUTHENTICATION_HEADER)
+      .withTimeHeaderValue(CLIENT_REQUEST_TIME_HEADER)
+      .withHttpMethod(CLIENT_REQUEST_METHOD)
+      .withMessagePayload(CLIENT_REQUEST_PAYLOAD)
+      .withResourcePath(CLIENT_REQUEST_PATH)
+      .build()
+
+    request.getBodyInputStream.readAllBytes() shouldBe CLIENT_REQUEST_PAYLOAD
+    request.getBodyInputStream.readAllBytes() shouldBe CLIENT_REQUEST_PAYLOAD
+  }
+
+  it should "not allow the body digest for V1" in {
+    val expectedException = intercept[IllegalArgumentException] {
+      MAuthRequest.Builder
+        .get()
+        .withMauthHeaders(CLIENT_REQUEST_HEADERS_V1)
+        .withHttpMethod(CLIENT_REQUEST_METHOD)
+        .withBodyDigest(MAuthSignatureHelper.getHexEncodedDigestedString(CLIENT_REQUEST_PAYLOAD))
+        .withResourcePath(CLIENT_REQUEST_PATH)
+        .build()
+    }
+    expectedException.getMessage shouldBe "The body digest can only be used with Mauth V2."
+  }
+
 }
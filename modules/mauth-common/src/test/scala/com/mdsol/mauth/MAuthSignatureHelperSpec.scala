@@ -1,11 +1,15 @@
 package com.mdsol.mauth
 
+import java.io.{ByteArrayInputStream, IOException, InputStream}
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
 import java.nio.charset.StandardCharsets
 import java.security.Security
 import java.util.UUID
 
 import com.mdsol.mauth.test.utils.TestFixtures
-import com.mdsol.mauth.util.MAuthKeysHelper.{getPrivateKeyFromString, getPublicKeyFromString}
+import com.mdsol.mauth.util.MAuthKeysHelper.{getPrivateKeyFromString, getPrivateKeyParameters, getPublicKeyFromString}
+import com.mdsol.mauth.exceptions.MAuthSigningException
 import com.mdsol.mauth.util.MAuthSignatureHelper
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import org.scalatest.flatspec.AnyFlatSpec
@@ -114,6 +118,14 @@ class MAuthSignatureHelperSpec extends AnyFlatSpec with Matchers {
     MAuthSignatureHelper.encryptSignature(TEST_PRIVATE_KEY, testString) shouldBe expectedString
   }
 
+  it should "generate the same V1 signature from pre-parsed private key parameters" in {
+    val testString = "こんにちはÆ".getBytes(StandardCharsets.UTF_8)
+    val privateKeyParameters = getPrivateKeyParameters(TEST_PRIVATE_KEY)
+    MAuthSignatureHelper.encryptSignature(privateKeyParameters, testString) shouldBe MAuthSignatureHelper.encryptSignature(TEST_PRIVATE_KEY, testString)
+    MAuthSignatureHelper.encryptSignature(privateKeyParameters, new ByteArrayInputStream(testString)) shouldBe
+      MAuthSignatureHelper.encryptSignature(TEST_PRIVATE_KEY, testString)
+  }
+
   it should "correctly generate signature for V2" in {
     val testString = "Hello world"
     val expectedString = ("KODkSEnqjr52EWOFvrRj2igwMR8EHsFYpBzDSEWge7UenB3u8OKP1nXeg1oJ0X" +
@@ -210,4 +222,48 @@ class MAuthSignatureHelperSpec extends AnyFlatSpec with Matchers {
     for (i <- 0 to testCases.length - 1)
       MAuthSignatureHelper.generateEncryptedQueryParams(testCases(i)(0)) shouldBe testCases(i)(1)
   }
+
+  it should "digest streams larger than the read buffer the same as byte arrays" in {
+    val body = Array.tabulate[Byte](100 * 1024 + 7)(_.toByte)
+    MAuthSignatureHelper.getHexEncodedDigestedString(new ByteArrayInputStream(body)) shouldBe
+      MAuthSignatureHelper.getHexEncodedDigestedString(body)
+  }
+
+  it should "digest an empty stream" in {
+    MAuthSignatureHelper.getHexEncodedDigestedString(new ByteArrayInputStream(Array[Byte]())) shouldBe
+      MAuthSignatureHelper.getHexEncodedDigestedString(Array[Byte]())
+  }
+
+  it should "digest heap, direct and read-only byte buffers without moving their position" in {
+    val body = Array.tabulate[Byte](40 * 1024 + 3)(_.toByte)
+    val expected = MAuthSignatureHelper.getHexEncodedDigestedString(body.drop(5))
+
+    val direct = ByteBuffer.allocateDirect(body.length)
+    direct.put(body).flip()
+    for (buffer <- Seq(ByteBuffer.wrap(body), direct, ByteBuffer.wrap(body).asReadOnlyBuffer())) {
+      buffer.position(5)
+      MAuthSignatureHelper.getHexEncodedDigestedString(buffer) shouldBe expected
+      buffer.position() shouldBe 5
+    }
+  }
+
+  it should "digest a channel the same as byte arrays" in {
+    val body = Array.tabulate[Byte](100 * 1024 + 7)(_.toByte)
+    val channel = Channels.newChannel(new ByteArrayInputStream(body))
+    MAuthSignatureHelper.getHexEncodedDigestedString(channel) shouldBe MAuthSignatureHelper.getHexEncodedDigestedString(body)
+    channel.isOpen shouldBe true
+  }
+
+  it should "digest correctly after a previous digest failed part way through the stream" in {
+    val failingStream = new InputStream {
+      private var remaining = 10
+      override def read(): Int =
+        if (remaining == 0) throw new IOException("connection reset")
+        else { remaining -= 1; 42 }
+    }
+    an[MAuthSigningException] should be thrownBy MAuthSignatureHelper.getHexEncodedDigestedString(failingStream)
+
+    MAuthSignatureHelper.getHexEncodedDigestedString("message here") shouldBe
+      "839d22b1ba165493472366f02403a091fe0b73a561d75b275afc9212055036b98260ff1811c20baa67a99456af5e764c7887e317c8b98579473e548001a1f0bb"
+  }
 }
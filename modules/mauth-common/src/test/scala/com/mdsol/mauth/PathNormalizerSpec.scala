@@ -0,0 +1,91 @@
+package com.mdsol.mauth
+
+import java.nio.file.Paths
+import java.util.regex.Pattern
+
+import com.mdsol.mauth.util.MAuthSignatureHelper
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+import scala.util.Random
+
+class PathNormalizerSpec extends AnyFlatSpec with Matchers {
+
+  // The regex and Paths based implementation the normalizer replaced
+  private def legacyNormalizePath(encodedPath: String): String =
+    if (encodedPath == null || encodedPath.isEmpty) ""
+    else {
+      val matcher = Pattern.compile("%[a-f0-9]{2}").matcher(encodedPath)
+      val result = new StringBuffer()
+      while (matcher.find()) matcher.appendReplacement(result, matcher.group().toUpperCase)
+      matcher.appendTail(result)
+
+      val normalizedPath = Paths.get(result.toString).normalize().toString
+      if (!normalizedPath.endsWith("/") && (encodedPath.endsWith("/") || encodedPath.endsWith("/.") || encodedPath.endsWith("/..")))
+        normalizedPath + "/"
+      else normalizedPath
+    }
+
+  private def shouldMatchLegacy(path: String) =
+    withClue(s"path [$path]: ") {
+      MAuthSignatureHelper.normalizePath(path) shouldBe legacyNormalizePath(path)
+    }
+
+  behavior of "MAuthSignatureHelper.normalizePath"
+
+  it should "match the legacy implementation for edge cases" in {
+    val paths = Seq(
+      null,
+      "",
+      "/",
+      "//",
+      ".",
+      "..",
+      "/.",
+      "/..",
+      "./",
+      "../",
+      "a",
+      "a/",
+      "a/.",
+      "a/..",
+      "a/../..",
+      "../a/..",
+      "../../a/b/../../c",
+      "./../a",
+      "a//b///c//",
+      "/a/b/../../..",
+      "/a/b/../../../c/./d/..",
+      "/.../..../.a/..a/a./a..",
+      "/example/sample/..",
+      "/example/sample/../../../..",
+      "//example///sample/",
+      "/example//./.",
+      "/./example/./.",
+      "/%2a%80",
+      "/%2A%2a%aB%Ab%ab%zz%a%%2f%",
+      "/%2e/%2E%2e/%2e%2e/..%2f",
+      "/%2/a%/a%9",
+      "/resource/with%20space?and=query#fragment",
+      "/v1/apps/:uuid/security_tokens.json"
+    )
+    paths.foreach(shouldMatchLegacy)
+  }
+
+  it should "match the legacy implementation for random paths" in {
+    val random = new Random(1234)
+    val tokens = "/ // . .. a Z 0 % %2 %2a %2A %af %fA %e9 %ZZ - _ ~ : @ ? # ;".split(" ")
+    (1 to 5000).foreach { _ =>
+      shouldMatchLegacy(Seq.fill(random.nextInt(20))(tokens(random.nextInt(tokens.length))).mkString)
+    }
+  }
+
+  it should "return the same instance for paths that are already normalized" in {
+    val path = "/resource/path/"
+    MAuthSignatureHelper.normalizePath(path) should be theSameInstanceAs path
+  }
+
+  it should "preserve non-ASCII characters regardless of the platform path encoding" in {
+    MAuthSignatureHelper.normalizePath("/café/./∞/../😀/") shouldBe "/café/😀/"
+  }
+}
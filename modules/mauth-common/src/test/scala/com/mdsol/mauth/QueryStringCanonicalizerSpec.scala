@@ -0,0 +1,93 @@
+package com.mdsol.mauth
+
+import java.net.{URLDecoder, URLEncoder}
+import java.nio.charset.StandardCharsets
+
+import com.mdsol.mauth.test.utils.TestFixtures
+import com.mdsol.mauth.util.MAuthSignatureHelper
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+import scala.util.{Random, Try}
+
+class QueryStringCanonicalizerSpec extends AnyFlatSpec with Matchers {
+
+  // The split/URLDecoder/URLEncoder based implementation the canonicalizer replaced
+  private def legacyEncryptedQueryParams(encodedQuery: String): String = {
+    def decode(value: String): String =
+      if (value.isEmpty) value
+      else URLDecoder.decode(value.replaceAll("%(?![0-9a-fA-F]{2})", "%25").replaceAll("\\+", " "), StandardCharsets.UTF_8.toString)
+    def encode(value: String): String =
+      if (value.isEmpty) value
+      else URLEncoder.encode(value, StandardCharsets.UTF_8.toString).replace("+", "%20").replace("%7E", "~").replace("*", "%2A")
+
+    if (encodedQuery == null || encodedQuery.isEmpty) ""
+    else
+      encodedQuery
+        .split("&")
+        .filter(_.nonEmpty)
+        .map { keyValStr =>
+          val split = keyValStr.split("=")
+          (decode(split(0)), decode(if (split.length > 1) split(1) else ""))
+        }
+        .sortWith { case ((k1, v1), (k2, v2)) => if (k1 != k2) k1.compareTo(k2) < 0 else v1.compareTo(v2) < 0 }
+        .map { case (key, value) => encode(key) + "=" + encode(value) }
+        .mkString("&")
+  }
+
+  private def shouldMatchLegacy(query: String) =
+    withClue(s"query [$query]: ") {
+      MAuthSignatureHelper.generateEncryptedQueryParams(query) shouldBe legacyEncryptedQueryParams(query)
+    }
+
+  behavior of "MAuthSignatureHelper.generateEncryptedQueryParams"
+
+  it should "match the legacy implementation for edge cases" in {
+    val queries = Seq(
+      null,
+      "",
+      "&",
+      "&&a=1&&",
+      "a",
+      "a=",
+      "=a",
+      "a==b",
+      "a=b=c",
+      "a=b=c&a=b",
+      "key=The string ü@foo-bar",
+      "key2=asdf+f&key=%21%40%23",
+      "%2B=%2b&+=+",
+      "k=%7E&k=~&k=%40&k=a&k=*&k=%2A",
+      "k=%&k=%4&k=%%41&k=%zz&k=100%",
+      "k=%C3%A9&k=%c3%a9&k=caf%C3%A9+au+lait",
+      "k=%C3&k=%C3%&k=%C3%28&k=%E2%88&k=%E2%88%9E%E2",
+      "k=%ED%A0%80&k=%F4%90%80%80&k=%C0%AF&k=%F0%9F%98%80",
+      "k=%FF%FE&k=%80",
+      "∞=v&キ=v&0=v&a=v",
+      "emoji=😀&lone=\uD800&lone=\uDC00x&rev=\uDE00\uD83D",
+      "a=b&a=c&a=a&A=b&_=1&-=1&.=1&~=1",
+      TestFixtures.REQUEST_QUERY_PARAMETERS_V2
+    )
+    queries.foreach(shouldMatchLegacy)
+  }
+
+  it should "sort large numbers of parameters like the legacy implementation" in {
+    val random = new Random(42)
+    val query = (1 to 500).map(_ => s"k${random.nextInt(40)}=v${random.nextInt(10)}").mkString("&")
+    shouldMatchLegacy(query)
+  }
+
+  it should "match the legacy implementation for random queries" in {
+    val random = new Random(1234)
+    val tokens = "a Z 0 9 - _ . ~ * + & = % %2 %41 %7e %7E %C3 %A9 %E2 %88 %9E %F0 %9F %98 %80 %ff %zz é ∞ 😀 \uD800 \uDC00 / ? # @".split(" ") :+ " "
+    (1 to 2000).foreach { _ =>
+      val query = Seq.fill(random.nextInt(30))(tokens(random.nextInt(tokens.length))).mkString
+      // the legacy implementation failed on parameters made only of '=', e.g. "a=1&="
+      if (Try(legacyEncryptedQueryParams(query)).isSuccess) shouldMatchLegacy(query)
+    }
+  }
+
+  it should "treat parameters made only of '=' as an empty key and value" in {
+    MAuthSignatureHelper.generateEncryptedQueryParams("b=1&=&==") shouldBe "=&=&b=1"
+  }
+}
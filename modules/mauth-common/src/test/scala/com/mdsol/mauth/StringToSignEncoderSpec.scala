@@ -0,0 +1,72 @@
+package com.mdsol.mauth
+
+import java.io.ByteArrayInputStream
+import java.nio.charset.StandardCharsets
+import java.security.{MessageDigest, Security}
+
+import com.mdsol.mauth.util.{MAuthSignatureHelper, StringToSignEncoder}
+import org.apache.commons.codec.binary.{Base64, Hex}
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+import scala.util.Random
+
+class StringToSignEncoderSpec extends AnyFlatSpec with Matchers {
+
+  Security.addProvider(new BouncyCastleProvider)
+
+  private def encodedBytes(encoder: StringToSignEncoder): Array[Byte] = {
+    val md = MessageDigest.getInstance("SHA-512")
+    encoder.update(md)
+    md.digest()
+  }
+
+  private def sha512(bytes: Array[Byte]): Array[Byte] = MessageDigest.getInstance("SHA-512").digest(bytes)
+
+  behavior of "StringToSignEncoder"
+
+  it should "encode strings like String.getBytes" in {
+    val values = Seq("", "GET\n/resource/path", "café ∞ キ 😀", "lone \uD800 and \uDC00x", "rev \uDE00\uD83D", "\u007f\u0080߿ࠀ￿")
+    values.foreach { value =>
+      encodedBytes(StringToSignEncoder.get().append(value)) shouldBe sha512(value.getBytes(StandardCharsets.UTF_8))
+      encodedBytes(StringToSignEncoder.get().appendLatin1(value)) shouldBe sha512(value.getBytes(StandardCharsets.ISO_8859_1))
+    }
+  }
+
+  it should "encode numbers, characters and bytes" in {
+    val encoder = StringToSignEncoder.get().append(0L).append('\n').append(1683000000L).append('\n').append(-42L).append('\n')
+    encoder.append(Long.MaxValue).append("x".getBytes(StandardCharsets.US_ASCII))
+    encoder.toString shouldBe s"0\n1683000000\n-42\n${Long.MaxValue}x"
+  }
+
+  it should "grow past its initial buffer and start empty again after get" in {
+    val large = "a" * 100000
+    StringToSignEncoder.get().append(large).append(large).toString shouldBe large + large
+    StringToSignEncoder.get().toString shouldBe ""
+  }
+
+  it should "append the hex encoded SHA-512 digest of a body" in {
+    val body = "Hello world".getBytes(StandardCharsets.UTF_8)
+    val expected = Hex.encodeHexString(sha512(body))
+    StringToSignEncoder.get().appendBodyDigest(body).toString shouldBe expected
+    StringToSignEncoder.get().appendBodyDigest(new ByteArrayInputStream(body)).toString shouldBe expected
+  }
+
+  it should "use the SHA-512 digest of an empty body for empty and missing bodies" in {
+    StringToSignEncoder.EMPTY_BODY_DIGEST shouldBe Hex.encodeHexString(sha512(Array.emptyByteArray))
+    StringToSignEncoder.get().appendBodyDigest(Array.emptyByteArray).toString shouldBe StringToSignEncoder.EMPTY_BODY_DIGEST
+    StringToSignEncoder.get().appendBodyDigest(null: Array[Byte]).toString shouldBe StringToSignEncoder.EMPTY_BODY_DIGEST
+    StringToSignEncoder.get().appendBodyDigest(new ByteArrayInputStream(Array.emptyByteArray)).toString shouldBe StringToSignEncoder.EMPTY_BODY_DIGEST
+    MAuthSignatureHelper.getHexEncodedDigestedString(Array.emptyByteArray) shouldBe StringToSignEncoder.EMPTY_BODY_DIGEST
+  }
+
+  it should "Base64 encode like commons-codec" in {
+    val random = new Random(42)
+    (0 to 600).foreach { length =>
+      val bytes = new Array[Byte](length)
+      random.nextBytes(bytes)
+      StringToSignEncoder.get().encodeBase64(bytes) shouldBe new String(Base64.encodeBase64(bytes), StandardCharsets.UTF_8)
+    }
+  }
+}
@@ -13,6 +13,8 @@ import com.mdsol.mauth.util.EpochTimeProvider
 
 import java.net.URI
 import java.util.UUID
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
 
 class MAuthSignerMiddlewareSuite extends CatsEffectSuite {
 
@@ -96,4 +98,38 @@ class MAuthSignerMiddlewareSuite extends CatsEffectSuite {
       )
       .assertEquals(Status.Ok)
   }
+
+  test("sign on the given executor with the same headers as the synchronous signer") {
+
+    val simpleNewUnsignedRequest =
+      UnsignedRequest
+        .fromStringBodyUtf8(
+          httpMethod = "POST",
+          uri = new URI(s"/v1/test"),
+          body = "",
+          headers = Map("Content-Type" -> "application/json")
+        )
+
+    val signedReq = signerV2.signRequest(simpleNewUnsignedRequest)
+
+    val client = Client.fromHttpApp(route(signedReq.mauthHeaders))
+
+    val executed = new AtomicInteger()
+    val executor: Executor = task => {
+      val _ = executed.incrementAndGet()
+      task.run()
+    }
+
+    val mAuthedClient = MAuthSigner.async[IO](signerV2, executor)(client)
+
+    mAuthedClient
+      .status(
+        Request[IO](
+          method = POST,
+          uri = Uri.unsafeFromString(s"/v1/test"),
+          headers = Headers(List("Content-Type" -> "application/json"))
+        )
+      )
+      .assertEquals(Status.Ok) *> IO(executed.get).assertEquals(1)
+  }
 }
@@ -1,33 +1,42 @@
 package com.mdsol.mauth.http4s.client
 
 import cats.syntax.all._
-import cats.effect.kernel.{Async, Resource}
-import com.mdsol.mauth.RequestSigner
-import com.mdsol.mauth.models.UnsignedRequest
+import cats.effect.kernel.{Async, Resource, Sync}
+import com.mdsol.mauth.{CryptoExecutor, RequestSigner}
+import com.mdsol.mauth.models.{SignedRequest, UnsignedRequest}
 import org.http4s.Request
 import org.http4s.client.Client
 
 import java.net.URI
+import java.util.concurrent.Executor
 
 object MAuthSigner {
   def apply[F[_]: Async](signer: RequestSigner)(client: Client[F]): Client[F] =
+    signWith(client)(unsignedRequest => signer.signRequest(unsignedRequest).pure[F])
+
+  /** Sign requests on a bounded crypto executor instead of the compute pool */
+  def async[F[_]: Async](signer: RequestSigner, executor: Executor = CryptoExecutor.getDefault)(client: Client[F]): Client[F] =
+    signWith(client)(unsignedRequest => Async[F].fromFuture(Sync[F].delay(signer.signRequestAsync(unsignedRequest, executor))))
+
+  private def signWith[F[_]: Async](client: Client[F])(sign: UnsignedRequest => F[SignedRequest]): Client[F] =
     Client { req =>
       for {
         req <- Resource.eval(req.as[Array[Byte]].flatMap { byteArray =>
-                 val signedRequest = signer.signRequest(
+                 sign(
                    UnsignedRequest(
                      req.method.name,
                      URI.create(req.uri.renderString),
                      byteArray,
                      req.headers.headers.view.map(h => h.name.toString -> h.value).toMap
                    )
-                 )
-                 Request(
-                   method = req.method,
-                   uri = req.uri,
-                   headers = req.headers.put(signedRequest.mauthHeaders.toList),
-                   body = req.body
-                 ).pure[F]
+                 ).map { signedRequest =>
+                   Request(
+                     method = req.method,
+                     uri = req.uri,
+                     headers = req.headers.put(signedRequest.mauthHeaders.toList),
+                     body = req.body
+                   )
+                 }
                })
         res <- client.run(req)
       } yield res
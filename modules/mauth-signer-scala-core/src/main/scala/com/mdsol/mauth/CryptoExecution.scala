@@ -0,0 +1,26 @@
+package com.mdsol.mauth
+
+import java.util.concurrent.Executor
+
+import scala.concurrent.{Future, Promise}
+import scala.util.Try
+import scala.util.control.NonFatal
+
+/** Runs the signing of the async signers on a crypto executor, see [[CryptoExecutor]] */
+object CryptoExecution {
+
+  /** Run a signing on an executor
+    *
+    * @param executor The executor the signing runs on
+    * @param sign     The signing
+    * @return The result of the signing, failed when it fails or the executor rejects it
+    */
+  def future[T](executor: Executor)(sign: => T): Future[T] = {
+    val promise = Promise[T]()
+    try executor.execute(() => promise.complete(Try(sign)))
+    catch {
+      case NonFatal(e) => promise.failure(e)
+    }
+    promise.future
+  }
+}
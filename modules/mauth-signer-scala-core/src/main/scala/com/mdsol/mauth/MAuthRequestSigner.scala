@@ -6,6 +6,8 @@ import com.mdsol.mauth.util.{CurrentEpochTimeProvider, EpochTimeProvider, MAuthK
 import java.net.URI
 import java.security.PrivateKey
 import java.util.{List, UUID}
+import java.util.concurrent.{Executor, ForkJoinPool}
+import scala.concurrent.Future
 import scala.jdk.CollectionConverters._
 import scala.util.{Failure, Success, Try}
 
@@ -36,12 +38,39 @@ trait RequestSigner {
   def signRequest(request: UnsignedRequest): Either[Throwable, SignedRequest]
 
   def signRequest(request: NewUnsignedRequest): NewSignedRequest
+
+  /** Sign a batch of requests
+    *
+    * @param requests The requests to sign
+    * @return The signed requests, in the order of the requests
+    */
+  def signRequests(requests: Seq[NewUnsignedRequest]): Seq[NewSignedRequest] = requests.map(signRequest)
+
+  /** Sign a request on a bounded crypto executor instead of the calling thread
+    *
+    * @param request  The request to sign
+    * @param executor The executor the request is signed on
+    * @return The signed request, failed when it cannot be signed or the executor rejects it
+    */
+  def signRequestAsync(request: NewUnsignedRequest, executor: Executor = CryptoExecutor.getDefault): Future[NewSignedRequest] =
+    CryptoExecution.future(executor)(signRequest(request))
 }
 
-class MAuthRequestSigner(appUUID: UUID, privateKey: PrivateKey, epochTimeProvider: EpochTimeProvider, signVersions: List[MAuthVersion])
-    extends DefaultSigner(appUUID, privateKey, epochTimeProvider, signVersions)
+/** @param signatureCacheSize the maximum number of identical requests per second whose headers are cached and reused
+  *                           instead of signed again, 0 to disable the cache
+  */
+class MAuthRequestSigner(
+  appUUID: UUID,
+  privateKey: PrivateKey,
+  epochTimeProvider: EpochTimeProvider,
+  signVersions: List[MAuthVersion],
+  signatureCacheSize: Int
+) extends DefaultSigner(appUUID, privateKey, epochTimeProvider, signVersions, signatureCacheSize)
     with RequestSigner {
 
+  def this(appUUID: UUID, privateKey: PrivateKey, epochTimeProvider: EpochTimeProvider, signVersions: List[MAuthVersion]) =
+    this(appUUID, privateKey, epochTimeProvider, signVersions, SignerConfiguration.DEFAULT_SIGNATURE_CACHE_SIZE)
+
   def this(appUUID: UUID, privateKey: PrivateKey, epochTimeProvider: EpochTimeProvider) =
     this(appUUID, privateKey, epochTimeProvider, SignerConfiguration.DEFAULT_SIGN_VERSION)
 
@@ -49,7 +78,14 @@ class MAuthRequestSigner(appUUID: UUID, privateKey: PrivateKey, epochTimeProvide
 
   def this(appUUID: UUID, privateKey: String) = this(appUUID, MAuthKeysHelper.getPrivateKeyFromString(privateKey))
 
-  def this(configuration: SignerConfiguration) = this(configuration.getAppUUID, configuration.getPrivateKey)
+  def this(configuration: SignerConfiguration) =
+    this(
+      configuration.getAppUUID,
+      MAuthKeysHelper.getPrivateKeyFromString(configuration.getPrivateKey),
+      new CurrentEpochTimeProvider,
+      configuration.getSignVersions,
+      configuration.getSignatureCacheSize
+    )
 
   def this(appUUID: UUID, privateKey: String, epochTimeProvider: EpochTimeProvider) =
     this(appUUID, MAuthKeysHelper.getPrivateKeyFromString(privateKey), epochTimeProvider)
@@ -84,6 +120,26 @@ class MAuthRequestSigner(appUUID: UUID, privateKey: PrivateKey, epochTimeProvide
       headers
     )
   }
+
+  /** Sign a batch of requests in parallel on the common ForkJoinPool, all with the same request time
+    *
+    * @param requests The requests to sign
+    * @return The signed requests, in the order of the requests
+    */
+  override def signRequests(requests: Seq[NewUnsignedRequest]): Seq[NewSignedRequest] =
+    signRequests(requests, ForkJoinPool.commonPool())
+
+  /** Sign a batch of requests in parallel, all with the same request time
+    *
+    * @param requests The requests to sign
+    * @param pool     The pool the RSA operations run on
+    * @return The signed requests, in the order of the requests
+    */
+  def signRequests(requests: Seq[NewUnsignedRequest], pool: ForkJoinPool): Seq[NewSignedRequest] = {
+    val signableRequests = requests.map(request => SignableRequest.fromUri(request.httpMethod, request.uri, request.body))
+    val headers = generateRequestHeaders(signableRequests.asJava, pool).asScala
+    requests.zip(headers).map { case (request, requestHeaders) => NewSignedRequest(request, requestHeaders.asScala.toMap) }
+  }
 }
 
 object MAuthRequestSigner {
@@ -7,10 +7,14 @@ import java.util.UUID
 import com.mdsol.mauth.models.{UnsignedRequest => NewUnsignedRequest}
 import com.mdsol.mauth.test.utils.TestFixtures._
 import com.mdsol.mauth.util.EpochTimeProvider
+import com.typesafe.config.ConfigFactory
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import org.scalatest.flatspec.AnyFlatSpec
 import org.scalatest.matchers.should.Matchers
 
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
 class MAuthRequestSignerSpec extends AnyFlatSpec with Matchers {
 
   Security.addProvider(new BouncyCastleProvider)
@@ -117,4 +121,47 @@ class MAuthRequestSignerSpec extends AnyFlatSpec with Matchers {
     authHeaders(MAuthRequest.X_MWS_AUTHENTICATION_HEADER_NAME) shouldBe EXPECTED_AUTH_NO_BODY_V1
   }
 
+  "MAuthRequestSigner.signRequests" should "sign a batch of requests in the order of the requests" in {
+    val requests = (1 to 50).map { i =>
+      NewUnsignedRequest.fromStringBodyUtf8(httpMethod = "POST", uri = new URI(s"/resource/$i?page=$i"), body = s"body $i", headers = Map.empty)
+    }
+    val signedRequests = signer.signRequests(requests :+ simpleNewUnsignedRequest)
+    signedRequests.map(_.req) shouldBe requests :+ simpleNewUnsignedRequest
+    signedRequests shouldBe (requests :+ simpleNewUnsignedRequest).map(signer.signRequest)
+    signedRequests.last.mauthHeaders(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME) shouldBe EXPECTED_AUTH_NO_BODY_V2
+  }
+
+  it should "sign an empty batch" in {
+    signer.signRequests(Seq.empty) shouldBe empty
+  }
+
+  "MAuthRequestSigner.signRequestAsync" should "sign a request on the crypto executor" in {
+    val signedRequest = Await.result(signer.signRequestAsync(simpleNewUnsignedRequest), 10.seconds)
+    signedRequest shouldBe signer.signRequest(simpleNewUnsignedRequest)
+  }
+
+  it should "fail when the crypto executor rejects the request" in {
+    val executor = new CryptoExecutor(1, 1)
+    executor.close()
+    val result = signer.signRequestAsync(simpleNewUnsignedRequest, executor)
+    intercept[java.util.concurrent.RejectedExecutionException](Await.result(result, 10.seconds))
+  }
+
+  "MAuthRequestSigner from a configuration" should "sign with the configured sign versions and reuse the cached headers" in {
+    val configuredSigner = new MAuthRequestSigner(
+      new SignerConfiguration(
+        ConfigFactory
+          .parseString(s"""app { uuid: "$APP_UUID_1", private_key: "${PRIVATE_KEY_1.replace("\n", "\\n")}" }
+                          |mauth { sign_versions: "v2", signature_cache_size: 10 }""".stripMargin)
+          .withFallback(ConfigFactory.defaultReference())
+      )
+    )
+    // signed until two requests are signed within the same second
+    def timeHeader(signedRequest: models.SignedRequest): String = signedRequest.mauthHeaders(MAuthRequest.MCC_TIME_HEADER_NAME)
+    val signedRequests =
+      Iterator.continually(configuredSigner.signRequest(unsignedRequest)).sliding(2).find(pair => timeHeader(pair.head) == timeHeader(pair(1))).get
+    signedRequests(1).mauthHeaders shouldBe signedRequests.head.mauthHeaders
+    signedRequests.head.mauthHeaders.keySet shouldBe Set(MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME, MAuthRequest.MCC_TIME_HEADER_NAME)
+    configuredSigner.getSignatureCacheHitCount should be >= 1L
+  }
 }
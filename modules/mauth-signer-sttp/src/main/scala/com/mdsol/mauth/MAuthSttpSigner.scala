@@ -3,15 +3,21 @@ package com.mdsol.mauth
 import java.nio.charset.StandardCharsets
 import java.security.PrivateKey
 import java.util.UUID
+import java.util.concurrent.Executor
 
 import com.mdsol.mauth.util.EpochTimeProvider
 
+import scala.concurrent.Future
 import scala.jdk.CollectionConverters._
 import sttp.client3.{BasicRequestBody, ByteArrayBody, ByteBufferBody, FileBody, InputStreamBody, MultipartBody, NoBody, Request, StreamBody, StringBody}
 import sttp.model.Header
 
 trait MAuthSttpSigner {
   def signSttpRequest[T](request: Request[T, Any]): Request[T, Any]
+
+  /** Sign an sttp request on a bounded crypto executor instead of the calling thread */
+  def signSttpRequestAsync[T](request: Request[T, Any], executor: Executor = CryptoExecutor.getDefault): Future[Request[T, Any]] =
+    CryptoExecution.future(executor)(signSttpRequest(request))
 }
 
 /** Sign an sttp request by adding MAuth headers to the request */
@@ -3,6 +3,8 @@ package com.mdsol.mauth
 import java.net.URI
 import java.security.Security
 import java.util.UUID
+import java.util.concurrent.{Executor, Executors}
+import java.util.concurrent.atomic.AtomicInteger
 
 import org.scalatest.wordspec.AnyWordSpec
 import sttp.model.Uri
@@ -14,6 +16,9 @@ import com.mdsol.mauth.util.EpochTimeProvider
 import com.mdsol.mauth.util.MAuthKeysHelper.getPrivateKeyFromString
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
 class MAuthSttpSignerSpec extends AnyWordSpec with Matchers {
 
   Security.addProvider(new BouncyCastleProvider)
@@ -96,6 +101,22 @@ class MAuthSttpSignerSpec extends AnyWordSpec with Matchers {
 
   }
 
+  "signSttpRequestAsync" should {
+    "sign the request on the given executor, as signSttpRequest does" in {
+      val pool = Executors.newSingleThreadExecutor()
+      val executed = new AtomicInteger()
+      val executor: Executor = task => {
+        val _ = executed.incrementAndGet()
+        pool.execute(task)
+      }
+      try {
+        val signedReq = Await.result(v1v2Signer.signSttpRequestAsync(emptyPathWithSimpleBodyReq, executor), 10.seconds)
+        signedReq.headers shouldBe v1v2Signer.signSttpRequest(emptyPathWithSimpleBodyReq).headers
+        executed.get shouldBe 1
+      } finally pool.shutdown()
+    }
+  }
+
   lazy val CONST_EPOCH_TIME_PROVIDER: EpochTimeProvider = new EpochTimeProvider() { override def inSeconds(): Long = EXPECTED_TIME_HEADER_1.toLong }
 
   lazy val v1v2Signer = new MAuthSttpSignerImpl(
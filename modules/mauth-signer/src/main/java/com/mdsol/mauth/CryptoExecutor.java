@@ -0,0 +1,128 @@
+package com.mdsol.mauth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor for the RSA operations of request signing, so they do not run on event loop or I/O threads
+ * and can be sized separately from them.
+ *
+ * It runs a fixed number of daemon threads with a bounded queue. Work submitted while the queue is full is rejected
+ * with a {@link RejectedExecutionException}, which the asynchronous signing methods report as a failed result.
+ */
+public class CryptoExecutor implements Executor, AutoCloseable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+  private final ThreadPoolExecutor executor;
+  private final int queueCapacity;
+  private final LongAdder rejectedTasks = new LongAdder();
+
+  /**
+   * Create an executor with a thread per available processor and the default queue capacity
+   */
+  public CryptoExecutor() {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param threads the number of threads signing requests
+   * @param queueCapacity the maximum number of requests waiting to be signed
+   */
+  public CryptoExecutor(int threads, int queueCapacity) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Crypto executor threads must be at least 1");
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Crypto executor queue capacity must be at least 1");
+    }
+    this.queueCapacity = queueCapacity;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), new CryptoThreadFactory(), (task, pool) -> {
+          rejectedTasks.increment();
+          throw new RejectedExecutionException(pool.isShutdown()
+              ? "MAuth crypto executor is shut down"
+              : "MAuth crypto executor queue is full (" + queueCapacity + " tasks)");
+        });
+  }
+
+  /**
+   * @return the executor shared by the asynchronous signing methods when no executor is given
+   */
+  public static CryptoExecutor getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    executor.execute(command);
+  }
+
+  /**
+   * @return the number of requests waiting to be signed
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * @return the approximate number of threads signing a request
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  public int getThreads() {
+    return executor.getCorePoolSize();
+  }
+
+  /**
+   * @return the approximate number of completed signing tasks
+   */
+  public long getCompletedTaskCount() {
+    return executor.getCompletedTaskCount();
+  }
+
+  /**
+   * @return the number of signing tasks rejected because the queue was full or the executor shut down
+   */
+  public long getRejectedTaskCount() {
+    return rejectedTasks.sum();
+  }
+
+  /**
+   * Stop accepting work, queued requests are still signed
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  private static final class DefaultHolder {
+    private static final CryptoExecutor INSTANCE = new CryptoExecutor();
+  }
+
+  private static final class CryptoThreadFactory implements ThreadFactory {
+    private final String prefix = "mauth-crypto-" + POOL_NUMBER.incrementAndGet() + "-";
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
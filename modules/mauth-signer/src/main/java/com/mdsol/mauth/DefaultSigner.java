@@ -3,33 +3,50 @@ package com.mdsol.mauth;
 import com.mdsol.mauth.exceptions.MAuthSigningException;
 import com.mdsol.mauth.util.CurrentEpochTimeProvider;
 import com.mdsol.mauth.util.EpochTimeProvider;
+import com.mdsol.mauth.util.MAuthCryptoEngines;
+import com.mdsol.mauth.util.MAuthDigestHelper;
 import com.mdsol.mauth.util.MAuthHeadersHelper;
 import com.mdsol.mauth.util.MAuthSignatureHelper;
+import com.mdsol.mauth.util.StringToSignEncoder;
 import org.bouncycastle.crypto.CryptoException;
+import org.bouncycastle.crypto.encodings.PKCS1Encoding;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.Security;
+import java.security.Signature;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static com.mdsol.mauth.util.MAuthKeysHelper.getPrivateKeyFromString;
+import static com.mdsol.mauth.util.MAuthKeysHelper.getPrivateKeyParameters;
 
 public class DefaultSigner implements Signer {
   private static final Logger logger = LoggerFactory.getLogger(DefaultSigner.class);
 
   private final UUID appUUID;
+  private final byte[] appUUIDBytes;
   private final PrivateKey privateKey;
+  // parsed on the first V1 signing, which works on BouncyCastle key parameters rather than the JCA key. Keys whose
+  // encoding cannot be read, e.g. hardware keys, still sign V2 requests
+  private volatile AsymmetricKeyParameter privateKeyParameters;
   private final EpochTimeProvider epochTimeProvider;
   private List<MAuthVersion> signVersions;
+  // null when signature caching is disabled
+  private final SignatureCache signatureCache;
 
   static {
     Security.addProvider(new BouncyCastleProvider());
@@ -37,7 +54,7 @@ public class DefaultSigner implements Signer {
 
   public DefaultSigner(SignerConfiguration configuration) {
     this(configuration.getAppUUID(), getPrivateKeyFromString(configuration.getPrivateKey()),
-        new CurrentEpochTimeProvider(), configuration.getSignVersions());
+        new CurrentEpochTimeProvider(), configuration.getSignVersions(), configuration.getSignatureCacheSize());
   }
 
   public DefaultSigner(UUID appUUID, String privateKey) {
@@ -61,10 +78,35 @@ public class DefaultSigner implements Signer {
   }
 
   public DefaultSigner(UUID appUUID, PrivateKey privateKey, EpochTimeProvider epochTimeProvider, List<MAuthVersion> signVersions) {
+    this(appUUID, privateKey, epochTimeProvider, signVersions, SignerConfiguration.DEFAULT_SIGNATURE_CACHE_SIZE);
+  }
+
+  /**
+   * @param signatureCacheSize the maximum number of identical requests per second whose headers are cached
+   *                           and reused instead of signed again, 0 to disable the cache
+   */
+  public DefaultSigner(UUID appUUID, PrivateKey privateKey, EpochTimeProvider epochTimeProvider, List<MAuthVersion> signVersions,
+      int signatureCacheSize) {
     this.appUUID = appUUID;
+    this.appUUIDBytes = appUUID.toString().getBytes(StandardCharsets.US_ASCII);
     this.privateKey = privateKey;
     this.epochTimeProvider = epochTimeProvider;
     this.signVersions = signVersions == null || signVersions.isEmpty() ? SignerConfiguration.DEFAULT_SIGN_VERSION : signVersions;
+    this.signatureCache = signatureCacheSize > 0 ? new SignatureCache(signatureCacheSize) : null;
+  }
+
+  /**
+   * @return the number of requests whose headers were served from the signature cache
+   */
+  public long getSignatureCacheHitCount() {
+    return signatureCache == null ? 0 : signatureCache.hitCount();
+  }
+
+  /**
+   * @return the number of requests signed while the signature cache is enabled
+   */
+  public long getSignatureCacheMissCount() {
+    return signatureCache == null ? 0 : signatureCache.missCount();
   }
 
   @Override
@@ -83,17 +125,66 @@ public class DefaultSigner implements Signer {
   @Override
   public Map<String, String> generateRequestHeaders(
       String httpVerb, String requestPath, byte[] requestPayload, String queryParameters) throws MAuthSigningException {
+    // mAuth uses an epoch time measured in seconds
+    long currentTime = epochTimeProvider.inSeconds();
 
-    if (null == requestPayload) {
-      requestPayload = "".getBytes(StandardCharsets.UTF_8);
-    }
-    if (null == queryParameters) {
-      queryParameters = "";
-    }
+    return generateRequestHeaders(httpVerb, requestPath, requestPayload, queryParameters, currentTime);
+  }
+
+  /**
+   * Generates the mAuth headers for a batch of requests in parallel on the common ForkJoinPool,
+   * see {@link #generateRequestHeaders(List, ForkJoinPool)}
+   */
+  @Override
+  public List<Map<String, String>> generateRequestHeaders(List<SignableRequest> requests) throws MAuthSigningException {
+    return generateRequestHeaders(requests, ForkJoinPool.commonPool());
+  }
 
+  /**
+   * Generates the mAuth headers for a batch of requests, signing them in parallel on the given pool.
+   * All requests are signed with the same request time.
+   *
+   * @param requests The requests to sign
+   * @param pool The pool the RSA operations run on
+   * @return MAuth headers of each request, in the order of the requests
+   * @throws MAuthSigningException when a request cannot be signed
+   */
+  public List<Map<String, String>> generateRequestHeaders(List<SignableRequest> requests, ForkJoinPool pool) throws MAuthSigningException {
     // mAuth uses an epoch time measured in seconds
     long currentTime = epochTimeProvider.inSeconds();
 
+    List<ForkJoinTask<Map<String, String>>> tasks = new ArrayList<>(requests.size());
+    for (SignableRequest request : requests) {
+      tasks.add(pool.submit(() -> generateRequestHeaders(request.getHttpVerb(), request.getRequestPath(),
+          request.getRequestPayload(), request.getQueryParameters(), currentTime)));
+    }
+    List<Map<String, String>> headers = new ArrayList<>(tasks.size());
+    try {
+      for (ForkJoinTask<Map<String, String>> task : tasks) {
+        headers.add(task.join());
+      }
+    } catch (RuntimeException e) {
+      tasks.forEach(task -> task.cancel(false));
+      throw e instanceof MAuthSigningException ? e : new MAuthSigningException(e);
+    }
+    return headers;
+  }
+
+  private Map<String, String> generateRequestHeaders(
+      String httpVerb, String requestPath, byte[] requestPayload, String queryParameters, long currentTime) throws MAuthSigningException {
+    byte[] payload = null == requestPayload ? new byte[0] : requestPayload;
+    String query = null == queryParameters ? "" : queryParameters;
+
+    if (signatureCache == null) {
+      return generateRequestHeaders(httpVerb, requestPath, payload, null, query, currentTime);
+    }
+    String bodyDigest = MAuthSignatureHelper.getHexEncodedDigestedString(payload);
+    return signatureCache.get(currentTime, httpVerb, requestPath, query, bodyDigest,
+        () -> generateRequestHeaders(httpVerb, requestPath, payload, bodyDigest, query, currentTime));
+  }
+
+  private Map<String, String> generateRequestHeaders(String httpVerb, String requestPath, byte[] requestPayload, String bodyDigest,
+      String queryParameters, long currentTime) throws MAuthSigningException {
     HashMap<String, String> headers = new HashMap<>();
     if (signVersions.contains(MAuthVersion.MWS)) {
       // Add v1 headers if v1 is in sign version list
@@ -105,7 +196,7 @@ public class DefaultSigner implements Signer {
 
     if (signVersions.contains(MAuthVersion.MWSV2)) {
       // Add v2 headers if v2 is in sign version list
-      Map<String, String> headersV2 = generateRequestHeadersV2(httpVerb, requestPath, queryParameters, requestPayload, currentTime);
+      Map<String, String> headersV2 = generateRequestHeadersV2(httpVerb, requestPath, queryParameters, requestPayload, bodyDigest, currentTime);
       if (!headersV2.isEmpty()) {
         headers.putAll(headersV2);
       }
@@ -150,11 +241,15 @@ public class DefaultSigner implements Signer {
 
     String encryptedSignature;
     try {
-      byte[] unencryptedSignature = MAuthSignatureHelper.generateUnencryptedSignature(
-          appUUID, httpVerb, requestPath, requestPayload, String.valueOf(currentTime));
-
-      encryptedSignature = MAuthSignatureHelper.encryptSignature(privateKey, unencryptedSignature);
-    } catch (IOException | CryptoException e) {
+      MessageDigest md = MAuthCryptoEngines.sha512Digest();
+      StringToSignEncoder encoder = StringToSignEncoder.get()
+          .append(httpVerb).append('\n').append(requestPath).append('\n');
+      encoder.update(md);
+      md.update(requestPayload);
+      encoder.reset().append('\n').append(appUUIDBytes).append('\n').append(currentTime).update(md);
+
+      encryptedSignature = encryptSignatureV1(encoder.reset().appendDigest(md));
+    } catch (GeneralSecurityException | CryptoException e) {
       logger.error("Error generating request headers", e);
       throw new MAuthSigningException(e);
     }
@@ -166,12 +261,16 @@ public class DefaultSigner implements Signer {
       String httpVerb, String requestPath, InputStream requestPayload, long currentTime) throws MAuthSigningException {
 
     String encryptedSignature;
-    try {
-      SequenceInputStream stream = MAuthSignatureHelper.createSequenceInputStreamV1(
-          appUUID, httpVerb, requestPath, requestPayload, String.valueOf(currentTime));
-
-      encryptedSignature = MAuthSignatureHelper.encryptSignature(privateKey, stream);
-    } catch (IOException | CryptoException e) {
+    try (InputStream body = requestPayload) {
+      MessageDigest md = MAuthCryptoEngines.sha512Digest();
+      StringToSignEncoder encoder = StringToSignEncoder.get()
+          .appendLatin1(httpVerb).append('\n').appendLatin1(requestPath).append('\n');
+      encoder.update(md);
+      MAuthDigestHelper.update(md, body);
+      encoder.reset().append('\n').append(appUUIDBytes).append('\n').append(currentTime).update(md);
+
+      encryptedSignature = encryptSignatureV1(encoder.reset().appendDigest(md));
+    } catch (IOException | GeneralSecurityException | CryptoException e) {
       logger.error("Error generating request headers", e);
       throw new MAuthSigningException(e);
     }
@@ -179,6 +278,23 @@ public class DefaultSigner implements Signer {
     return generateRequestHeadersV1(encryptedSignature, currentTime);
   }
 
+  // the encoder holds the hex encoded digest of the string to sign
+  private String encryptSignatureV1(StringToSignEncoder encoder) throws CryptoException {
+    PKCS1Encoding encryptEngine = MAuthCryptoEngines.pkcs1RsaEncoding();
+    encryptEngine.init(true, privateKeyParameters());
+    return encoder.encodeBase64(encoder.processBlock(encryptEngine));
+  }
+
+  // parsing the key again in a race is harmless
+  private AsymmetricKeyParameter privateKeyParameters() {
+    AsymmetricKeyParameter parameters = privateKeyParameters;
+    if (parameters == null) {
+      parameters = getPrivateKeyParameters(privateKey);
+      privateKeyParameters = parameters;
+    }
+    return parameters;
+  }
+
   private Map<String, String> generateRequestHeadersV1(String encryptedSignature, long currentTime) {
     HashMap<String, String> headers = new HashMap<>();
     headers.put(
@@ -189,29 +305,56 @@ public class DefaultSigner implements Signer {
     return headers;
   }
 
+  // bodyDigest is the hex encoded digest of the payload when it is already known, otherwise null
   private Map<String, String> generateRequestHeadersV2(String httpVerb, String requestPath, String queryParameters,
-      byte[] requestPayload, long currentTime) throws MAuthSigningException {
-     String stringToSign = MAuthSignatureHelper.generateStringToSignV2(
-        appUUID, httpVerb, requestPath, queryParameters, requestPayload, String.valueOf(currentTime));
-    return generateRequestHeadersV2(stringToSign, currentTime);
+      byte[] requestPayload, String bodyDigest, long currentTime) throws MAuthSigningException {
+    String encryptedSignature;
+    try {
+      StringToSignEncoder encoder = StringToSignEncoder.get()
+          .append(httpVerb.toUpperCase()).append('\n')
+          .append(MAuthSignatureHelper.normalizePath(requestPath)).append('\n');
+      if (bodyDigest != null) {
+        encoder.append(bodyDigest);
+      } else {
+        encoder.appendBodyDigest(requestPayload);
+      }
+      encoder.append('\n');
+      encryptedSignature = encryptSignatureV2(encoder, queryParameters, currentTime);
+    } catch (Exception e) {
+      logger.error("Error generating request headers for V2", e);
+      throw new MAuthSigningException(e);
+    }
+    return generateRequestHeadersV2(encryptedSignature, currentTime);
   }
 
   private Map<String, String> generateRequestHeadersV2(String httpVerb, String requestPath, String queryParameters,
       InputStream requestPayload, long currentTime) throws MAuthSigningException {
-    String stringToSign = MAuthSignatureHelper.generateStringToSignV2(
-        appUUID, httpVerb, requestPath, queryParameters, requestPayload, String.valueOf(currentTime));
-    return generateRequestHeadersV2(stringToSign, currentTime);
-  }
-
-  private Map<String, String> generateRequestHeadersV2(String stringToSign, long currentTime) throws MAuthSigningException {
     String encryptedSignature;
-    try {
-      encryptedSignature = MAuthSignatureHelper.encryptSignatureRSA(privateKey, stringToSign);
+    try (InputStream body = requestPayload) {
+      StringToSignEncoder encoder = StringToSignEncoder.get()
+          .append(httpVerb.toUpperCase()).append('\n')
+          .append(MAuthSignatureHelper.normalizePath(requestPath)).append('\n')
+          .appendBodyDigest(body).append('\n');
+      encryptedSignature = encryptSignatureV2(encoder, queryParameters, currentTime);
     } catch (Exception e) {
       logger.error("Error generating request headers for V2", e);
       throw new MAuthSigningException(e);
     }
+    return generateRequestHeadersV2(encryptedSignature, currentTime);
+  }
+
+  // Same string to sign as MAuthSignatureHelper.generateStringToSignV2, encoded straight into the signature engine
+  private String encryptSignatureV2(StringToSignEncoder encoder, String queryParameters, long currentTime) throws GeneralSecurityException {
+    encoder.append(appUUIDBytes).append('\n')
+        .append(currentTime).append('\n')
+        .append(MAuthSignatureHelper.generateEncryptedQueryParams(queryParameters));
+    Signature signature = MAuthCryptoEngines.sha512RsaSignature();
+    signature.initSign(privateKey);
+    encoder.update(signature);
+    return encoder.encodeBase64(signature.sign());
+  }
 
+  private Map<String, String> generateRequestHeadersV2(String encryptedSignature, long currentTime) {
     HashMap<String, String> headers = new HashMap<>();
     headers.put(
         MAuthRequest.MCC_AUTHENTICATION_HEADER_NAME,
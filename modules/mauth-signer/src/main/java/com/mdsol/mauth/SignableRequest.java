@@ -0,0 +1,55 @@
+package com.mdsol.mauth;
+
+import java.net.URI;
+
+/**
+ * The parts of an outgoing HTTP request that are signed, used to sign requests in batches with
+ * {@link Signer#generateRequestHeaders(java.util.List)}.
+ */
+public class SignableRequest {
+
+  private final String httpVerb;
+  private final String requestPath;
+  private final byte[] requestPayload;
+  private final String queryParameters;
+
+  /**
+   * @param httpVerb The HTTP verb of the request, e.g. GET, POST, etc.
+   * @param requestPath The path of the request, not including protocol, host or query parameters.
+   * @param requestPayload The payload of the request, null for an empty payload
+   * @param queryParameters The query parameters (URL-encoded), null for none
+   */
+  public SignableRequest(String httpVerb, String requestPath, byte[] requestPayload, String queryParameters) {
+    this.httpVerb = httpVerb;
+    this.requestPath = requestPath;
+    this.requestPayload = requestPayload;
+    this.queryParameters = queryParameters;
+  }
+
+  /**
+   * Create a request with the raw path and query string of the URI, see {@link SignerUtils#signWithUri}
+   * @param httpVerb The HTTP verb of the request, e.g. GET, POST, etc.
+   * @param uri The URI of the request
+   * @param requestPayload The payload of the request, null for an empty payload
+   * @return the request to sign
+   */
+  public static SignableRequest fromUri(String httpVerb, URI uri, byte[] requestPayload) {
+    return new SignableRequest(httpVerb, uri.getRawPath(), requestPayload, uri.getRawQuery());
+  }
+
+  public String getHttpVerb() {
+    return httpVerb;
+  }
+
+  public String getRequestPath() {
+    return requestPath;
+  }
+
+  public byte[] getRequestPayload() {
+    return requestPayload;
+  }
+
+  public String getQueryParameters() {
+    return queryParameters;
+  }
+}
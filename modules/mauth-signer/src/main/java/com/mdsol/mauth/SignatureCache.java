@@ -0,0 +1,143 @@
+package com.mdsol.mauth;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Headers signed during the current epoch second, keyed by the signed request.
+ *
+ * The MAuth time header has a resolution of one second, so identical requests signed within the same second get
+ * identical headers. Entries are dropped as soon as a request is signed for a later second, and at most
+ * {@code maximumSize} requests are cached per second; requests past that are signed without caching.
+ */
+final class SignatureCache {
+
+  private final int maximumSize;
+  private final AtomicReference<Bucket> bucket = new AtomicReference<>(new Bucket(Long.MIN_VALUE));
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  SignatureCache(int maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * @param epochSecond the time of the request, in seconds
+   * @param httpVerb the HTTP verb as given to the signer
+   * @param requestPath the path as given to the signer
+   * @param queryParameters the query string as given to the signer
+   * @param bodyDigest the hex encoded SHA-512 digest of the body
+   * @param signer signs the request when it is not cached
+   * @return a copy of the cached or newly signed headers
+   */
+  Map<String, String> get(long epochSecond, String httpVerb, String requestPath, String queryParameters, String bodyDigest,
+      Supplier<Map<String, String>> signer) {
+    Bucket current = currentBucket(epochSecond);
+    if (current == null) {
+      misses.increment();
+      return signer.get();
+    }
+
+    Key key = new Key(httpVerb, requestPath, queryParameters, bodyDigest);
+    CompletableFuture<Map<String, String>> headers = current.entries.get(key);
+    if (headers == null) {
+      if (current.entries.size() >= maximumSize) {
+        misses.increment();
+        return signer.get();
+      }
+      // concurrent misses for the same request wait for a single signature, signed outside of the map
+      CompletableFuture<Map<String, String>> signing = new CompletableFuture<>();
+      headers = current.entries.putIfAbsent(key, signing);
+      if (headers == null) {
+        misses.increment();
+        try {
+          Map<String, String> signed = signer.get();
+          signing.complete(signed);
+          return new HashMap<>(signed);
+        } catch (RuntimeException | Error ex) {
+          current.entries.remove(key, signing);
+          signing.completeExceptionally(ex);
+          throw ex;
+        }
+      }
+    }
+    Map<String, String> cached;
+    try {
+      cached = headers.join();
+    } catch (CompletionException ex) {
+      // the signature waited for failed, the request is signed again
+      misses.increment();
+      return signer.get();
+    }
+    hits.increment();
+    return new HashMap<>(cached);
+  }
+
+  long hitCount() {
+    return hits.sum();
+  }
+
+  long missCount() {
+    return misses.sum();
+  }
+
+  // The bucket of the given second, or null when the time went backwards and a later second is cached
+  private Bucket currentBucket(long epochSecond) {
+    Bucket current = bucket.get();
+    while (current.epochSecond < epochSecond) {
+      Bucket next = new Bucket(epochSecond);
+      current = bucket.compareAndSet(current, next) ? next : bucket.get();
+    }
+    return current.epochSecond == epochSecond ? current : null;
+  }
+
+  private static final class Bucket {
+    private final long epochSecond;
+    private final ConcurrentHashMap<Key, CompletableFuture<Map<String, String>>> entries = new ConcurrentHashMap<>();
+
+    private Bucket(long epochSecond) {
+      this.epochSecond = epochSecond;
+    }
+  }
+
+  private static final class Key {
+    private final String httpVerb;
+    private final String requestPath;
+    private final String queryParameters;
+    private final String bodyDigest;
+    private final int hashCode;
+
+    private Key(String httpVerb, String requestPath, String queryParameters, String bodyDigest) {
+      this.httpVerb = httpVerb;
+      this.requestPath = requestPath;
+      this.queryParameters = queryParameters;
+      this.bodyDigest = bodyDigest;
+      this.hashCode = Objects.hash(httpVerb, requestPath, queryParameters, bodyDigest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hashCode == other.hashCode && Objects.equals(httpVerb, other.httpVerb) && Objects.equals(requestPath, other.requestPath)
+          && Objects.equals(queryParameters, other.queryParameters) && Objects.equals(bodyDigest, other.bodyDigest);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -3,7 +3,12 @@ package com.mdsol.mauth;
 import com.mdsol.mauth.exceptions.MAuthSigningException;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public interface Signer {
 
@@ -57,4 +62,59 @@ public interface Signer {
    */
   Map<String, String> generateRequestHeaders(String httpVerb,
       String requestPath, InputStream requestPayload, String queryParameters) throws MAuthSigningException;
+
+  /**
+   * Generates the mAuth headers for a batch of requests, see {@link #generateRequestHeaders(String, String, byte[], String)}
+   *
+   * NOTE: mAuth headers are time sensitive. The headers must be verified by the receiving service
+   * within 5 minutes of being generated otherwise the request will fail.
+   *
+   * @param requests The requests to sign
+   * @return MAuth headers of each request, in the order of the requests
+   * @throws MAuthSigningException when a request cannot be signed
+   */
+  default List<Map<String, String>> generateRequestHeaders(List<SignableRequest> requests) throws MAuthSigningException {
+    List<Map<String, String>> headers = new ArrayList<>(requests.size());
+    for (SignableRequest request : requests) {
+      headers.add(generateRequestHeaders(request.getHttpVerb(), request.getRequestPath(), request.getRequestPayload(),
+          request.getQueryParameters()));
+    }
+    return headers;
+  }
+
+  /**
+   * Generates the mAuth headers on the default {@link CryptoExecutor}, see
+   * {@link #generateRequestHeaders(String, String, byte[], String)}
+   *
+   * @param httpVerb The HTTP verb of the request, e.g. GET, POST, etc.
+   * @param requestPath The path of the request, not including protocol, host or query parameters.
+   * @param requestPayload The payload of the request
+   * @param queryParameters The query parameters (URL-encoded)
+   * @return MAuth headers, completed exceptionally when the request cannot be signed or the executor is full
+   */
+  default CompletableFuture<Map<String, String>> generateRequestHeadersAsync(String httpVerb,
+      String requestPath, byte[] requestPayload, String queryParameters) {
+    return generateRequestHeadersAsync(httpVerb, requestPath, requestPayload, queryParameters, CryptoExecutor.getDefault());
+  }
+
+  /**
+   * Generates the mAuth headers on the given executor, see {@link #generateRequestHeaders(String, String, byte[], String)}
+   *
+   * @param httpVerb The HTTP verb of the request, e.g. GET, POST, etc.
+   * @param requestPath The path of the request, not including protocol, host or query parameters.
+   * @param requestPayload The payload of the request
+   * @param queryParameters The query parameters (URL-encoded)
+   * @param executor The executor the request is signed on
+   * @return MAuth headers, completed exceptionally when the request cannot be signed or the executor rejects it
+   */
+  default CompletableFuture<Map<String, String>> generateRequestHeadersAsync(String httpVerb,
+      String requestPath, byte[] requestPayload, String queryParameters, Executor executor) {
+    try {
+      return CompletableFuture.supplyAsync(() -> generateRequestHeaders(httpVerb, requestPath, requestPayload, queryParameters), executor);
+    } catch (RejectedExecutionException e) {
+      CompletableFuture<Map<String, String>> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(e);
+      return rejected;
+    }
+  }
 }
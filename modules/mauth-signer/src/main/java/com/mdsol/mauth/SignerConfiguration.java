@@ -17,18 +17,24 @@ public class SignerConfiguration implements MAuthConfiguration {
   public static final String APP_UUID_PATH = APP_SECTION_HEADER + ".uuid";
   public static final String APP_PRIVATE_KEY_PATH = APP_SECTION_HEADER + ".private_key";
   public static final String MAUTH_SIGN_VERSIONS = MAUTH_SECTION_HEADER + ".sign_versions";
+  public static final String MAUTH_SIGNATURE_CACHE_SIZE = MAUTH_SECTION_HEADER + ".signature_cache_size";
 
   public static final List<MAuthVersion> ALL_SIGN_VERSIONS = Arrays.asList(MAuthVersion.values());
   public static final List<MAuthVersion> DEFAULT_SIGN_VERSION = Arrays.asList(MAuthVersion.MWS);
+  // signature caching is disabled by default
+  public static final int DEFAULT_SIGNATURE_CACHE_SIZE = 0;
 
   private final UUID appUUID;
   private final transient String privateKey;
   private List<MAuthVersion> signVersions;
+  private int signatureCacheSize = DEFAULT_SIGNATURE_CACHE_SIZE;
 
   public SignerConfiguration(Config config) {
     this( UUID.fromString(config.getString(APP_UUID_PATH)),
         config.getString(APP_PRIVATE_KEY_PATH),
         config.hasPath(MAUTH_SIGN_VERSIONS) ? config.getString(MAUTH_SIGN_VERSIONS) : "");
+    this.signatureCacheSize = config.hasPath(MAUTH_SIGNATURE_CACHE_SIZE)
+        ? config.getInt(MAUTH_SIGNATURE_CACHE_SIZE) : DEFAULT_SIGNATURE_CACHE_SIZE;
   }
 
   public SignerConfiguration(UUID appUUID, String privateKey) {
@@ -51,6 +57,15 @@ public class SignerConfiguration implements MAuthConfiguration {
     this.signVersions = signVersions;
   }
 
+  /**
+   * @param signatureCacheSize the maximum number of identical requests per second whose headers are cached
+   *                           and reused instead of signed again, 0 to disable the cache
+   */
+  public SignerConfiguration(UUID appUUID, String privateKey, List<MAuthVersion> signVersions, int signatureCacheSize) {
+    this(appUUID, privateKey, signVersions);
+    this.signatureCacheSize = signatureCacheSize;
+  }
+
   public UUID getAppUUID() { return appUUID; }
 
   public String getPrivateKey() {
@@ -61,6 +76,10 @@ public class SignerConfiguration implements MAuthConfiguration {
     return signVersions;
   }
 
+  public int getSignatureCacheSize() {
+    return signatureCacheSize;
+  }
+
   static public List<MAuthVersion> getSignVersions(String signVersionsStr) {
     List<MAuthVersion> signVersions = new ArrayList();
     List<String> unrecognizedVersions = new ArrayList();
@@ -0,0 +1,55 @@
+package com.mdsol.mauth
+
+import java.util.concurrent.{CountDownLatch, RejectedExecutionException, TimeUnit}
+import java.util.concurrent.atomic.AtomicReference
+
+import org.scalatest.flatspec.AnyFlatSpec
+import org.scalatest.matchers.should.Matchers
+
+class CryptoExecutorSpec extends AnyFlatSpec with Matchers {
+
+  "CryptoExecutor" should "reject tasks once the queue is full and report its metrics" in {
+    val executor = new CryptoExecutor(1, 2)
+    val started = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+    try {
+      executor.execute { () =>
+        started.countDown()
+        release.await()
+      }
+      started.await(10, TimeUnit.SECONDS) shouldBe true
+      executor.execute(() => ())
+      executor.execute(() => ())
+
+      executor.getThreads shouldBe 1
+      executor.getActiveCount shouldBe 1
+      executor.getQueueDepth shouldBe 2
+      executor.getQueueCapacity shouldBe 2
+      intercept[RejectedExecutionException](executor.execute(() => ()))
+      executor.getRejectedTaskCount shouldBe 1
+    } finally {
+      release.countDown()
+      executor.close()
+    }
+  }
+
+  it should "run signing work on daemon threads" in {
+    val executor = new CryptoExecutor(1, 1)
+    try {
+      val done = new CountDownLatch(1)
+      val thread = new AtomicReference[Thread]()
+      executor.execute { () =>
+        thread.set(Thread.currentThread())
+        done.countDown()
+      }
+      done.await(10, TimeUnit.SECONDS) shouldBe true
+      thread.get.isDaemon shouldBe true
+      thread.get.getName should startWith("mauth-crypto-")
+    } finally executor.close()
+  }
+
+  it should "not accept invalid sizes" in {
+    intercept[IllegalArgumentException](new CryptoExecutor(0, 1))
+    intercept[IllegalArgumentException](new CryptoExecutor(1, 0))
+  }
+}
@@ -1,12 +1,16 @@
 package com.mdsol.mauth
 
+import java.math.BigInteger
 import java.security.Security
+import java.security.interfaces.RSAPrivateCrtKey
 import java.util.UUID
 import java.util.NoSuchElementException
 
-import com.mdsol.mauth.exceptions.MAuthKeyException
+import com.mdsol.mauth.exceptions.{MAuthKeyException, MAuthSigningException}
 import com.mdsol.mauth.test.utils.TestFixtures
 import com.mdsol.mauth.util.EpochTimeProvider
+import com.mdsol.mauth.util.MAuthKeysHelper.getPrivateKeyFromString
+import com.typesafe.config.ConfigFactory
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import org.scalamock.scalatest.MockFactory
 import org.scalatest.flatspec.AnyFlatSpec
@@ -21,6 +25,7 @@ class DefaultSignerSpec extends AnyFlatSpec with Matchers with MockFactory {
   private val TEST_REQUEST_PARAMS: String = "key2=data2&key1=data1"
   private val AUTHENTICATION_HEADER_PATTERN_V2: String = s"MWSV2 $testUUID:[^;]*;"
 
+  private lazy val privateKey1 = getPrivateKeyFromString(TestFixtures.PRIVATE_KEY_1)
   private val mockEpochTimeProvider = mock[EpochTimeProvider]
   private val mAuthRequestSigner = new DefaultSigner(testUUID, TestFixtures.PRIVATE_KEY_1, mockEpochTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
   private val mAuthRequestSignerV2 = new DefaultSigner(testUUID, TestFixtures.PRIVATE_KEY_1, mockEpochTimeProvider, java.util.Arrays.asList(MAuthVersion.MWSV2))
@@ -179,6 +184,29 @@ class DefaultSignerSpec extends AnyFlatSpec with Matchers with MockFactory {
     headers(MAuthRequest.MCC_TIME_HEADER_NAME) shouldBe TestFixtures.EPOCH_TIME
   }
 
+  it should "sign with a private key whose encoding cannot be read, as a hardware key" in {
+    val key = privateKey1.asInstanceOf[RSAPrivateCrtKey]
+    val nonExtractableKey = new RSAPrivateCrtKey {
+      override def getPublicExponent: BigInteger = key.getPublicExponent
+      override def getPrimeP: BigInteger = key.getPrimeP
+      override def getPrimeQ: BigInteger = key.getPrimeQ
+      override def getPrimeExponentP: BigInteger = key.getPrimeExponentP
+      override def getPrimeExponentQ: BigInteger = key.getPrimeExponentQ
+      override def getCrtCoefficient: BigInteger = key.getCrtCoefficient
+      override def getPrivateExponent: BigInteger = key.getPrivateExponent
+      override def getModulus: BigInteger = key.getModulus
+      override def getAlgorithm: String = key.getAlgorithm
+      override def getFormat: String = null
+      override def getEncoded: Array[Byte] = null
+    }
+    val signerV2 = new DefaultSigner(testUUID, nonExtractableKey, mockEpochTimeProvider, java.util.Arrays.asList(MAuthVersion.MWSV2))
+    //noinspection ConvertibleToMethodValue
+    (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(TEST_EPOCH_TIME).twice()
+
+    signerV2.generateRequestHeaders("POST", "/", TEST_REQUEST_BODY.getBytes, "") shouldBe
+      mAuthRequestSignerV2.generateRequestHeaders("POST", "/", TEST_REQUEST_BODY.getBytes, "")
+  }
+
   "When v1 and v2 are set" should "generated headers with body for both V1 and V2" in {
     //noinspection ConvertibleToMethodValue
     val mAuthSigner = new DefaultSigner(testUUID, TestFixtures.PRIVATE_KEY_1, mockEpochTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
@@ -266,4 +294,151 @@ class DefaultSignerSpec extends AnyFlatSpec with Matchers with MockFactory {
     SignerConfiguration.getSignVersions("v10, v20, v30") shouldBe expected_sign_versions
   }
 
+  it should "disable the signature cache by default" in {
+    val config = ConfigFactory
+      .parseString(s"""app { uuid: "$testUUID", private_key: "${TestFixtures.PRIVATE_KEY_1.replace("\n", "\\n")}" }""")
+      .withFallback(ConfigFactory.defaultReference())
+    new SignerConfiguration(config).getSignatureCacheSize shouldBe 0
+    new SignerConfiguration(ConfigFactory.parseString("mauth.signature_cache_size: 100").withFallback(config)).getSignatureCacheSize shouldBe 100
+  }
+
+  "When signing a batch of requests" should "sign all requests with the same time in the order of the requests" in {
+    //noinspection ConvertibleToMethodValue
+    (mockEpochTimeProvider.inSeconds _: () => Long).expects().returns(TEST_EPOCH_TIME).once()
+    val fixedTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val signer = new DefaultSigner(testUUID, privateKey1, fixedTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+    val batchSigner = new DefaultSigner(testUUID, privateKey1, mockEpochTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+
+    val requests = (1 to 50).map(i => new SignableRequest("POST", s"/resource/$i", s"body $i".getBytes, s"page=$i")) :+
+      new SignableRequest("GET", "/", null, null)
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    val headers =
+      try batchSigner.generateRequestHeaders(requests.asJava, pool).asScala
+      finally pool.shutdown()
+    headers.size shouldBe requests.size
+    requests.zip(headers).foreach { case (request, requestHeaders) =>
+      requestHeaders shouldBe signer.generateRequestHeaders(request.getHttpVerb, request.getRequestPath, request.getRequestPayload, request.getQueryParameters)
+    }
+  }
+
+  it should "sign the requests one by one through the Signer interface by default" in {
+    val fixedTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val defaultSigner = new DefaultSigner(testUUID, privateKey1, fixedTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+    val signer: Signer = new Signer {
+      override def generateRequestHeaders(httpVerb: String, requestPath: String, requestPayload: String): java.util.Map[String, String] =
+        defaultSigner.generateRequestHeaders(httpVerb, requestPath, requestPayload)
+      override def generateRequestHeaders(
+        httpVerb: String,
+        requestPath: String,
+        requestPayload: Array[Byte],
+        queryParameters: String
+      ): java.util.Map[String, String] =
+        defaultSigner.generateRequestHeaders(httpVerb, requestPath, requestPayload, queryParameters)
+      override def generateRequestHeaders(
+        httpVerb: String,
+        requestPath: String,
+        requestPayload: java.io.InputStream,
+        queryParameters: String
+      ): java.util.Map[String, String] =
+        defaultSigner.generateRequestHeaders(httpVerb, requestPath, requestPayload, queryParameters)
+    }
+
+    val requests = java.util.Arrays.asList(new SignableRequest("GET", "/a", null, null), new SignableRequest("PUT", "/b", TEST_REQUEST_BODY.getBytes, "x=1"))
+    signer.generateRequestHeaders(requests) shouldBe defaultSigner.generateRequestHeaders(requests)
+  }
+
+  it should "fail with the signing error of a request" in {
+    val fixedTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val signer = new DefaultSigner(testUUID, privateKey1, fixedTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+    intercept[MAuthSigningException] {
+      signer.generateRequestHeaders(java.util.Arrays.asList(new SignableRequest("GET", "/", null, null), new SignableRequest(null, "/", null, null)))
+    }
+  }
+
+  "When signing asynchronously" should "sign the request on the crypto executor" in {
+    val fixedTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val signer = new DefaultSigner(testUUID, privateKey1, fixedTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+    val executor = new CryptoExecutor(1, 10)
+    try {
+      val expected = signer.generateRequestHeaders("POST", "/resource", TEST_REQUEST_BODY.getBytes, TEST_REQUEST_PARAMS)
+      signer.generateRequestHeadersAsync("POST", "/resource", TEST_REQUEST_BODY.getBytes, TEST_REQUEST_PARAMS, executor).get() shouldBe expected
+      signer.generateRequestHeadersAsync("POST", "/resource", TEST_REQUEST_BODY.getBytes, TEST_REQUEST_PARAMS).get() shouldBe expected
+    } finally executor.close()
+  }
+
+  it should "fail the result when the request cannot be signed" in {
+    val fixedTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val signer = new DefaultSigner(testUUID, privateKey1, fixedTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+    val result = signer.generateRequestHeadersAsync(null, "/", Array.emptyByteArray, null)
+    val exception = intercept[java.util.concurrent.ExecutionException](result.get())
+    exception.getCause shouldBe a[NullPointerException]
+  }
+
+  it should "fail the result when the crypto executor rejects the request" in {
+    val fixedTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val signer = new DefaultSigner(testUUID, privateKey1, fixedTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+    val executor = new CryptoExecutor(1, 1)
+    executor.close()
+    val result = signer.generateRequestHeadersAsync("GET", "/", Array.emptyByteArray, null, executor)
+    result.isCompletedExceptionally shouldBe true
+    val exception = intercept[java.util.concurrent.ExecutionException](result.get())
+    exception.getCause shouldBe a[java.util.concurrent.RejectedExecutionException]
+  }
+
+  "When the signature cache is enabled" should "reuse the headers of identical requests within the same second" in {
+    var currentTime = TEST_EPOCH_TIME
+    val epochTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = currentTime }
+    val cachingSigner = new DefaultSigner(testUUID, privateKey1, epochTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS, 10)
+    val signer = new DefaultSigner(testUUID, privateKey1, epochTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS)
+
+    val expected = signer.generateRequestHeaders("GET", "/resource", Array.emptyByteArray, TEST_REQUEST_PARAMS)
+    cachingSigner.generateRequestHeaders("GET", "/resource", Array.emptyByteArray, TEST_REQUEST_PARAMS) shouldBe expected
+    cachingSigner.generateRequestHeaders("GET", "/resource", null: Array[Byte], TEST_REQUEST_PARAMS) shouldBe expected
+    cachingSigner.getSignatureCacheMissCount shouldBe 1
+    cachingSigner.getSignatureCacheHitCount shouldBe 1
+
+    cachingSigner.generateRequestHeaders("GET", "/resource/./", Array.emptyByteArray, TEST_REQUEST_PARAMS) should not be expected
+    cachingSigner.generateRequestHeaders("POST", "/resource", TEST_REQUEST_BODY.getBytes, TEST_REQUEST_PARAMS) should not be expected
+    cachingSigner.getSignatureCacheMissCount shouldBe 3
+
+    currentTime += 1
+    val nextSecond = cachingSigner.generateRequestHeaders("GET", "/resource", Array.emptyByteArray, TEST_REQUEST_PARAMS)
+    nextSecond shouldBe signer.generateRequestHeaders("GET", "/resource", Array.emptyByteArray, TEST_REQUEST_PARAMS)
+    nextSecond.get(MAuthRequest.MCC_TIME_HEADER_NAME) shouldBe String.valueOf(TEST_EPOCH_TIME + 1)
+    cachingSigner.getSignatureCacheMissCount shouldBe 4
+    cachingSigner.getSignatureCacheHitCount shouldBe 1
+  }
+
+  it should "return a copy of the cached headers" in {
+    val epochTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val cachingSigner = new DefaultSigner(testUUID, privateKey1, epochTimeProvider, SignerConfiguration.ALL_SIGN_VERSIONS, 10)
+
+    cachingSigner.generateRequestHeaders("GET", "/", Array.emptyByteArray, "").put("extra", "header")
+    cachingSigner.generateRequestHeaders("GET", "/", Array.emptyByteArray, "").containsKey("extra") shouldBe false
+  }
+
+  it should "sign without caching once the cache is full" in {
+    val epochTimeProvider = new EpochTimeProvider { override def inSeconds(): Long = TEST_EPOCH_TIME }
+    val cachingSigner = new DefaultSigner(testUUID, privateKey1, epochTimeProvider, java.util.Arrays.asList(MAuthVersion.MWSV2), 1)
+
+    cachingSigner.generateRequestHeaders("GET", "/a", Array.emptyByteArray, "")
+    cachingSigner.generateRequestHeaders("GET", "/b", Array.emptyByteArray, "")
+    cachingSigner.generateRequestHeaders("GET", "/b", Array.emptyByteArray, "")
+    cachingSigner.generateRequestHeaders("GET", "/a", Array.emptyByteArray, "")
+    cachingSigner.getSignatureCacheMissCount shouldBe 3
+    cachingSigner.getSignatureCacheHitCount shouldBe 1
+  }
+
+  it should "sign outside of the cache map, so that signing may use the cache and failures are not cached" in {
+    val cache = new SignatureCache(10)
+    val headers = java.util.Collections.singletonMap("signed", "headers")
+    val nested = cache.get(TEST_EPOCH_TIME, "GET", "/a", "", "digest", () => cache.get(TEST_EPOCH_TIME, "GET", "/b", "", "digest", () => headers))
+    nested shouldBe headers
+
+    intercept[IllegalStateException](cache.get(TEST_EPOCH_TIME, "GET", "/c", "", "digest", () => throw new IllegalStateException("signing failed")))
+    cache.get(TEST_EPOCH_TIME, "GET", "/c", "", "digest", () => headers) shouldBe headers
+    cache.missCount shouldBe 4
+    cache.hitCount shouldBe 0
+  }
+
 }
@@ -26,6 +26,23 @@ public class FakeMAuthServer {
     WireMock.configureFor("localhost", port);
   }
 
+  /**
+   * Start another MAuth instance, independent of the one of {@link #start(int)}, that answers the key of
+   * {@link #EXISTING_CLIENT_APP_UUID} after the given delay.
+   *
+   * @param port the port of the instance
+   * @param fixedDelayMillis how long the instance waits before it answers
+   * @return the instance, stop it when done
+   */
+  public static WireMockServer startInstance(int port, int fixedDelayMillis) {
+    WireMockServer instance = new WireMockServer(WireMockConfiguration.wireMockConfig().port(port));
+    instance.start();
+    instance.stubFor(WireMock.get(WireMock.urlPathEqualTo("/mauth/v1/security_tokens/" + EXISTING_CLIENT_APP_UUID.toString() + ".json"))
+        .willReturn(WireMock.aResponse().withStatus(200).withBody(mockedMauthTokenResponse()).withFixedDelay(fixedDelayMillis)
+          .withHeader(HttpHeaders.CACHE_CONTROL, "max-age=3600, private")));
+    return instance;
+  }
+
   public static void stop() {
     if (wireMockServer.isRunning()) {
       wireMockServer.stop();
@@ -45,6 +62,11 @@ public class FakeMAuthServer {
   public static void verifyNumberOfRequests(int count) {
     WireMock.verify(count, WireMock.getRequestedFor(WireMock.urlPathEqualTo("/mauth/v1/security_tokens/" + EXISTING_CLIENT_APP_UUID.toString() + ".json")));
   }
+
+  public static void verifyNumberOfRequests(WireMockServer instance, int count) {
+    instance.verify(count, WireMock.getRequestedFor(WireMock.urlPathEqualTo("/mauth/v1/security_tokens/" + EXISTING_CLIENT_APP_UUID.toString() + ".json")));
+  }
+
   public static void return401() {
     WireMock.stubFor(WireMock.get(WireMock.urlPathEqualTo("/mauth/v1/security_tokens/" + NON_EXISTING_CLIENT_APP_UUID.toString() + ".json"))
         .willReturn(WireMock.aResponse().withStatus(401).withBody("Invalid headers")));